@@ -2,6 +2,7 @@ package com.backtype.cascading.tap;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -19,12 +20,17 @@ import org.apache.log4j.Logger;
 
 import com.backtype.hadoop.pail.BinaryPailStructure;
 import com.backtype.hadoop.pail.DefaultPailStructure;
+import com.backtype.hadoop.pail.ManifestPailPathLister;
 import com.backtype.hadoop.pail.Pail;
 import com.backtype.hadoop.pail.PailFormatFactory;
 import com.backtype.hadoop.pail.PailOutputFormat;
 import com.backtype.hadoop.pail.PailPathLister;
+import com.backtype.hadoop.pail.PailSnapshot;
 import com.backtype.hadoop.pail.PailSpec;
 import com.backtype.hadoop.pail.PailStructure;
+import com.backtype.hadoop.pail.TargetKeyCache;
+import com.backtype.hadoop.pail.TargetReusingPailStructure;
+import com.backtype.hadoop.pail.WritablePailStructure;
 import com.backtype.support.Utils;
 import cascading.flow.FlowProcess;
 import cascading.scheme.Scheme;
@@ -79,7 +85,8 @@ public class PailTap extends Hfs {
     }
 
     private transient BytesWritable bw;
-    private transient Text keyW;
+    private transient TargetKeyCache _keyCache;
+    private transient List<String> _target;
 
     protected Object deserialize(BytesWritable record) {
       PailStructure structure = getStructure();
@@ -93,12 +100,31 @@ public class PailTap extends Hfs {
     protected void serialize(Object obj, BytesWritable ret) {
       if (obj instanceof BytesWritable) {
         ret.set((BytesWritable) obj);
+      } else if (getStructure() instanceof WritablePailStructure) {
+        ((WritablePailStructure) getStructure()).serializeInto(obj, ret);
       } else {
         byte[] b = getStructure().serialize(obj);
         ret.set(b, 0, b.length);
       }
     }
 
+    protected Text getKey(Object obj) {
+      PailStructure structure = getStructure();
+      List<String> target;
+      //a hack since byte[] isn't natively handled by hadoop
+      if (structure instanceof DefaultPailStructure) {
+        target = Collections.<String>emptyList();
+      } else if (structure instanceof TargetReusingPailStructure) {
+        if (_target == null) { _target = new ArrayList<String>(); }
+        ((TargetReusingPailStructure) structure).getTargetInto(obj, _target);
+        target = _target;
+      } else {
+        target = structure.getTarget(obj);
+      }
+      if (_keyCache == null) { _keyCache = new TargetKeyCache(MAX_CACHED_KEYS); }
+      return _keyCache.get(target, getCategory(obj));
+    }
+
     private transient PailStructure _structure;
 
     public PailStructure getStructure() {
@@ -127,6 +153,8 @@ public class PailTap extends Hfs {
 
     @Override public void sinkConfInit(FlowProcess<JobConf> flowProcess,
         Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+      if(_options.lister instanceof ManifestPailPathLister)
+        throw new TapException("Cannot sink into a pail snapshot at " + _pailRoot);
       conf.setOutputFormat(PailOutputFormat.class);
       Utils.setObject(conf, PailOutputFormat.SPEC_ARG, getSpec());
       try {
@@ -164,22 +192,24 @@ public class PailTap extends Hfs {
       TupleEntry tuple = sinkCall.getOutgoingEntry();
 
       Object obj = tuple.getObject(0);
-      String key;
-      //a hack since byte[] isn't natively handled by hadoop
-      if (getStructure() instanceof DefaultPailStructure) {
-        key = getCategory(obj);
+      BytesWritable value;
+      if (obj instanceof BytesWritable) {
+        //written out before collect returns, so it doesn't need copying
+        value = (BytesWritable) obj;
+      } else if (obj instanceof byte[] && getStructure() instanceof BinaryPailStructure) {
+        value = new BytesWritable((byte[]) obj);
       } else {
-        key = Utils.join(getStructure().getTarget(obj), "/") + getCategory(obj);
+        if (bw == null) { bw = new BytesWritable(); }
+        serialize(obj, bw);
+        value = bw;
       }
-      if (bw == null) { bw = new BytesWritable(); }
-      if (keyW == null) { keyW = new Text(); }
-      serialize(obj, bw);
-      keyW.set(key);
-      sinkCall.getOutput().collect(keyW, bw);
+      sinkCall.getOutput().collect(getKey(obj), value);
     }
 
   }
 
+  private static final int MAX_CACHED_KEYS = 10000;
+
   private String _pailRoot;
   private PailTapOptions _options;
 
@@ -198,6 +228,14 @@ public class PailTap extends Hfs {
     this(root, new PailTapOptions());
   }
 
+  /**
+   * Reads the files of a snapshot view rather than every file now under its root. Can't be used as a sink.
+   */
+  public PailTap(PailSnapshot snapshot, PailTapOptions options) {
+    this(snapshot.getInstanceRoot(), new PailTapOptions(options.spec, options.fieldName, options.attrs,
+        snapshot.getInputPathLister()));
+  }
+
   @Override
   public String getIdentifier() {
       if (_options.attrs != null && _options.attrs.length > 0) {
@@ -1,8 +1,9 @@
 package com.backtype.hadoop;
 
+import com.backtype.hadoop.FileCopyInputFormat.FileCopy;
 import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import com.backtype.hadoop.FileCopyInputFormat.FileCopySplit;
 import com.backtype.support.Utils;
-import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
@@ -12,14 +13,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public abstract class AbstractFileCopyMapper extends MapReduceBase implements Mapper<Text, Text, NullWritable, NullWritable> {
     public static Logger LOG = LoggerFactory.getLogger(AbstractFileCopyMapper.class);
 
+    //number of copies logged at once in incremental mode
+    private static final int LOG_BATCH_SIZE = 1000;
+
     private FileSystem fsSource;
     private FileSystem fsDest;
     private String tmpRoot;
+    private FileCopyArgs args;
+    private Map<String, FileCopy> copies;
+    private List<CopyLog.Entry> toLog = new ArrayList<CopyLog.Entry>();
 
     private void setStatus(Reporter rprtr, String msg) {
         LOG.info(msg);
@@ -33,14 +44,18 @@ public abstract class AbstractFileCopyMapper extends MapReduceBase implements Ma
 
         setStatus(rprtr, "Copying " + sourceFile.toString() + " to " + tmpFile.toString());
 
+        FileCopy copy = args.incremental ? getCopy(source.toString(), rprtr) : null;
         if(fsDest.exists(finalFile)) {
-            FileChecksum fc1 = fsSource.getFileChecksum(sourceFile);
-            FileChecksum fc2 = fsDest.getFileChecksum(finalFile);
-            if(fc1 != null && fc2 != null && !fc1.equals(fc2) ||
-               fsSource.getContentSummary(sourceFile).getLength()!=fsDest.getContentSummary(finalFile).getLength() ||
-               ((fc1==null || fc2==null) && !Utils.firstNBytesSame(fsSource, sourceFile, fsDest, finalFile, 1024*1024))) {
+            if(copy!=null && finalFile.getName().equals(CopyLog.renamedName(getKey(copy), args.renamableExtension))) {
+                //renamed files are only moved into place once complete, so a previous run copied this one
+                log(copy);
+                return;
+            }
+            rprtr.incrCounter(FileIdentityStrategy.COUNTER_GROUP, args.identity.getName(), 1);
+            if(!args.identity.isSameFile(fsSource, sourceFile, fsDest, finalFile)) {
                 throw new IOException("Target file already exists and is different! " + finalFile.toString());
             } else {
+                log(copy);
                 return;
             }
         }
@@ -54,18 +69,54 @@ public abstract class AbstractFileCopyMapper extends MapReduceBase implements Ma
         fsDest.mkdirs(finalFile.getParent());
         if(!fsDest.rename(tmpFile, finalFile))
             throw new IOException("could not rename " + tmpFile.toString() + " to " + finalFile.toString());
+        args.identity.copied(fsSource, sourceFile, fsDest, finalFile);
+        log(copy);
 
         // this is a bit of a hack; if we don't do this explicit rename, the owner of the file will
         // be hadoop each time.
         //fsDest.setOwner(finalFile, this.owner, fs.getGroup());
     }
 
+    private FileCopy getCopy(String source, Reporter rprtr) {
+        if(copies==null) {
+            copies = new HashMap<String, FileCopy>();
+            for(FileCopy c: ((FileCopySplit) rprtr.getInputSplit()).copies) {
+                copies.put(c.source, c);
+            }
+        }
+        return copies.get(source);
+    }
+
+    private String getKey(FileCopy copy) {
+        return CopyLog.key(Utils.makeRelative(new Path(args.source), new Path(copy.source)), copy.length, copy.modificationTime);
+    }
+
+    private void log(FileCopy copy) throws IOException {
+        if(copy==null) return;
+        toLog.add(new CopyLog.Entry(Utils.makeRelative(new Path(args.source), new Path(copy.source)), copy.length,
+                copy.modificationTime, copy.target));
+        if(toLog.size() >= LOG_BATCH_SIZE) flushLog();
+    }
+
+    private void flushLog() throws IOException {
+        if(toLog.isEmpty()) return;
+        CopyLog.write(fsDest, args.dest, toLog);
+        toLog.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        args.identity.close(fsDest);
+        flushLog();
+    }
+
     protected abstract void copyFile(FileSystem fsSource, Path source, FileSystem fsDest, Path target, Reporter reporter) throws IOException;
 
     @Override
     public void configure(JobConf job) {
-        FileCopyArgs args = (FileCopyArgs) Utils.getObject(job, FileCopyInputFormat.ARGS);
+        args = (FileCopyArgs) Utils.getObject(job, FileCopyInputFormat.ARGS);
         try {
+            args.identity.configure(job, args);
             tmpRoot = job.get("hadoop.tmp.dir") != null ? job.get("hadoop.tmp.dir") + Path.SEPARATOR + "filecopy" : args.tmpRoot;
             fsSource = new Path(args.source).getFileSystem(job);
             fsDest = new Path(args.dest).getFileSystem(job);
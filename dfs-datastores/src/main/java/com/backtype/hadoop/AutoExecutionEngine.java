@@ -0,0 +1,49 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Plans the job, then runs it with the LocalExecutionEngine when the splits cover at most
+ * pail.execution.auto.max.bytes and pail.execution.auto.max.files, and as a MapReduce job otherwise. Jobs whose
+ * splits don't implement SizedInputSplit always go to MapReduce.
+ */
+public class AutoExecutionEngine implements ExecutionEngine {
+    public static Logger LOG = LoggerFactory.getLogger(AutoExecutionEngine.class);
+
+    public static final String MAX_LOCAL_BYTES = "pail.execution.auto.max.bytes";
+    public static final long DEFAULT_MAX_LOCAL_BYTES = 512L * 1024 * 1024;
+    public static final String MAX_LOCAL_FILES = "pail.execution.auto.max.files";
+    public static final int DEFAULT_MAX_LOCAL_FILES = 500;
+
+    public Counters run(JobConf conf) throws IOException {
+        InputSplit[] splits = conf.getInputFormat().getSplits(conf, 1);
+        long maxBytes = conf.getLong(MAX_LOCAL_BYTES, DEFAULT_MAX_LOCAL_BYTES);
+        int maxFiles = conf.getInt(MAX_LOCAL_FILES, DEFAULT_MAX_LOCAL_FILES);
+        long bytes = 0;
+        long files = 0;
+        boolean local = true;
+        for(InputSplit split: splits) {
+            if(!(split instanceof SizedInputSplit)) {
+                local = false;
+                break;
+            }
+            bytes += ((SizedInputSplit) split).getNumBytes();
+            files += ((SizedInputSplit) split).getNumFiles();
+        }
+        local = local && bytes <= maxBytes && files <= maxFiles;
+        LOG.info(conf.getJobName() + " covers " + files + " files and " + bytes + " bytes, running it " +
+                (local ? "locally" : "as a MapReduce job"));
+        if(local) {
+            return new LocalExecutionEngine().run(conf, splits);
+        } else {
+            // the splits get planned again at submission, the extra listing is small next to a job this size
+            return new MapReduceExecutionEngine().run(conf);
+        }
+    }
+}
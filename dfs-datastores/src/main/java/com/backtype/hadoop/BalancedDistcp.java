@@ -1,6 +1,7 @@
 package com.backtype.hadoop;
 
 import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import com.backtype.support.TokenBucket;
 import com.backtype.support.Utils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -8,17 +9,63 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
 public class BalancedDistcp {
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
+    public static Logger LOG = LoggerFactory.getLogger(BalancedDistcp.class);
+
+    // when not set, the buffer size is picked for the source and dest filesystems
+    public static final String BUFFER_SIZE = "pail.distcp.buffer.size";
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static final int LOCAL_BUFFER_SIZE = 64 * 1024;
+    public static final int OBJECT_STORE_BUFFER_SIZE = 1024 * 1024;
+    // files larger than the chunk size are copied by this many threads, 1 copies every file as a single stream
+    public static final String CHUNK_THREADS = "pail.distcp.chunk.threads";
+    public static final int DEFAULT_CHUNK_THREADS = 4;
+    public static final String CHUNK_SIZE = "pail.distcp.chunk.size";
+    public static final long DEFAULT_CHUNK_SIZE = 256L * 1024 * 1024;
+    // bandwidth caps in bytes per second, 0 for none. the job cap is shared evenly by the maps allowed to run at once
+    public static final String TASK_BANDWIDTH = "pail.distcp.task.bandwidth";
+    public static final String JOB_BANDWIDTH = "pail.distcp.job.bandwidth";
+    // maps allowed to run at once when the job bandwidth is capped and the running map limit isn't set
+    public static final String MAX_MAPS = "pail.distcp.max.maps";
+    public static final int DEFAULT_MAX_MAPS = 20;
+    public static final String RUNNING_MAP_LIMIT = "mapreduce.job.running.map.limit";
+
+    public static enum Counter {
+        FILES_COPIED,
+        BYTES_COPIED,
+        COPY_MILLIS,
+        THROTTLED_MILLIS
+    }
+
+    /**
+     * Average bytes per second of the copies of a job, over the time maps spent copying.
+     */
+    public static long getThroughput(Counters counters) {
+        long millis = counters.getCounter(Counter.COPY_MILLIS);
+        return millis==0 ? 0 : counters.getCounter(Counter.BYTES_COPIED) * 1000 / millis;
+    }
+
+    /**
+     * Buffer size suited to a filesystem: object stores do better with large requests, local disks with small ones.
+     */
+    public static int getBufferSize(FileSystem fs) {
+        String scheme = fs.getUri().getScheme();
+        if(scheme==null) return DEFAULT_BUFFER_SIZE;
+        if(scheme.equals("file")) return LOCAL_BUFFER_SIZE;
+        if(scheme.startsWith("s3") || scheme.equals("gs") || scheme.startsWith("wasb") || scheme.startsWith("swift")) {
+            return OBJECT_STORE_BUFFER_SIZE;
+        }
+        return DEFAULT_BUFFER_SIZE;
+    }
 
     public static void distcp(String qualifiedSource, String qualifiedDest, int renameMode, PathLister lister) throws IOException {
         distcp(qualifiedSource, qualifiedDest, renameMode, lister, "");
@@ -53,41 +100,72 @@ public class BalancedDistcp {
 
         conf.setSpeculativeExecution(false);
 
+        if(conf.getLong(JOB_BANDWIDTH, 0) > 0 && conf.getInt(RUNNING_MAP_LIMIT, 0) <= 0) {
+            conf.setInt(RUNNING_MAP_LIMIT, conf.getInt(MAX_MAPS, DEFAULT_MAX_MAPS));
+        }
+
         conf.setNumReduceTasks(0);
 
         conf.setOutputKeyClass(NullWritable.class);
         conf.setOutputValueClass(NullWritable.class);
 
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-
-            if(!job.isSuccessful()) throw new IOException("BalancedDistcp failed");
-            deregisterShutdownHook();
+            ExecutionEngines.get(conf).run(conf);
         } catch(IOException e) {
             IOException ret = new IOException("BalancedDistcp failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
     public static class BalancedDistcpMapper extends AbstractFileCopyMapper {
-        byte[] buffer = new byte[128*1024]; //128 K
+        byte[] buffer;
+        ChunkedCopy chunked;
+        TokenBucket throttle;
+        JobConf job;
+        long throttled = 0;
+        long bytes = 0;
+        long millis = 0;
+
+        private void init(FileSystem fsSource, FileSystem fsDest) {
+            int bufferSize = job.get(BUFFER_SIZE)!=null ? job.getInt(BUFFER_SIZE, DEFAULT_BUFFER_SIZE) :
+                    Math.max(getBufferSize(fsSource), getBufferSize(fsDest));
+            buffer = new byte[bufferSize];
+            chunked = new ChunkedCopy(job.getInt(CHUNK_THREADS, DEFAULT_CHUNK_THREADS),
+                    job.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE), bufferSize, throttle);
+        }
 
         @Override
         protected void copyFile(FileSystem fsSource, Path source, FileSystem fsDest, Path target, Reporter reporter) throws IOException {
-            FSDataInputStream fin = fsSource.open(source);
-            FSDataOutputStream fout = fsDest.create(target);
+            if(buffer==null) init(fsSource, fsDest);
+            long start = System.currentTimeMillis();
+            long length = fsSource.getFileStatus(source).getLen();
+            if(chunked.shouldChunk(length)) {
+                chunked.copy(fsSource, source, length, fsDest, target, reporter);
+            } else {
+                copyStream(fsSource, source, fsDest, target, reporter);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            bytes += length;
+            millis += elapsed;
+            reporter.incrCounter(Counter.FILES_COPIED, 1);
+            reporter.incrCounter(Counter.BYTES_COPIED, length);
+            reporter.incrCounter(Counter.COPY_MILLIS, elapsed);
+            if(throttle!=null) {
+                long waited = throttle.getWaitedMillis();
+                reporter.incrCounter(Counter.THROTTLED_MILLIS, waited - throttled);
+                throttled = waited;
+            }
+        }
+
+        private void copyStream(FileSystem fsSource, Path source, FileSystem fsDest, Path target, Reporter reporter) throws IOException {
+            FSDataInputStream fin = fsSource.open(source, buffer.length);
+            FSDataOutputStream fout = fsDest.create(target, true, buffer.length);
 
             try {
                 int amt;
                 while((amt = fin.read(buffer)) >= 0) {
+                    if(throttle!=null) throttle.acquire(amt);
                     fout.write(buffer, 0, amt);
                     reporter.progress();
                 }
@@ -98,28 +176,28 @@ public class BalancedDistcp {
             //doesn't really matter though since files are written to tmp file and renamed
             fout.close();
         }
-    }
-
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
 
+        @Override
+        public void configure(JobConf job) {
+            super.configure(job);
+            this.job = job;
+            long rate = job.getLong(TASK_BANDWIDTH, 0);
+            long jobRate = job.getLong(JOB_BANDWIDTH, 0);
+            if(jobRate > 0) {
+                long share = Math.max(1, jobRate / Math.max(1, job.getInt(RUNNING_MAP_LIMIT, 1)));
+                rate = rate > 0 ? Math.min(rate, share) : share;
             }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
-    }
+            if(rate > 0) throttle = new TokenBucket(rate);
+        }
 
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
+        @Override
+        public void close() throws IOException {
+            if(chunked!=null) chunked.close();
+            if(millis > 0) {
+                LOG.info("Copied " + bytes + " bytes in " + millis + "ms, " + (bytes * 1000 / millis) + " bytes/s" +
+                        (throttle==null ? "" : ", throttled to " + throttle.getRate() + " bytes/s for " + throttled + "ms"));
+            }
+            super.close();
+        }
     }
 }
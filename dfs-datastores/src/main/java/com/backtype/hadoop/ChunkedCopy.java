@@ -0,0 +1,250 @@
+package com.backtype.hadoop;
+
+import com.backtype.support.TokenBucket;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies a large file with several threads instead of a single stream.
+ *
+ * On HDFS the file is copied as block aligned chunks written to separate files next to the target, which are then
+ * stitched together with DistributedFileSystem.concat. On other filesystems ranges of the source are read in
+ * parallel and written to the target in order by the calling thread. Either way nothing but the target is left
+ * behind, and the target is only complete once copy returns.
+ */
+public class ChunkedCopy {
+    // largest range held in memory by the ordered writer
+    private static final long MAX_RANGE_SIZE = 8 * 1024 * 1024;
+
+    private ExecutorService _pool;
+    private int _threads;
+    private long _chunkSize;
+    private int _bufferSize;
+    private TokenBucket _throttle;
+
+    public ChunkedCopy(int threads, long chunkSize, int bufferSize) {
+        this(threads, chunkSize, bufferSize, null);
+    }
+
+    /**
+     * Reads of all threads take their bytes from throttle, when not null.
+     */
+    public ChunkedCopy(int threads, long chunkSize, int bufferSize, TokenBucket throttle) {
+        _throttle = throttle;
+        _threads = threads;
+        _chunkSize = chunkSize;
+        _bufferSize = bufferSize;
+        if(threads > 1) {
+            _pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "chunked-copy-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether a file of this length is worth copying in chunks.
+     */
+    public boolean shouldChunk(long length) {
+        return _pool!=null && length > _chunkSize;
+    }
+
+    public void copy(FileSystem fsSource, Path source, long length, FileSystem fsDest, Path target, Progressable progress) throws IOException {
+        if(fsDest instanceof DistributedFileSystem) {
+            copyWithConcat(fsSource, source, length, (DistributedFileSystem) fsDest, target, progress);
+        } else {
+            copyOrdered(fsSource, source, length, fsDest, target, progress);
+        }
+    }
+
+    public void close() {
+        if(_pool!=null) _pool.shutdownNow();
+    }
+
+    // the part copies of a file, so a failed copy can stop them all before removing their parts
+    private static class PartCopies {
+        private boolean _aborted = false;
+        private int _running = 0;
+
+        synchronized boolean start() {
+            if(_aborted) return false;
+            _running++;
+            return true;
+        }
+
+        synchronized void finish() {
+            _running--;
+            notifyAll();
+        }
+
+        /**
+         * Keeps parts from starting and waits for those running to end.
+         */
+        synchronized void abort(List<Future<Object>> copies) {
+            _aborted = true;
+            for(Future<Object> f: copies) {
+                f.cancel(true);
+            }
+            boolean interrupted = false;
+            while(_running > 0) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void copyWithConcat(final FileSystem fsSource, final Path source, long length, final DistributedFileSystem fsDest,
+                                Path target, final Progressable progress) throws IOException {
+        final long blockSize = fsDest.getDefaultBlockSize(target);
+        //concat needs every chunk but the last to be made of full blocks
+        long chunk = Math.max(blockSize, _chunkSize / blockSize * blockSize);
+        int numChunks = (int) ((length + chunk - 1) / chunk);
+        if(numChunks <= 1) {
+            //blocks larger than the chunk size leave nothing to split
+            copyRange(fsSource, source, 0, length, fsDest, target, blockSize, progress);
+            return;
+        }
+        final PartCopies running = new PartCopies();
+        List<Path> parts = new ArrayList<Path>();
+        List<Future<Object>> copies = new ArrayList<Future<Object>>();
+        for(int i=0; i<numChunks; i++) {
+            final Path part = i==0 ? target : new Path(target.getParent(), target.getName() + ".chunk" + i);
+            final long offset = i * chunk;
+            final long len = Math.min(chunk, length - offset);
+            parts.add(part);
+            copies.add(_pool.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    if(!running.start()) return null;
+                    try {
+                        copyRange(fsSource, source, offset, len, fsDest, part, blockSize, progress);
+                    } finally {
+                        running.finish();
+                    }
+                    return null;
+                }
+            }));
+        }
+        boolean succeeded = false;
+        try {
+            for(Future<Object> f: copies) {
+                get(f);
+            }
+            fsDest.concat(target, parts.subList(1, parts.size()).toArray(new Path[parts.size() - 1]));
+            succeeded = true;
+        } finally {
+            if(!succeeded) {
+                //a part still being written could be created again after being deleted
+                running.abort(copies);
+                for(Path p: parts) {
+                    fsDest.delete(p, false);
+                }
+            }
+        }
+    }
+
+    private void copyRange(FileSystem fsSource, Path source, long offset, long len, FileSystem fsDest, Path dest,
+                           long blockSize, Progressable progress) throws IOException {
+        byte[] buffer = new byte[_bufferSize];
+        FSDataInputStream in = fsSource.open(source, _bufferSize);
+        try {
+            in.seek(offset);
+            FSDataOutputStream out = fsDest.create(dest, true, _bufferSize, fsDest.getDefaultReplication(dest), blockSize);
+            try {
+                while(len > 0) {
+                    int amt = in.read(buffer, 0, (int) Math.min(buffer.length, len));
+                    if(amt < 0) throw new IOException("Unexpected end of " + source + " at " + in.getPos());
+                    if(_throttle!=null) _throttle.acquire(amt);
+                    out.write(buffer, 0, amt);
+                    len -= amt;
+                    progress.progress();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void copyOrdered(FileSystem fsSource, Path source, long length, FileSystem fsDest, Path target,
+                             Progressable progress) throws IOException {
+        long rangeSize = Math.min(_chunkSize, MAX_RANGE_SIZE);
+        long numRanges = (length + rangeSize - 1) / rangeSize;
+        LinkedList<Future<byte[]>> window = new LinkedList<Future<byte[]>>();
+        long next = 0;
+        FSDataOutputStream out = fsDest.create(target, true, _bufferSize);
+        try {
+            while(next < numRanges && window.size() <= _threads) {
+                window.add(readRange(fsSource, source, next * rangeSize, Math.min(rangeSize, length - next * rangeSize)));
+                next++;
+            }
+            while(!window.isEmpty()) {
+                out.write(get(window.removeFirst()));
+                progress.progress();
+                if(next < numRanges) {
+                    window.add(readRange(fsSource, source, next * rangeSize, Math.min(rangeSize, length - next * rangeSize)));
+                    next++;
+                }
+            }
+        } finally {
+            for(Future<byte[]> f: window) {
+                f.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private Future<byte[]> readRange(final FileSystem fs, final Path source, final long offset, final long len) {
+        return _pool.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                byte[] ret = new byte[(int) len];
+                if(_throttle!=null) _throttle.acquire(len);
+                FSDataInputStream in = fs.open(source, _bufferSize);
+                try {
+                    in.seek(offset);
+                    in.readFully(ret);
+                } finally {
+                    in.close();
+                }
+                return ret;
+            }
+        });
+    }
+
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Failed to copy", e.getCause());
+        }
+    }
+}
@@ -9,21 +9,34 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 public class Coercer {
     private static final String FACTIN_ARG = "coercer_stream_factin_arg";
     private static final String FACTOUT_ARG = "coercer_stream_factout_arg";
-
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
+    // decode on a separate thread from encoding and writing, handing records over in batches of about this many bytes
+    public static final String PIPELINE = "pail.coerce.pipeline";
+    public static final String BATCH_BYTES = "pail.coerce.batch.bytes";
+    public static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+    // batches read ahead of the writer
+    public static final String QUEUE_BATCHES = "pail.coerce.queue.batches";
+    public static final int DEFAULT_QUEUE_BATCHES = 4;
 
     public static void coerce(String source, String dest, int renameMode, PathLister lister, RecordStreamFactory factin, RecordStreamFactory factout) throws IOException {
         coerce(source, dest, renameMode, lister, factin, factout, "");
@@ -35,17 +48,20 @@ public class Coercer {
 
 
     public static void coerce(String qualSource, String qualDest, int renameMode, PathLister lister, RecordStreamFactory factin, RecordStreamFactory factout, String extensionOnRename, Configuration configuration) throws IOException {
-        if(!Utils.hasScheme(qualSource) || !Utils.hasScheme(qualDest))
-            throw new IllegalArgumentException("source and dest must have schemes " + qualSource + " " + qualDest);
+        FileCopyArgs args = new FileCopyArgs(qualSource, qualDest, renameMode, lister, extensionOnRename);
+        coerce(args, factin, factout, configuration);
+    }
 
+    public static void coerce(FileCopyArgs args, RecordStreamFactory factin, RecordStreamFactory factout, Configuration configuration) throws IOException {
+        if(!Utils.hasScheme(args.source) || !Utils.hasScheme(args.dest))
+            throw new IllegalArgumentException("source and dest must have schemes " + args.source + " " + args.dest);
 
-        FileCopyArgs args = new FileCopyArgs(qualSource, qualDest, renameMode, lister, extensionOnRename);
         JobConf conf = new JobConf(configuration, Coercer.class);
         Utils.setObject(conf, FileCopyInputFormat.ARGS, args);
         Utils.setObject(conf, FACTIN_ARG, factin);
         Utils.setObject(conf, FACTOUT_ARG, factout);
 
-        conf.setJobName("Coercer: " + qualSource + " -> " + qualDest);
+        conf.setJobName("Coercer: " + args.source + " -> " + args.dest);
 
         conf.setInputFormat(FileCopyInputFormat.class);
         conf.setOutputFormat(NullOutputFormat.class);
@@ -59,52 +75,29 @@ public class Coercer {
         conf.setOutputValueClass(NullWritable.class);
 
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-
-            if(!job.isSuccessful()) throw new IOException("Coercer failed");
-            deregisterShutdownHook();
+            ExecutionEngines.get(conf).run(conf);
         } catch(IOException e) {
             IOException ret = new IOException("Coercer failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
-    }
-
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
-    }
-
     public static class CoercerMapper extends AbstractFileCopyMapper {
+        private static final List<byte[]> END = new ArrayList<byte[]>();
 
         RecordStreamFactory factin;
         RecordStreamFactory factout;
+        ExecutorService reader;
+        int batchBytes;
+        int queueBatches;
 
         @Override
         protected void copyFile(FileSystem fsSource, Path source, FileSystem fsDest, Path target, Reporter reporter) throws IOException {
+            if(reader!=null) {
+                copyPipelined(fsSource, source, fsDest, target, reporter);
+                return;
+            }
             RecordInputStream fin = factin.getInputStream(fsSource, source);
             RecordOutputStream fout = factout.getOutputStream(fsDest, target);
 
@@ -126,11 +119,109 @@ public class Coercer {
             fout.close();
         }
 
+        /**
+         * Reads and decodes on the reader thread while this one encodes and writes. Batches go through a single
+         * queue, so records keep their order.
+         */
+        private void copyPipelined(FileSystem fsSource, Path source, FileSystem fsDest, Path target, Reporter reporter) throws IOException {
+            final RecordInputStream fin = factin.getInputStream(fsSource, source);
+            final BlockingQueue<List<byte[]>> queue = new ArrayBlockingQueue<List<byte[]>>(queueBatches);
+            Future<Object> reading = reader.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    boolean cancelled = false;
+                    try {
+                        List<byte[]> batch = new ArrayList<byte[]>();
+                        int bytes = 0;
+                        byte[] record;
+                        while((record = fin.readRawRecord()) != null) {
+                            batch.add(record);
+                            bytes += record.length;
+                            if(bytes >= batchBytes) {
+                                queue.put(batch);
+                                batch = new ArrayList<byte[]>();
+                                bytes = 0;
+                            }
+                        }
+                        if(!batch.isEmpty()) queue.put(batch);
+                    } catch(InterruptedException e) {
+                        cancelled = true;
+                        throw e;
+                    } finally {
+                        try {
+                            fin.close();
+                        } finally {
+                            //cancelled by a failed writer, which left the queue full and will never take from it
+                            if(cancelled) queue.offer(END);
+                            else queue.put(END);
+                        }
+                    }
+                    return null;
+                }
+            });
+            boolean succeeded = false;
+            RecordOutputStream fout = null;
+            try {
+                fout = factout.getOutputStream(fsDest, target);
+                List<byte[]> batch;
+                while((batch = queue.take()) != END) {
+                    for(byte[] record: batch) {
+                        fout.writeRaw(record);
+                    }
+                    reporter.progress();
+                }
+                reading.get();
+                //don't complete files that aren't done yet. prevents partial files from being written
+                fout.close();
+                succeeded = true;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while coercing " + source);
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Failed to read " + source, e.getCause());
+            } finally {
+                if(!succeeded) {
+                    reading.cancel(true);
+                    if(fout!=null) discard(fout, fsDest, target);
+                }
+            }
+        }
+
+        // the target is a temporary file only renamed into place on success. failures here would hide the one that
+        // got us here, so they are dropped
+        private static void discard(RecordOutputStream fout, FileSystem fs, Path target) {
+            try {
+                fout.close();
+            } catch(IOException e) {
+            }
+            try {
+                fs.delete(target, false);
+            } catch(IOException e) {
+            }
+        }
+
         @Override
         public void configure(JobConf job) {
             super.configure(job);
             factin = (RecordStreamFactory) Utils.getObject(job, FACTIN_ARG);
             factout = (RecordStreamFactory) Utils.getObject(job, FACTOUT_ARG);
+            batchBytes = job.getInt(BATCH_BYTES, DEFAULT_BATCH_BYTES);
+            queueBatches = job.getInt(QUEUE_BATCHES, DEFAULT_QUEUE_BATCHES);
+            if(job.getBoolean(PIPELINE, true)) {
+                reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "coercer-reader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(reader!=null) reader.shutdownNow();
+            super.close();
         }
     }
 }
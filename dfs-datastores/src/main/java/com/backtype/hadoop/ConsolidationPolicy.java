@@ -0,0 +1,17 @@
+package com.backtype.hadoop;
+
+import com.backtype.support.SubsetSum;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Decides which files of a directory the Consolidator merges together.
+ */
+public interface ConsolidationPolicy extends Serializable {
+    /**
+     * Returns groups of files, each of which gets merged into a single file. Files that are in no group are left
+     * alone. Groups of a single file are ignored.
+     */
+    public <T extends SubsetSum.Value> List<List<T>> plan(List<T> files, long targetSize);
+}
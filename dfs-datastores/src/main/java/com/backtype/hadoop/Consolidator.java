@@ -1,13 +1,18 @@
 package com.backtype.hadoop;
 
+import com.backtype.hadoop.formats.ConcatenatingStreamFactory;
 import com.backtype.hadoop.formats.RecordInputStream;
 import com.backtype.hadoop.formats.RecordOutputStream;
 import com.backtype.hadoop.formats.RecordStreamFactory;
-import com.backtype.support.SubsetSum;
 import com.backtype.support.SubsetSum.Value;
 import com.backtype.support.Utils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
@@ -16,17 +21,51 @@ import org.slf4j.LoggerFactory;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Consolidator {
+    public static Logger LOG = LoggerFactory.getLogger(Consolidator.class);
+
     public static final long DEFAULT_CONSOLIDATION_SIZE = 1024*1024*127; //127 MB
     private static final String ARGS = "consolidator_args";
-
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
+    // number of directories listed and planned at the same time
+    public static final String PLANNING_THREADS = "pail.consolidate.planning.threads";
+    public static final int DEFAULT_PLANNING_THREADS = 16;
+    // whether to look up block locations so tasks can run next to the files they merge
+    public static final String LOCALITY = "pail.consolidate.locality";
+    private static final int MAX_HOSTS = 3;
+    // where consolidated files are written before being moved into place: STAGING_TMPDIR or STAGING_TARGET
+    public static final String STAGING = "pail.consolidate.staging";
+    // a single directory shared by all consolidations, given by pail.consolidate.tmpdir
+    public static final String STAGING_TMPDIR = "tmpdir";
+    // a hidden directory inside each consolidated directory, so the final move is a rename within that directory
+    public static final String STAGING_TARGET = "target";
+    public static final String TMPDIR = "pail.consolidate.tmpdir";
+    public static final String STAGING_DIR = "_consolidator";
+    // staged files older than this are left over from failed tasks and get deleted when planning
+    public static final String STAGING_TTL = "pail.consolidate.staging.ttl.ms";
+    public static final long DEFAULT_STAGING_TTL = 24L * 60 * 60 * 1000;
+    // files written by the consolidator are named cons<uuid>, anything else hasn't been consolidated yet
+    public static final String CONSOLIDATED_PREFIX = "cons";
+
+    public static enum Counter {
+        FILES_MERGED,
+        FILES_WRITTEN,
+        BYTES_REWRITTEN,
+        //bytes of files that had never been consolidated before, the rest is write amplification
+        NEW_BYTES_REWRITTEN
+    }
 
     public static class ConsolidatorArgs implements Serializable {
         public String fsUri;
@@ -35,16 +74,41 @@ public class Consolidator {
         public List<String> dirs;
         public long targetSizeBytes;
         public String extension;
-
+        public ConsolidationPolicy policy;
+        //when set, every file gets rewritten in this format rather than the one it is read with
+        public RecordStreamFactory outputStreams;
+        //when set, files are written as cons<tag>-<uuid> so a rerun can tell them from the files it still has to read
+        public String tag;
 
         public ConsolidatorArgs(String fsUri, RecordStreamFactory streams, PathLister pathLister,
             List<String> dirs, long targetSizeBytes, String extension) {
+            this(fsUri, streams, pathLister, dirs, targetSizeBytes, extension, new PackingConsolidationPolicy());
+        }
+
+        public ConsolidatorArgs(String fsUri, RecordStreamFactory streams, PathLister pathLister,
+            List<String> dirs, long targetSizeBytes, String extension, ConsolidationPolicy policy) {
+            this(fsUri, streams, pathLister, dirs, targetSizeBytes, extension, policy, null);
+        }
+
+        public ConsolidatorArgs(String fsUri, RecordStreamFactory streams, PathLister pathLister,
+            List<String> dirs, long targetSizeBytes, String extension, ConsolidationPolicy policy,
+            RecordStreamFactory outputStreams) {
             this.fsUri = fsUri;
             this.streams = streams;
             this.pathLister = pathLister;
             this.dirs = dirs;
             this.targetSizeBytes = targetSizeBytes;
             this.extension = extension;
+            this.policy = policy;
+            this.outputStreams = outputStreams;
+        }
+
+        public RecordStreamFactory getOutputStreams() {
+            return outputStreams==null ? streams : outputStreams;
+        }
+
+        public String getTargetPrefix() {
+            return tag==null ? CONSOLIDATED_PREFIX : getTaggedPrefix(tag);
         }
     }
 
@@ -70,6 +134,33 @@ public class Consolidator {
         consolidate(fs, streams, pathLister, dirs, targetSizeBytes, extension);
     }
 
+    private static boolean isStagingInTarget(JobConf conf) {
+        String staging = conf.get(STAGING, STAGING_TMPDIR);
+        if(STAGING_TARGET.equals(staging)) return true;
+        if(STAGING_TMPDIR.equals(staging)) return false;
+        throw new IllegalArgumentException("Unknown consolidation staging " + staging);
+    }
+
+    /**
+     * Deletes files staged in dir by tasks that died before moving them into place.
+     */
+    private static void cleanStaging(FileSystem fs, String dir, long ttl) throws IOException {
+        FileStatus[] staged;
+        try {
+            staged = fs.listStatus(new Path(dir, STAGING_DIR));
+        } catch(FileNotFoundException e) {
+            return;
+        }
+        if(staged==null) return;
+        long cutoff = System.currentTimeMillis() - ttl;
+        for(FileStatus stat: staged) {
+            if(stat.getModificationTime() < cutoff) {
+                LOG.info("Deleting orphaned staging file " + stat.getPath());
+                fs.delete(stat.getPath(), true);
+            }
+        }
+    }
+
     private static String getDirsString(List<String> targetDirs) {
         String ret = "";
         for(int i=0; i < 3 && i < targetDirs.size(); i++) {
@@ -83,11 +174,92 @@ public class Consolidator {
 
     public static void consolidate(FileSystem fs, RecordStreamFactory streams, PathLister lister, List<String> dirs,
         long targetSizeBytes, String extension) throws IOException {
-        JobConf conf = new JobConf(fs.getConf(), Consolidator.class);
+        consolidate(fs, streams, lister, dirs, targetSizeBytes, extension, new PackingConsolidationPolicy());
+    }
+
+    public static void consolidate(FileSystem fs, RecordStreamFactory streams, PathLister lister, List<String> dirs,
+        long targetSizeBytes, String extension, ConsolidationPolicy policy) throws IOException {
+        consolidate(fs, streams, null, lister, dirs, targetSizeBytes, extension, policy);
+    }
+
+    /**
+     * Reads files with streams and, if outputStreams is not null, rewrites every file in the format of
+     * outputStreams. Files left alone by the policy are then rewritten on their own.
+     */
+    public static void consolidate(FileSystem fs, RecordStreamFactory streams, RecordStreamFactory outputStreams,
+        PathLister lister, List<String> dirs, long targetSizeBytes, String extension, ConsolidationPolicy policy)
+        throws IOException {
+        consolidate(fs, streams, outputStreams, lister, dirs, targetSizeBytes, extension, policy, null);
+    }
+
+    /**
+     * Same as above, naming the files written with getTaggedPrefix(tag).
+     */
+    public static void consolidate(FileSystem fs, RecordStreamFactory streams, RecordStreamFactory outputStreams,
+        PathLister lister, List<String> dirs, long targetSizeBytes, String extension, ConsolidationPolicy policy,
+        String tag) throws IOException {
         String fsUri = fs.getUri().toString();
-        ConsolidatorArgs args = new ConsolidatorArgs(fsUri, streams, lister, dirs, targetSizeBytes, extension);
-        Utils.setObject(conf, ARGS, args);
+        ConsolidatorArgs args = new ConsolidatorArgs(fsUri, streams, lister, dirs, targetSizeBytes, extension, policy,
+            outputStreams);
+        args.tag = tag;
+        List<ConsolidatorArgs> requests = new ArrayList<ConsolidatorArgs>();
+        requests.add(args);
+        runJob(fs.getConf(), requests);
+    }
+
+    /**
+     * Consolidates many sets of directories, each with its own formats, extension and policy, without blocking the
+     * caller. The requests are spread over at most maxJobs jobs running at the same time. Returns one future per
+     * request, in order. Requests that ended up in the same job share its future and counters.
+     */
+    public static List<Future<Counters>> consolidate(Configuration conf, List<ConsolidatorArgs> requests, int maxJobs) {
+        if(requests.isEmpty()) return new ArrayList<Future<Counters>>();
+        int numJobs = Math.max(1, Math.min(maxJobs, requests.size()));
+        List<List<ConsolidatorArgs>> batches = new ArrayList<List<ConsolidatorArgs>>();
+        for(int i=0; i<numJobs; i++) {
+            batches.add(new ArrayList<ConsolidatorArgs>());
+        }
+        for(int i=0; i<requests.size(); i++) {
+            batches.get(i % numJobs).add(requests.get(i));
+        }
+        final Configuration jobConf = new Configuration(conf);
+        ExecutorService pool = Executors.newFixedThreadPool(numJobs, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "consolidator-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Future<Counters>> jobs = new ArrayList<Future<Counters>>();
+        try {
+            for(final List<ConsolidatorArgs> batch: batches) {
+                jobs.add(pool.submit(new Callable<Counters>() {
+                    public Counters call() throws IOException {
+                        return runJob(jobConf, batch);
+                    }
+                }));
+            }
+        } finally {
+            //lets the submitted jobs finish
+            pool.shutdown();
+        }
+        List<Future<Counters>> ret = new ArrayList<Future<Counters>>();
+        for(int i=0; i<requests.size(); i++) {
+            ret.add(jobs.get(i % numJobs));
+        }
+        return ret;
+    }
+
+    private static Counters runJob(Configuration baseConf, List<ConsolidatorArgs> requests) throws IOException {
+        JobConf conf = new JobConf(baseConf, Consolidator.class);
+        Utils.setObject(conf, ARGS, new ArrayList<ConsolidatorArgs>(requests));
 
+        List<String> dirs = new ArrayList<String>();
+        for(ConsolidatorArgs args: requests) {
+            dirs.addAll(args.dirs);
+        }
         conf.setJobName("Consolidator: " + getDirsString(dirs));
 
         conf.setInputFormat(ConsolidatorInputFormat.class);
@@ -101,176 +273,294 @@ public class Consolidator {
         conf.setOutputKeyClass(NullWritable.class);
         conf.setOutputValueClass(NullWritable.class);
 
+        Counters counters;
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-            if(!job.isSuccessful()) throw new IOException("Consolidator failed");
-            deregisterShutdownHook();
+            counters = ExecutionEngines.get(conf).run(conf);
         } catch(IOException e) {
-
             IOException ret = new IOException("Consolidator failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
         }
+        logWriteAmplification(counters);
+        return counters;
     }
 
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
+    private static void logWriteAmplification(Counters counters) {
+        if(counters==null) return;
+        long merged = counters.getCounter(Counter.FILES_MERGED);
+        long written = counters.getCounter(Counter.FILES_WRITTEN);
+        long rewritten = counters.getCounter(Counter.BYTES_REWRITTEN);
+        long newBytes = counters.getCounter(Counter.NEW_BYTES_REWRITTEN);
+        LOG.info("Consolidated " + merged + " files into " + written + ", rewriting " + rewritten + " bytes of which " +
+                newBytes + " were never consolidated before. Write amplification: " + getWriteAmplification(rewritten, newBytes));
     }
 
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
+    /**
+     * The start of the names of files written by a consolidation with the given tag.
+     */
+    public static String getTaggedPrefix(String tag) {
+        return CONSOLIDATED_PREFIX + tag + "-";
     }
 
-    public static class ConsolidatorMapper extends MapReduceBase implements Mapper<ArrayWritable, Text, NullWritable, NullWritable> {
+    /**
+     * Bytes rewritten per byte of data that was never consolidated before. 1 means only new data was rewritten.
+     */
+    public static double getWriteAmplification(long bytesRewritten, long newBytesRewritten) {
+        if(newBytesRewritten==0) return bytesRewritten==0 ? 0 : Double.POSITIVE_INFINITY;
+        return (double) bytesRewritten / newBytesRewritten;
+    }
+
+    /**
+     * Gets one record per source file of its split, and appends each source to the consolidated file as it comes so
+     * that progress follows the bytes read. The file is moved into place and the sources deleted on close.
+     */
+    public static class ConsolidatorMapper extends MapReduceBase implements Mapper<Text, Text, NullWritable, NullWritable> {
         public static Logger LOG = LoggerFactory.getLogger(ConsolidatorMapper.class);
 
+        JobConf conf;
+        List<ConsolidatorArgs> requests;
         FileSystem fs;
         ConsolidatorArgs args;
         Path rootTmp = new Path("/tmp/consolidator");
+        boolean stageInTarget = false;
+
+        Reporter reporter;
+        ConsolidatorSplit split;
+        Path finalFile;
+        Path tmpFile;
+        ConcatenatingStreamFactory.ConcatOutput concat;
+        RecordOutputStream os;
+        boolean failed = false;
+
+        public void map(Text source, Text target, OutputCollector<NullWritable, NullWritable> oc, Reporter rprtr) throws IOException {
+            boolean succeeded = false;
+            try {
+                if(split==null) start(target, rprtr);
+                //tmpFile is null when the file was already consolidated by a previous attempt
+                if(tmpFile!=null) append(new Path(source.toString()));
+                succeeded = true;
+            } finally {
+                if(!succeeded) failed = true;
+            }
+        }
 
-        public void map(ArrayWritable sourcesArr, Text target, OutputCollector<NullWritable, NullWritable> oc, Reporter rprtr) throws IOException {
+        private void start(Text target, Reporter rprtr) throws IOException {
+            reporter = rprtr;
+            split = (ConsolidatorSplit) rprtr.getInputSplit();
+            args = requests.get(split.request);
+            fs = Utils.getFS(args.fsUri, conf);
+            finalFile = new Path(target.toString());
+            //must have failed after succeeding to create file but before task finished - this is valid
+            //because path is selected with a UUID
+            if(fs.exists(finalFile)) return;
 
-            Path finalFile = new Path(target.toString());
+            if(stageInTarget) {
+                //targets are <dir>/<2 chars>/cons<uuid>
+                tmpFile = new Path(new Path(finalFile.getParent().getParent(), STAGING_DIR), UUID.randomUUID().toString());
+            } else {
+                tmpFile = new Path(rootTmp + UUID.randomUUID().toString());
+            }
+            fs.mkdirs(tmpFile.getParent());
+
+            String status = "Consolidating " + split.sources.length + " files into " + tmpFile.toString();
+            LOG.info(status);
+            rprtr.setStatus(status);
+
+            RecordStreamFactory fact = args.getOutputStreams();
+            fs.mkdirs(finalFile.getParent());
 
-            List<Path> sources = new ArrayList<Path>();
-            for(int i=0; i<sourcesArr.get().length; i++) {
-                sources.add(new Path(((Text)sourcesArr.get()[i]).toString()));
+            if(args.outputStreams==null && fact instanceof ConcatenatingStreamFactory) {
+                concat = ((ConcatenatingStreamFactory) fact).openConcat(fs, getSources(), tmpFile);
+                if(concat!=null) {
+                    LOG.info("Concatenating " + split.sources.length + " files without decoding records");
+                } else {
+                    LOG.info("Sources don't match the target format, copying records");
+                }
             }
-            //must have failed after succeeding to create file but before task finished - this is valid
-            //because path is selected with a UUID
-            if(!fs.exists(finalFile)) {
-                Path tmpFile = new Path(rootTmp + UUID.randomUUID().toString());
-                fs.mkdirs(tmpFile.getParent());
+            if(concat==null) {
+                os = fact.getOutputStream(fs, tmpFile);
+            }
+        }
 
-                String status = "Consolidating " + sources.size() + " files into " + tmpFile.toString();
-                LOG.info(status);
-                rprtr.setStatus(status);
-
-                RecordStreamFactory fact = args.streams;
-                fs.mkdirs(finalFile.getParent());
-
-                RecordOutputStream os = fact.getOutputStream(fs, tmpFile);
-                for(Path i: sources) {
-                    LOG.info("Opening " + i.toString() + " for consolidation");
-                    RecordInputStream is = fact.getInputStream(fs, i);
-                    byte[] record;
-                    while((record = is.readRawRecord()) != null) {
-                        os.writeRaw(record);
-                    }
-                    is.close();
-                    rprtr.progress();
+        private List<Path> getSources() {
+            List<Path> ret = new ArrayList<Path>();
+            for(String s: split.sources) {
+                ret.add(new Path(s));
+            }
+            return ret;
+        }
+
+        private void append(Path source) throws IOException {
+            if(concat!=null) {
+                concat.append(source, reporter);
+            } else {
+                LOG.info("Opening " + source.toString() + " for consolidation");
+                RecordInputStream is = args.streams.getInputStream(fs, source);
+                byte[] record;
+                while((record = is.readRawRecord()) != null) {
+                    os.writeRaw(record);
                 }
-                os.close();
+                is.close();
+            }
+            reporter.progress();
+        }
 
-                status = "Renaming " + tmpFile.toString() + " to " + finalFile.toString();
+        @Override
+        public void close() throws IOException {
+            if(split==null) return;
+            if(failed) {
+                closeQuietly();
+                return;
+            }
+            if(tmpFile!=null) {
+                if(concat!=null) concat.close();
+                else os.close();
+
+                String status = "Renaming " + tmpFile.toString() + " to " + finalFile.toString();
                 LOG.info(status);
-                rprtr.setStatus(status);
+                reporter.setStatus(status);
 
                 if(!fs.rename(tmpFile, finalFile))
                     throw new IOException("could not rename " + tmpFile.toString() + " to " + finalFile.toString());
             }
 
-            String status = "Deleting " + sources.size() + " original files";
+            reporter.incrCounter(Counter.FILES_MERGED, split.sources.length);
+            reporter.incrCounter(Counter.FILES_WRITTEN, 1);
+            reporter.incrCounter(Counter.BYTES_REWRITTEN, split.getNumBytes());
+            reporter.incrCounter(Counter.NEW_BYTES_REWRITTEN, split.newBytes);
+
+            String status = "Deleting " + split.sources.length + " original files";
             LOG.info(status);
-            rprtr.setStatus(status);
+            reporter.setStatus(status);
 
-            for(Path p: sources) {
+            for(Path p: getSources()) {
                 fs.delete(p, false);
-                rprtr.progress();
+                reporter.progress();
             }
-
         }
 
-        @Override
-        public void configure(JobConf conf) {
-            args = (ConsolidatorArgs) Utils.getObject(conf, ARGS);
-            rootTmp = new Path(conf.get("pail.consolidate.tmpdir", "/tmp/consolidator"));
+        private void closeQuietly() {
+            if(tmpFile==null) return;
             try {
-                fs = Utils.getFS(args.fsUri, conf);
+                if(concat!=null) concat.close();
+                else if(os!=null) os.close();
+                fs.delete(tmpFile, false);
             } catch(IOException e) {
-                throw new RuntimeException(e);
+                LOG.warn("Could not clean up " + tmpFile, e);
             }
         }
+
+        @Override
+        public void configure(JobConf conf) {
+            this.conf = conf;
+            requests = (List<ConsolidatorArgs>) Utils.getObject(conf, ARGS);
+            rootTmp = new Path(conf.get(TMPDIR, "/tmp/consolidator"));
+            stageInTarget = isStagingInTarget(conf);
+        }
     }
 
-    public static class ConsolidatorSplit implements InputSplit {
+    public static class ConsolidatorSplit implements SizedInputSplit {
         public String[] sources;
+        public long[] sizes;
         public String target;
+        public long newBytes;
+        public String[] hosts;
+        //index of the ConsolidatorArgs of the job the split belongs to
+        public int request;
 
         public ConsolidatorSplit() {
 
         }
 
-        public ConsolidatorSplit(String[] sources, String target) {
+        public ConsolidatorSplit(String[] sources, long[] sizes, String target, long newBytes, String[] hosts) {
+            this(0, sources, sizes, target, newBytes, hosts);
+        }
+
+        public ConsolidatorSplit(int request, String[] sources, long[] sizes, String target, long newBytes, String[] hosts) {
+            this.request = request;
             this.sources = sources;
+            this.sizes = sizes;
             this.target = target;
+            this.newBytes = newBytes;
+            this.hosts = hosts;
         }
 
+        public long getNumBytes() {
+            long ret = 0;
+            for(long s: sizes) {
+                ret += s;
+            }
+            return ret;
+        }
+
+        public int getNumFiles() {
+            return sources.length;
+        }
 
         public long getLength() throws IOException {
-            return 1;
+            return getNumBytes();
         }
 
         public String[] getLocations() throws IOException {
-            return new String[] {};
+            return hosts;
         }
 
         public void write(DataOutput d) throws IOException {
             WritableUtils.writeString(d, target);
             WritableUtils.writeStringArray(d, sources);
+            for(long s: sizes) {
+                WritableUtils.writeVLong(d, s);
+            }
+            WritableUtils.writeVLong(d, newBytes);
+            WritableUtils.writeStringArray(d, hosts);
+            WritableUtils.writeVInt(d, request);
         }
 
         public void readFields(DataInput di) throws IOException {
             target = WritableUtils.readString(di);
             sources = WritableUtils.readStringArray(di);
+            sizes = new long[sources.length];
+            for(int i=0; i<sizes.length; i++) {
+                sizes[i] = WritableUtils.readVLong(di);
+            }
+            newBytes = WritableUtils.readVLong(di);
+            hosts = WritableUtils.readStringArray(di);
+            request = WritableUtils.readVInt(di);
         }
 
     }
 
-    public static class ConsolidatorRecordReader implements RecordReader<ArrayWritable, Text> {
+    /**
+     * Emits each source of the split with its target. Progress is the share of the split's bytes in the sources
+     * already handed to the mapper.
+     */
+    public static class ConsolidatorRecordReader implements RecordReader<Text, Text> {
         private ConsolidatorSplit split;
-        boolean finished = false;
+        private long total;
+        private long done = 0;
+        private int pos = 0;
 
         public ConsolidatorRecordReader(ConsolidatorSplit split) {
             this.split = split;
+            this.total = split.getNumBytes();
         }
 
-        public boolean next(ArrayWritable k, Text v) throws IOException {
-            if(finished) return false;
-            Writable[] sources = new Writable[split.sources.length];
-            for(int i=0; i<sources.length; i++) {
-                sources[i] = new Text(split.sources[i]);
+        public boolean next(Text k, Text v) throws IOException {
+            if(pos > split.sources.length) return false;
+            //the mapper is done with the previous source when asking for the next one
+            if(pos > 0) done += split.sizes[pos-1];
+            if(pos == split.sources.length) {
+                pos++;
+                return false;
             }
-            k.set(sources);
+            k.set(split.sources[pos]);
             v.set(split.target);
-
-            finished = true;
+            pos++;
             return true;
         }
 
-        public ArrayWritable createKey() {
-            return new ArrayWritable(Text.class);
+        public Text createKey() {
+            return new Text();
         }
 
         public Text createValue() {
@@ -278,22 +568,21 @@ public class Consolidator {
         }
 
         public long getPos() throws IOException {
-            if(finished) return 1;
-            else return 0;
+            return done;
         }
 
         public void close() throws IOException {
         }
 
         public float getProgress() throws IOException {
-            if(finished) return 1;
-            else return 0;
+            if(total==0) return pos > split.sources.length ? 1 : 0;
+            return Math.min(1.0f, (float) done / total);
         }
 
     }
 
 
-    public static class ConsolidatorInputFormat implements InputFormat<ArrayWritable, Text> {
+    public static class ConsolidatorInputFormat implements InputFormat<Text, Text> {
 
         private static class PathSizePair implements Value {
             public Path path;
@@ -310,16 +599,30 @@ public class Consolidator {
 
         }
 
-        private List<PathSizePair> getFileSizePairs(FileSystem fs, List<Path> files) throws IOException {
+        private List<PathSizePair> getFileSizePairs(FileSystem fs, PathLister lister, String dir) throws IOException {
             List<PathSizePair> results = new ArrayList<PathSizePair>();
-            for(Path p: files) {
-                long size = fs.getContentSummary(p).getLength();
-                results.add(new PathSizePair(p, size));
+            if(lister instanceof StatusPathLister) {
+                for(FileStatus stat: ((StatusPathLister) lister).getFileStatuses(fs, dir)) {
+                    results.add(new PathSizePair(stat.getPath(), stat.getLen()));
+                }
+            } else {
+                for(Path p: lister.getFiles(fs, dir)) {
+                    long size = fs.getContentSummary(p).getLength();
+                    results.add(new PathSizePair(p, size));
+                }
             }
             return results;
         }
 
 
+        private long newSize(List<PathSizePair> pairs) {
+            long ret = 0;
+            for(PathSizePair p: pairs) {
+                if(!p.path.getName().startsWith(CONSOLIDATED_PREFIX)) ret += p.size;
+            }
+            return ret;
+        }
+
         private String[] pathsToStrs(List<PathSizePair> pairs) {
             String[] ret = new String[pairs.size()];
             for(int i=0; i<pairs.size(); i++) {
@@ -328,43 +631,168 @@ public class Consolidator {
             return ret;
         }
 
-        private List<InputSplit> createSplits(FileSystem fs, List<Path> files,
-            String target, long targetSize, String extension) throws IOException {
-            List<PathSizePair> working = getFileSizePairs(fs, files);
+        private long[] sizes(List<PathSizePair> pairs) {
+            long[] ret = new long[pairs.size()];
+            for(int i=0; i<pairs.size(); i++) {
+                ret[i] = pairs.get(i).size;
+            }
+            return ret;
+        }
+
+        /**
+         * Block locations of the files to merge, from one located listing per directory holding any of them.
+         */
+        private Map<Path, BlockLocation[]> getBlockLocations(FileSystem fs, List<List<PathSizePair>> groups, int minFiles) throws IOException {
+            Set<Path> parents = new HashSet<Path>();
+            for(List<PathSizePair> c: groups) {
+                if(c.size()>=minFiles) {
+                    for(PathSizePair p: c) {
+                        parents.add(fs.makeQualified(p.path).getParent());
+                    }
+                }
+            }
+            Map<Path, BlockLocation[]> ret = new HashMap<Path, BlockLocation[]>();
+            for(Path parent: parents) {
+                RemoteIterator<LocatedFileStatus> it = fs.listLocatedStatus(parent);
+                while(it.hasNext()) {
+                    LocatedFileStatus stat = it.next();
+                    if(!stat.isDirectory()) ret.put(stat.getPath(), stat.getBlockLocations());
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * The hosts holding the most bytes of the files, most first.
+         */
+        private String[] getTopHosts(FileSystem fs, List<PathSizePair> pairs, Map<Path, BlockLocation[]> locations) throws IOException {
+            final Map<String, Long> bytesPerHost = new HashMap<String, Long>();
+            for(PathSizePair p: pairs) {
+                BlockLocation[] blocks = locations.get(fs.makeQualified(p.path));
+                if(blocks==null) continue;
+                for(BlockLocation b: blocks) {
+                    for(String host: b.getHosts()) {
+                        Long curr = bytesPerHost.get(host);
+                        bytesPerHost.put(host, (curr==null ? 0 : curr) + b.getLength());
+                    }
+                }
+            }
+            List<String> hosts = new ArrayList<String>(bytesPerHost.keySet());
+            Collections.sort(hosts, new Comparator<String>() {
+                public int compare(String o1, String o2) {
+                    return bytesPerHost.get(o2).compareTo(bytesPerHost.get(o1));
+                }
+            });
+            hosts = hosts.subList(0, Math.min(MAX_HOSTS, hosts.size()));
+            return hosts.toArray(new String[hosts.size()]);
+        }
+
+        /**
+         * Adds every file that isn't in a group of the plan as a group of its own.
+         */
+        private List<List<PathSizePair>> addSingletons(List<PathSizePair> files, List<List<PathSizePair>> plan) {
+            Set<PathSizePair> planned = Collections.newSetFromMap(new IdentityHashMap<PathSizePair, Boolean>());
+            List<List<PathSizePair>> ret = new ArrayList<List<PathSizePair>>();
+            for(List<PathSizePair> c: plan) {
+                if(c.size()>1) {
+                    planned.addAll(c);
+                    ret.add(c);
+                }
+            }
+            for(PathSizePair p: files) {
+                if(!planned.contains(p)) {
+                    ret.add(Collections.singletonList(p));
+                }
+            }
+            return ret;
+        }
+
+        private List<InputSplit> createSplits(int request, FileSystem fs, PathLister lister, String target, long targetSize,
+            String extension, ConsolidationPolicy policy, boolean locality, boolean rewriteAll, String prefix) throws IOException {
+            List<PathSizePair> working = getFileSizePairs(fs, lister, target);
             List<InputSplit> ret = new ArrayList<InputSplit>();
-            List<List<PathSizePair>> splits = SubsetSum.split(working, targetSize);
+            List<List<PathSizePair>> splits = policy.plan(working, targetSize);
+            if(rewriteAll) splits = addSingletons(working, splits);
+            int minFiles = rewriteAll ? 1 : 2;
+            Map<Path, BlockLocation[]> locations = locality ? getBlockLocations(fs, splits, minFiles) : new HashMap<Path, BlockLocation[]>();
             for(List<PathSizePair> c: splits) {
-                if(c.size()>1) {
+                if(c.size()>=minFiles) {
                     String rand = UUID.randomUUID().toString();
                     String targetFile = new Path(target,
-                        "" + rand.charAt(0) + rand.charAt(1) + "/cons" +
+                        "" + rand.charAt(0) + rand.charAt(1) + "/" + prefix +
                         rand + extension).toString();
-                    ret.add(new ConsolidatorSplit(pathsToStrs(c), targetFile));
+                    ret.add(new ConsolidatorSplit(request, pathsToStrs(c), sizes(c), targetFile, newSize(c),
+                        getTopHosts(fs, c, locations)));
 
                 }
             }
-            Collections.sort(ret, new Comparator<InputSplit>() {
+            return ret;
+        }
+
+        //biggest first, so the longest tasks don't start last
+        private InputSplit[] sortSplits(List<InputSplit> splits) {
+            Collections.sort(splits, new Comparator<InputSplit>() {
                 public int compare(InputSplit o1, InputSplit o2) {
-                    return ((ConsolidatorSplit)o2).sources.length - ((ConsolidatorSplit)o1).sources.length;
+                    long b1 = ((ConsolidatorSplit) o1).getNumBytes();
+                    long b2 = ((ConsolidatorSplit) o2).getNumBytes();
+                    return b1 > b2 ? -1 : (b1 < b2 ? 1 : 0);
                 }
             });
-            return ret;
+            return splits.toArray(new InputSplit[splits.size()]);
+        }
+
+        private List<InputSplit> planDir(int request, String dir, ConsolidatorArgs args, JobConf conf) throws IOException {
+            FileSystem fs = Utils.getFS(dir, conf);
+            if(isStagingInTarget(conf)) cleanStaging(fs, dir, conf.getLong(STAGING_TTL, DEFAULT_STAGING_TTL));
+            return createSplits(request, fs, args.pathLister, dir, args.targetSizeBytes, args.extension, args.policy,
+                conf.getBoolean(LOCALITY, true), args.outputStreams!=null, args.getTargetPrefix());
         }
 
-        public InputSplit[] getSplits(JobConf conf, int ignored) throws IOException {
-            ConsolidatorArgs args = (ConsolidatorArgs) Utils.getObject(conf, ARGS);
-            PathLister lister = args.pathLister;
-            List<String> dirs = args.dirs;
+        public InputSplit[] getSplits(final JobConf conf, int ignored) throws IOException {
+            final List<ConsolidatorArgs> requests = (List<ConsolidatorArgs>) Utils.getObject(conf, ARGS);
+            int numDirs = 0;
+            for(ConsolidatorArgs args: requests) {
+                numDirs += args.dirs.size();
+            }
+            int numThreads = Math.min(numDirs, conf.getInt(PLANNING_THREADS, DEFAULT_PLANNING_THREADS));
             List<InputSplit> ret = new ArrayList<InputSplit>();
-            for(String dir: dirs) {
-                FileSystem fs = Utils.getFS(dir, conf);
-                ret.addAll(createSplits(fs, lister.getFiles(fs,dir),
-                    dir, args.targetSizeBytes, args.extension));
+            if(numThreads <= 1) {
+                for(int i=0; i<requests.size(); i++) {
+                    for(String dir: requests.get(i).dirs) {
+                        ret.addAll(planDir(i, dir, requests.get(i), conf));
+                    }
+                }
+                return sortSplits(ret);
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<List<InputSplit>>> planned = new ArrayList<Future<List<InputSplit>>>();
+                for(int i=0; i<requests.size(); i++) {
+                    final int request = i;
+                    for(final String dir: requests.get(i).dirs) {
+                        planned.add(pool.submit(new Callable<List<InputSplit>>() {
+                            public List<InputSplit> call() throws IOException {
+                                return planDir(request, dir, requests.get(request), conf);
+                            }
+                        }));
+                    }
+                }
+                for(Future<List<InputSplit>> f: planned) {
+                    ret.addAll(f.get());
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while planning consolidation", e);
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Failed to plan consolidation", e.getCause());
+            } finally {
+                pool.shutdownNow();
             }
-            return ret.toArray(new InputSplit[ret.size()]);
+            return sortSplits(ret);
         }
 
-        public RecordReader<ArrayWritable, Text> getRecordReader(InputSplit is, JobConf jc, Reporter rprtr) throws IOException {
+        public RecordReader<Text, Text> getRecordReader(InputSplit is, JobConf jc, Reporter rprtr) throws IOException {
             return new ConsolidatorRecordReader((ConsolidatorSplit) is);
         }
     }
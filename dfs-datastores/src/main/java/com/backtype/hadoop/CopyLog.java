@@ -0,0 +1,146 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Records which source files an incremental copy already put at its destination, so that running the copy again
+ * only moves what's missing. Logs live in a hidden _copylog directory at the root of the destination, one file per
+ * batch of copies, each line holding the source path relative to the source root, its length and modification
+ * time, and where it was copied to. Every copy adds logs, so planning compacts them back into one.
+ */
+public class CopyLog {
+    public static final String DIR = "_copylog";
+    private static final String EXTENSION = ".log";
+    private static final String SEPARATOR = "\t";
+
+    public static class Entry {
+        public String source;
+        public long length;
+        public long modificationTime;
+        public String dest;
+
+        public Entry(String source, long length, long modificationTime, String dest) {
+            this.source = source;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.dest = dest;
+        }
+
+        public String getKey() {
+            return key(source, length, modificationTime);
+        }
+    }
+
+    public static String key(String relSource, long length, long modificationTime) {
+        return relSource + SEPARATOR + length + SEPARATOR + modificationTime;
+    }
+
+    /**
+     * Name a source file is copied to when it has to be renamed. It only depends on the source, so a copy that is
+     * run again targets the same file instead of making a duplicate.
+     */
+    public static String renamedName(String key, String extension) {
+        return "fc_" + UUID.nameUUIDFromBytes(key.getBytes()).toString() + extension;
+    }
+
+    /**
+     * Returns the destination of every logged copy, by key.
+     */
+    public static Map<String, String> read(FileSystem fs, String destRoot) throws IOException {
+        return read(fs, destRoot, new ArrayList<Path>());
+    }
+
+    /**
+     * Same as read, adding the logs that were read to logsRead.
+     */
+    public static Map<String, String> read(FileSystem fs, String destRoot, List<Path> logsRead) throws IOException {
+        Map<String, String> ret = new HashMap<String, String>();
+        FileStatus[] logs;
+        try {
+            logs = fs.listStatus(new Path(destRoot, DIR));
+        } catch(FileNotFoundException e) {
+            return ret;
+        }
+        if(logs==null) return ret;
+        for(FileStatus stat: logs) {
+            if(!stat.getPath().getName().endsWith(EXTENSION)) continue;
+            logsRead.add(stat.getPath());
+            FSDataInputStream in = fs.open(stat.getPath());
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] parts = line.split(SEPARATOR);
+                    if(parts.length != 4) continue;
+                    ret.put(key(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])), parts[3]);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a new log with the given entries. The log only becomes visible once complete.
+     */
+    public static void write(FileSystem fs, String destRoot, List<Entry> entries) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(Entry e: entries) {
+            sb.append(e.getKey()).append(SEPARATOR).append(e.dest).append("\n");
+        }
+        write(fs, destRoot, sb.toString());
+    }
+
+    private static void write(FileSystem fs, String destRoot, String contents) throws IOException {
+        Path dir = new Path(destRoot, DIR);
+        String name = UUID.randomUUID().toString();
+        Path tmp = new Path(dir, name + ".tmp");
+        FSDataOutputStream out = fs.create(tmp, true);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Path log = new Path(dir, name + EXTENSION);
+        if(!fs.rename(tmp, log)) throw new IOException("could not rename " + tmp + " to " + log);
+    }
+
+    /**
+     * Replaces the logs in logsRead, whose contents are copied, with a single log holding only the copies whose key
+     * is in live, the keys of the sources as they are now. Copies of sources that changed or are gone are dropped.
+     * Does nothing when there's a single log with nothing to drop. The old logs are deleted once the new one is
+     * complete, so a failure in between leaves duplicate entries, never missing ones.
+     */
+    public static void compact(FileSystem fs, String destRoot, Map<String, String> copied, List<Path> logsRead,
+                               Set<String> live) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int kept = 0;
+        for(Map.Entry<String, String> e: copied.entrySet()) {
+            if(live.contains(e.getKey())) {
+                sb.append(e.getKey()).append(SEPARATOR).append(e.getValue()).append("\n");
+                kept++;
+            }
+        }
+        if(logsRead.size() <= 1 && kept == copied.size()) return;
+        if(kept > 0) write(fs, destRoot, sb.toString());
+        for(Path log: logsRead) {
+            fs.delete(log, false);
+        }
+    }
+}
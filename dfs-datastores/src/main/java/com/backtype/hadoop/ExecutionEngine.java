@@ -0,0 +1,19 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+
+/**
+ * Runs a map-only job described by a JobConf: its input format, mapper class and a NullOutputFormat. Lets the
+ * Consolidator, BalancedDistcp and Coercer run their plans either on the cluster or in-process.
+ *
+ * @see ExecutionEngines
+ */
+public interface ExecutionEngine {
+    /**
+     * Runs the job to completion and returns its counters. Throws if any task failed.
+     */
+    public Counters run(JobConf conf) throws IOException;
+}
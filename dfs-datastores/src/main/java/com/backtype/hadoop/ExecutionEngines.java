@@ -0,0 +1,30 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Picks the execution engine from pail.execution.engine:
+ *
+ * - "mapreduce" (default) submits a job to the cluster
+ * - "local" runs the splits on a thread pool in this JVM
+ * - "auto" runs locally when the job is small enough, see AutoExecutionEngine
+ */
+public class ExecutionEngines {
+    public static final String ENGINE = "pail.execution.engine";
+    public static final String MAPREDUCE = "mapreduce";
+    public static final String LOCAL = "local";
+    public static final String AUTO = "auto";
+
+    public static ExecutionEngine get(Configuration conf) {
+        String engine = conf.get(ENGINE, MAPREDUCE);
+        if(engine.equals(MAPREDUCE)) {
+            return new MapReduceExecutionEngine();
+        } else if(engine.equals(LOCAL)) {
+            return new LocalExecutionEngine();
+        } else if(engine.equals(AUTO)) {
+            return new AutoExecutionEngine();
+        } else {
+            throw new IllegalArgumentException("Unknown " + ENGINE + ": " + engine);
+        }
+    }
+}
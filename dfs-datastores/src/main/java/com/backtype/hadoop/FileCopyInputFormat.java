@@ -4,24 +4,44 @@ import com.backtype.support.SubsetSum;
 import com.backtype.support.SubsetSum.Value;
 import com.backtype.support.Utils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileCopyInputFormat implements InputFormat<Text, Text> {
+    public static Logger LOG = LoggerFactory.getLogger(FileCopyInputFormat.class);
+
     public static final String ARGS = "file_copy_args";
     public static final String WORK_PER_WORKER = "file_copy_work";
     public static final long DEFAULT_WORK_PER_WORKER = 256*1024*1024;
+    //threads used to list the source and destination trees while planning
+    public static final String PLANNING_THREADS = "pail.copy.planning.threads";
+    public static final int DEFAULT_PLANNING_THREADS = 16;
 
 
     public static class FileCopyArgs implements Serializable {
@@ -32,6 +52,10 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         public String renamableExtension = "";
         public String tmpRoot = "/tmp/filecopy";
         public boolean allToRoot = false;
+        //skip files already logged as copied in the CopyLog of dest, and log the files this copy moves
+        public boolean incremental = false;
+        //how files already at the destination are compared with their source
+        public FileIdentityStrategy identity = new FileIdentityStrategy.Legacy();
 
         public FileCopyArgs(String source, String dest, int renameMode, PathLister lister, String renamableExtension) {
             this.source = source;
@@ -52,28 +76,46 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
     public static class FileCopy {
         public String source;
         public String target;
+        public long length;
+        public long modificationTime;
 
         public FileCopy(String source, String target) {
+            this(source, target, 0, 0);
+        }
+
+        public FileCopy(String source, String target, long length, long modificationTime) {
             this.source = source;
             this.target = target;
+            this.length = length;
+            this.modificationTime = modificationTime;
         }
     }
 
-    public static class FileCopySplit implements InputSplit {
+    public static class FileCopySplit implements SizedInputSplit {
 
         public List<FileCopy> copies;
+        public long bytes;
 
         public FileCopySplit() {
         }
 
-        public FileCopySplit(List<FileCopy> copies) {
+        public FileCopySplit(List<FileCopy> copies, long bytes) {
             this.copies = copies;
+            this.bytes = bytes;
         }
 
         public long getLength() throws IOException {
             return copies.size();
         }
 
+        public long getNumBytes() {
+            return bytes;
+        }
+
+        public int getNumFiles() {
+            return copies.size();
+        }
+
         public String[] getLocations() throws IOException {
             return new String[]{};
         }
@@ -83,7 +125,10 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
             for (FileCopy copy : copies) {
                 WritableUtils.writeString(d, copy.source);
                 WritableUtils.writeString(d, copy.target);
+                WritableUtils.writeVLong(d, copy.length);
+                WritableUtils.writeVLong(d, copy.modificationTime);
             }
+            WritableUtils.writeVLong(d, bytes);
         }
 
         public void readFields(DataInput di) throws IOException {
@@ -92,8 +137,11 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
             for (int i = 0; i < size; i++) {
                 String source = WritableUtils.readString(di);
                 String target = WritableUtils.readString(di);
-                copies.add(new FileCopy(source, target));
+                long length = WritableUtils.readVLong(di);
+                long modificationTime = WritableUtils.readVLong(di);
+                copies.add(new FileCopy(source, target, length, modificationTime));
             }
+            bytes = WritableUtils.readVLong(di);
         }
     }
 
@@ -141,8 +189,8 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         FileCopy copy;
         long size;
 
-        public FileCopyAndSize(String source, String target, long size) {
-            this.copy = new FileCopy(source, target);
+        public FileCopyAndSize(String source, String target, long size, long modificationTime) {
+            this.copy = new FileCopy(source, target, size, modificationTime);
             this.size = size;
         }
 
@@ -151,6 +199,14 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         }
     }
 
+    private long totalSize(List<FileCopyAndSize> c) {
+        long ret = 0;
+        for(FileCopyAndSize f: c) {
+            ret += f.size;
+        }
+        return ret;
+    }
+
     private List<FileCopy> getFileCopies(List<FileCopyAndSize> c) {
         List<FileCopy> ret = new ArrayList<FileCopy>();
         for(FileCopyAndSize f: c) {
@@ -159,31 +215,149 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         return ret;
     }
 
+    private static String pathKey(Path p) {
+        return p.toUri().getPath();
+    }
+
+    /**
+     * Lists the source with a single pass over its tree instead of a status call per file. Listers that already know
+     * the statuses of their files are used as is.
+     */
+    private List<FileStatus> getSourceStatuses(FileSystem fs, FileCopyArgs args, ExecutorService pool) throws IOException {
+        if(args.lister instanceof StatusPathLister) {
+            return ((StatusPathLister) args.lister).getFileStatuses(fs, args.source);
+        }
+        List<Path> paths = args.lister.getFiles(fs, args.source);
+        Map<String, FileStatus> statuses = new HashMap<String, FileStatus>();
+        for(FileStatus stat: TreeLister.listFiles(fs, new Path(args.source), pool)) {
+            statuses.put(pathKey(stat.getPath()), stat);
+        }
+        List<FileStatus> ret = new ArrayList<FileStatus>(paths.size());
+        for(Path p: paths) {
+            FileStatus stat = statuses.get(pathKey(p));
+            //the lister can return files outside of the source tree
+            if(stat==null) stat = fs.getFileStatus(p);
+            ret.add(new FileStatus(stat.getLen(), stat.isDirectory(), stat.getReplication(), stat.getBlockSize(),
+                    stat.getModificationTime(), p));
+        }
+        return ret;
+    }
+
+    /**
+     * Lists the given directories of the destination, each on its own, rather than the whole destination tree.
+     */
+    private Map<String, FileStatus> listDestFiles(final FileSystem fs, Set<Path> dirs, ExecutorService pool) throws IOException {
+        List<Future<FileStatus[]>> listings = new ArrayList<Future<FileStatus[]>>();
+        for(final Path dir: dirs) {
+            listings.add(pool.submit(new Callable<FileStatus[]>() {
+                public FileStatus[] call() throws IOException {
+                    try {
+                        FileStatus[] ret = fs.listStatus(dir);
+                        return ret==null ? new FileStatus[0] : ret;
+                    } catch(FileNotFoundException e) {
+                        return new FileStatus[0];
+                    }
+                }
+            }));
+        }
+        Map<String, FileStatus> ret = new HashMap<String, FileStatus>();
+        for(Future<FileStatus[]> f: listings) {
+            for(FileStatus stat: getPlanned(f)) {
+                if(!stat.isDirectory()) ret.put(pathKey(stat.getPath()), stat);
+            }
+        }
+        return ret;
+    }
+
+    private static Path getDestPath(FileCopyArgs args, Path source) {
+        if(args.allToRoot) {
+            return new Path(args.dest, source.getName());
+        } else {
+            return new Path(args.dest, Utils.makeRelative(new Path(args.source), source));
+        }
+    }
+
+    private static <T> T getPlanned(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while planning copy", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Failed to plan copy", e.getCause());
+        }
+    }
+
     public InputSplit[] getSplits(JobConf conf, int mappers) throws IOException {
         FileCopyArgs args = (FileCopyArgs) Utils.getObject(conf, ARGS);
 
-        FileSystem fsSource = new Path(args.source).getFileSystem(new Configuration());
-        FileSystem fsDest = new Path(args.dest).getFileSystem(new Configuration());
+        Configuration fsConf = new Configuration();
+        args.identity.configure(fsConf, args);
+        FileSystem fsSource = new Path(args.source).getFileSystem(fsConf);
+        FileSystem fsDest = new Path(args.dest).getFileSystem(fsConf);
 
         long workPerWorker = conf.getLong(WORK_PER_WORKER, DEFAULT_WORK_PER_WORKER);
         List<FileCopyAndSize> all = new ArrayList<FileCopyAndSize>();
-        List<Path> fullPaths = args.lister.getFiles(fsSource, args.source);
-        for(Path p: fullPaths) {
-            long size = fsSource.getContentSummary(p).getLength();
-            Path destp;
-            if(args.allToRoot) {
-                destp = new Path(args.dest, p.getName());
-            } else {
-                destp = new Path(args.dest, Utils.makeRelative(new Path(args.source), p));
+        List<Path> logs = new ArrayList<Path>();
+        Map<String, String> copied = args.incremental ? CopyLog.read(fsDest, args.dest, logs) : new HashMap<String, String>();
+        Set<String> live = new HashSet<String>();
+        int skipped = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(conf.getInt(PLANNING_THREADS, DEFAULT_PLANNING_THREADS),
+                new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "file-copy-planner-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        List<FileStatus> sources = new ArrayList<FileStatus>();
+        Map<String, FileStatus> existing;
+        try {
+            Set<Path> destDirs = new HashSet<Path>();
+            for(FileStatus stat: getSourceStatuses(fsSource, args, pool)) {
+                Path p = stat.getPath();
+                String key = CopyLog.key(Utils.makeRelative(new Path(args.source), p), stat.getLen(), stat.getModificationTime());
+                if(copied.containsKey(key)) {
+                    live.add(key);
+                    skipped++;
+                } else {
+                    sources.add(stat);
+                    destDirs.add(getDestPath(args, p).getParent());
+                }
             }
+            //only the directories copied into, the destination can be much bigger than what is copied
+            existing = listDestFiles(fsDest, destDirs, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+        for(FileStatus stat: sources) {
+            Path p = stat.getPath();
+            long size = stat.getLen();
+            String key = CopyLog.key(Utils.makeRelative(new Path(args.source), p), size, stat.getModificationTime());
+            Path destp = getDestPath(args, p);
             String dest;
-            boolean targetExists = fsDest.exists(destp);
+            FileStatus target = existing.get(pathKey(destp));
+            boolean targetExists = target!=null;
             if(targetExists || args.renameMode==RenameMode.ALWAYS_RENAME) {
                 if(args.renameMode != RenameMode.NO_RENAME && p.getName().endsWith(args.renamableExtension)) {
-                    dest = new Path(destp.getParent(), "fc_" + UUID.randomUUID().toString() + args.renamableExtension).toString();
+                    if(args.incremental && targetExists && args.renameMode == RenameMode.RENAME_IF_NECESSARY &&
+                       args.identity.isSameFile(fsSource, stat, fsDest, target)) {
+                        //copied by a previous run that didn't get to log it
+                        skipped++;
+                        continue;
+                    }
+                    String name = args.incremental ? CopyLog.renamedName(key, args.renamableExtension) :
+                            "fc_" + UUID.randomUUID().toString() + args.renamableExtension;
+                    dest = new Path(destp.getParent(), name).toString();
                 } else {
                     if(!targetExists) {
                         dest = destp.toString();
+                    } else if(args.incremental && args.identity.isSameFile(fsSource, stat, fsDest, target)) {
+                        skipped++;
+                        continue;
                     } else {
                         throw new IllegalArgumentException("File already exists and can't rename source: " + p.toString() + " -> " + destp.toString());
                     }
@@ -191,7 +365,11 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
             } else {
                 dest = destp.toString();
             }
-            all.add(new FileCopyAndSize(p.toString(), dest, size));
+            all.add(new FileCopyAndSize(p.toString(), dest, size, stat.getModificationTime()));
+        }
+        if(args.incremental) {
+            LOG.info("Skipping " + skipped + " files already copied to " + args.dest + ", copying " + all.size());
+            CopyLog.compact(fsDest, args.dest, copied, logs, live);
         }
         List<List<FileCopyAndSize>> splits;
         if(all.size() < 10) { //speed up small appends
@@ -206,7 +384,7 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         }
         InputSplit[] ret = new InputSplit[splits.size()];
         for(int i = 0; i < splits.size(); i++) {
-            ret[i] = new FileCopySplit(getFileCopies(splits.get(i)));
+            ret[i] = new FileCopySplit(getFileCopies(splits.get(i)), totalSize(splits.get(i)));
         }
 
         return ret;
@@ -0,0 +1,273 @@
+package com.backtype.hadoop;
+
+import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import com.backtype.support.Utils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides whether a file already at the destination of a copy is the same as its source, so the copy can be
+ * skipped. Strategies trade how much they trust metadata against how much they have to read to be sure.
+ */
+public abstract class FileIdentityStrategy implements Serializable {
+    public static final String COUNTER_GROUP = "File identity strategy";
+
+    /**
+     * Name the checks of this strategy are counted under.
+     */
+    public abstract String getName();
+
+    public abstract boolean isSameFile(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException;
+
+    /**
+     * Same as isSameFile with paths, for callers that already listed both files. Strategies override it to skip the
+     * calls they can answer from the statuses.
+     */
+    public boolean isSameFile(FileSystem fsSource, FileStatus source, FileSystem fsDest, FileStatus dest) throws IOException {
+        return isSameFile(fsSource, source.getPath(), fsDest, dest.getPath());
+    }
+
+    /**
+     * Called with the job configuration before any filesystem is opened.
+     */
+    public void configure(Configuration conf, FileCopyArgs args) {
+    }
+
+    /**
+     * Called once source has been copied to dest, to record whatever later checks need.
+     */
+    public void copied(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+    }
+
+    public void close(FileSystem fsDest) throws IOException {
+    }
+
+    /**
+     * Compares checksums when both filesystems have them and lengths, and reads the first MB of both files when
+     * checksums are missing. Checksums of different filesystems never match, so copies across them always read.
+     */
+    public static class Legacy extends FileIdentityStrategy {
+        public String getName() {
+            return "legacy";
+        }
+
+        public boolean isSameFile(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            FileChecksum fc1 = fsSource.getFileChecksum(source);
+            FileChecksum fc2 = fsDest.getFileChecksum(dest);
+            return !(fc1 != null && fc2 != null && !fc1.equals(fc2) ||
+                    fsSource.getContentSummary(source).getLength()!=fsDest.getContentSummary(dest).getLength() ||
+                    ((fc1==null || fc2==null) && !Utils.firstNBytesSame(fsSource, source, fsDest, dest, 1024*1024)));
+        }
+
+        @Override
+        public boolean isSameFile(FileSystem fsSource, FileStatus source, FileSystem fsDest, FileStatus dest) throws IOException {
+            return source.getLen()==dest.getLen() && isSameFile(fsSource, source.getPath(), fsDest, dest.getPath());
+        }
+    }
+
+    /**
+     * Same length and modification time. Copies are given the modification time of their source, so this only
+     * recognizes files copied with this strategy, but never reads any data.
+     */
+    public static class LengthAndModificationTime extends FileIdentityStrategy {
+        public String getName() {
+            return "length-mtime";
+        }
+
+        public boolean isSameFile(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            FileStatus s = fsSource.getFileStatus(source);
+            FileStatus d = fsDest.getFileStatus(dest);
+            return isSameFile(fsSource, s, fsDest, d);
+        }
+
+        @Override
+        public boolean isSameFile(FileSystem fsSource, FileStatus source, FileSystem fsDest, FileStatus dest) {
+            return source.getLen()==dest.getLen() && source.getModificationTime()==dest.getModificationTime();
+        }
+
+        @Override
+        public void copied(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            fsDest.setTimes(dest, fsSource.getFileStatus(source).getModificationTime(), -1);
+        }
+    }
+
+    /**
+     * Compares content hashes stored in manifests at the roots of the source and destination. A manifest is any
+     * number of files in a hidden _manifest directory with a line per file holding its path relative to the root, a
+     * tab and its hash. Copies record the hash of their source in the destination manifest. Files without a hash on
+     * either side are compared with the fallback strategy.
+     */
+    public static class Manifest extends FileIdentityStrategy {
+        public static final String DIR = "_manifest";
+        private static final String EXTENSION = ".manifest";
+        private static final String SEPARATOR = "\t";
+
+        private FileIdentityStrategy _fallback;
+        private String _sourceRoot;
+        private String _destRoot;
+        private transient Map<String, String> _sourceHashes;
+        private transient Map<String, String> _destHashes;
+        private transient Map<String, String> _copied;
+
+        public Manifest() {
+            this(new Legacy());
+        }
+
+        public Manifest(FileIdentityStrategy fallback) {
+            _fallback = fallback;
+        }
+
+        public String getName() {
+            return "manifest";
+        }
+
+        @Override
+        public void configure(Configuration conf, FileCopyArgs args) {
+            _sourceRoot = args.source;
+            _destRoot = args.dest;
+            _fallback.configure(conf, args);
+        }
+
+        public boolean isSameFile(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            Boolean same = sameHash(fsSource, source, fsDest, dest);
+            return same!=null ? same : _fallback.isSameFile(fsSource, source, fsDest, dest);
+        }
+
+        @Override
+        public boolean isSameFile(FileSystem fsSource, FileStatus source, FileSystem fsDest, FileStatus dest) throws IOException {
+            Boolean same = sameHash(fsSource, source.getPath(), fsDest, dest.getPath());
+            return same!=null ? same : _fallback.isSameFile(fsSource, source, fsDest, dest);
+        }
+
+        //null when either file has no hash
+        private Boolean sameHash(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            if(_sourceHashes==null) {
+                _sourceHashes = read(fsSource, _sourceRoot);
+                _destHashes = read(fsDest, _destRoot);
+            }
+            String s = _sourceHashes.get(Utils.makeRelative(new Path(_sourceRoot), source));
+            String d = _destHashes.get(Utils.makeRelative(new Path(_destRoot), dest));
+            if(s==null || d==null) return null;
+            return s.equals(d);
+        }
+
+        @Override
+        public void copied(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            if(_sourceHashes==null) _sourceHashes = read(fsSource, _sourceRoot);
+            String hash = _sourceHashes.get(Utils.makeRelative(new Path(_sourceRoot), source));
+            if(hash!=null) {
+                if(_copied==null) _copied = new HashMap<String, String>();
+                _copied.put(Utils.makeRelative(new Path(_destRoot), dest), hash);
+            }
+            _fallback.copied(fsSource, source, fsDest, dest);
+        }
+
+        @Override
+        public void close(FileSystem fsDest) throws IOException {
+            if(_copied!=null && !_copied.isEmpty()) {
+                write(fsDest, _destRoot, _copied);
+                _copied.clear();
+            }
+            _fallback.close(fsDest);
+        }
+
+        /**
+         * Returns the hash of every file in the manifest of root, by relative path.
+         */
+        public static Map<String, String> read(FileSystem fs, String root) throws IOException {
+            Map<String, String> ret = new HashMap<String, String>();
+            FileStatus[] manifests;
+            try {
+                manifests = fs.listStatus(new Path(root, DIR));
+            } catch(FileNotFoundException e) {
+                return ret;
+            }
+            if(manifests==null) return ret;
+            for(FileStatus stat: manifests) {
+                if(!stat.getPath().getName().endsWith(EXTENSION)) continue;
+                FSDataInputStream in = fs.open(stat.getPath());
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        String[] parts = line.split(SEPARATOR);
+                        if(parts.length == 2) ret.put(parts[0], parts[1]);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Adds a manifest with the given hashes, by relative path, to root. It only becomes visible once complete.
+         */
+        public static void write(FileSystem fs, String root, Map<String, String> hashes) throws IOException {
+            Path dir = new Path(root, DIR);
+            String name = UUID.randomUUID().toString();
+            Path tmp = new Path(dir, name + ".tmp");
+            FSDataOutputStream out = fs.create(tmp, true);
+            try {
+                StringBuilder sb = new StringBuilder();
+                for(Map.Entry<String, String> e: hashes.entrySet()) {
+                    sb.append(e.getKey()).append(SEPARATOR).append(e.getValue()).append("\n");
+                }
+                out.write(sb.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Path manifest = new Path(dir, name + EXTENSION);
+            if(!fs.rename(tmp, manifest)) throw new IOException("could not rename " + tmp + " to " + manifest);
+        }
+    }
+
+    /**
+     * Compares composite CRC checksums, which only depend on the content of a file and not on its block size or
+     * how it's stored, so they can be compared across clusters and filesystems. Filesystems that can't produce one
+     * fall back to the legacy comparison.
+     */
+    public static class CompositeCrc extends FileIdentityStrategy {
+        public static final String COMBINE_MODE = "dfs.checksum.combine.mode";
+        public static final String COMPOSITE_CRC = "COMPOSITE_CRC";
+
+        private FileIdentityStrategy _fallback = new Legacy();
+
+        public String getName() {
+            return "composite-crc";
+        }
+
+        @Override
+        public void configure(Configuration conf, FileCopyArgs args) {
+            conf.set(COMBINE_MODE, COMPOSITE_CRC);
+        }
+
+        public boolean isSameFile(FileSystem fsSource, Path source, FileSystem fsDest, Path dest) throws IOException {
+            FileChecksum fc1 = fsSource.getFileChecksum(source);
+            FileChecksum fc2 = fsDest.getFileChecksum(dest);
+            if(fc1==null || fc2==null || !fc1.getAlgorithmName().equals(fc2.getAlgorithmName())) {
+                return _fallback.isSameFile(fsSource, source, fsDest, dest);
+            }
+            return fc1.equals(fc2) && fsSource.getFileStatus(source).getLen()==fsDest.getFileStatus(dest).getLen();
+        }
+
+        @Override
+        public boolean isSameFile(FileSystem fsSource, FileStatus source, FileSystem fsDest, FileStatus dest) throws IOException {
+            return source.getLen()==dest.getLen() && isSameFile(fsSource, source.getPath(), fsDest, dest.getPath());
+        }
+    }
+}
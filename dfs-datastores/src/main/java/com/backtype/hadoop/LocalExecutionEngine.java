@@ -0,0 +1,177 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the splits of a map-only job on a thread pool in this JVM, skipping job submission and scheduling. Meant for
+ * small jobs where the startup latency of a MapReduce job dominates. Each split gets its own mapper instance, like
+ * a task would. Only jobs without reducers writing to NullOutputFormat are supported.
+ */
+public class LocalExecutionEngine implements ExecutionEngine {
+    public static Logger LOG = LoggerFactory.getLogger(LocalExecutionEngine.class);
+
+    public static final String THREADS = "pail.execution.local.threads";
+    public static final int DEFAULT_THREADS = 8;
+
+    public static class LocalReporter implements Reporter {
+        private Counters _counters;
+        private InputSplit _split;
+
+        public LocalReporter(Counters counters, InputSplit split) {
+            _counters = counters;
+            _split = split;
+        }
+
+        public void setStatus(String status) {
+        }
+
+        public Counters.Counter getCounter(Enum<?> name) {
+            synchronized(_counters) {
+                return _counters.findCounter(name);
+            }
+        }
+
+        public Counters.Counter getCounter(String group, String name) {
+            synchronized(_counters) {
+                return _counters.findCounter(group, name);
+            }
+        }
+
+        public void incrCounter(Enum<?> key, long amount) {
+            synchronized(_counters) {
+                _counters.incrCounter(key, amount);
+            }
+        }
+
+        public void incrCounter(String group, String counter, long amount) {
+            synchronized(_counters) {
+                _counters.incrCounter(group, counter, amount);
+            }
+        }
+
+        public InputSplit getInputSplit() {
+            return _split;
+        }
+
+        public float getProgress() {
+            return 0;
+        }
+
+        public void progress() {
+        }
+    }
+
+    private static final OutputCollector NULL_COLLECTOR = new OutputCollector() {
+        public void collect(Object k, Object v) {
+        }
+    };
+
+    public Counters run(JobConf conf) throws IOException {
+        InputSplit[] splits = conf.getInputFormat().getSplits(conf, getNumThreads(conf));
+        return run(conf, splits);
+    }
+
+    private static int getNumThreads(JobConf conf) {
+        return Math.max(1, conf.getInt(THREADS, DEFAULT_THREADS));
+    }
+
+    /**
+     * Runs already computed splits, so a caller that planned the job doesn't need to plan it twice.
+     */
+    public Counters run(final JobConf conf, InputSplit[] splits) throws IOException {
+        if(conf.getNumReduceTasks() > 0 || !(conf.getOutputFormat() instanceof NullOutputFormat)) {
+            throw new IllegalArgumentException("Only map-only jobs with NullOutputFormat can run locally: " + conf.getJobName());
+        }
+        LOG.info("Running " + conf.getJobName() + " locally with " + splits.length + " splits");
+        final Counters counters = new Counters();
+        int numThreads = Math.min(getNumThreads(conf), Math.max(1, splits.length));
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "local-engine-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+            for(final InputSplit split: splits) {
+                tasks.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        runSplit(new JobConf(conf), split, new LocalReporter(counters, split));
+                        return null;
+                    }
+                }));
+            }
+            int failures = 0;
+            Throwable first = null;
+            for(Future<Object> f: tasks) {
+                try {
+                    f.get();
+                } catch(ExecutionException e) {
+                    failures++;
+                    if(first==null) {
+                        first = e.getCause();
+                        //no point running the rest, like a job that failed
+                        for(Future<Object> other: tasks) {
+                            other.cancel(true);
+                        }
+                    } else {
+                        LOG.error("Local task failed", e.getCause());
+                    }
+                } catch(CancellationException e) {
+                    failures++;
+                }
+            }
+            if(first!=null) {
+                throw new IOException(conf.getJobName() + " failed: " + failures + " of " + splits.length + " tasks did not complete", first);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + conf.getJobName(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return counters;
+    }
+
+    private static void runSplit(JobConf conf, InputSplit split, Reporter reporter) throws IOException {
+        InputFormat inputFormat = conf.getInputFormat();
+        Mapper mapper = ReflectionUtils.newInstance(conf.getMapperClass(), conf);
+        RecordReader reader = inputFormat.getRecordReader(split, conf, reporter);
+        try {
+            Object k = reader.createKey();
+            Object v = reader.createValue();
+            while(reader.next(k, v)) {
+                mapper.map(k, v, NULL_COLLECTOR, reporter);
+            }
+        } finally {
+            reader.close();
+            mapper.close();
+        }
+    }
+}
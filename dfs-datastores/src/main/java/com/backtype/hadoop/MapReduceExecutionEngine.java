@@ -0,0 +1,45 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+
+import java.io.IOException;
+
+/**
+ * Submits the job through JobClient and waits for it. The job is killed if the JVM exits while it's running.
+ */
+public class MapReduceExecutionEngine implements ExecutionEngine {
+
+    public Counters run(JobConf conf) throws IOException {
+        final RunningJob job = new JobClient(conf).submitJob(conf);
+        Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    job.killJob();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            while(!job.isComplete()) {
+                Thread.sleep(100);
+            }
+        } catch(InterruptedException e) {
+            job.killJob();
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch(IllegalStateException e) {
+                //already shutting down
+            }
+        }
+        if(!job.isSuccessful()) throw new IOException("Job failed: " + conf.getJobName());
+        return job.getCounters();
+    }
+}
@@ -0,0 +1,14 @@
+package com.backtype.hadoop;
+
+import com.backtype.support.SubsetSum;
+
+import java.util.List;
+
+/**
+ * Packs every file below the target size into files as close to the target size as possible, on every run.
+ */
+public class PackingConsolidationPolicy implements ConsolidationPolicy {
+    public <T extends SubsetSum.Value> List<List<T>> plan(List<T> files, long targetSize) {
+        return SubsetSum.split(files, targetSize);
+    }
+}
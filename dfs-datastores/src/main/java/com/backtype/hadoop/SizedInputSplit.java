@@ -0,0 +1,11 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.mapred.InputSplit;
+
+/**
+ * Split that knows how much data it covers, so an execution engine can size a job before running it.
+ */
+public interface SizedInputSplit extends InputSplit {
+    public long getNumBytes();
+    public int getNumFiles();
+}
@@ -0,0 +1,14 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+
+import java.util.List;
+
+/**
+ * PathLister that also returns the FileStatus of each file from its listing, so sizes are known without an extra
+ * namenode call per file. Must return the same files as getFiles.
+ */
+public interface StatusPathLister extends PathLister {
+    public List<FileStatus> getFileStatuses(FileSystem fs, String path);
+}
@@ -0,0 +1,67 @@
+package com.backtype.hadoop;
+
+import com.backtype.support.SubsetSum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Size-tiered consolidation. Files are bucketed in tiers by size, each tier holding files tierRatio times smaller
+ * than the one above it, and a tier is only merged once it holds filesPerMerge files. Files of at least
+ * nearTargetFraction of the target size are never rewritten.
+ *
+ * Unlike PackingConsolidationPolicy, a file that was already consolidated isn't rewritten every time a few small
+ * files show up next to it, so each byte gets rewritten about log(target size / file size) / log(tierRatio) times
+ * over its lifetime instead of once per run.
+ */
+public class TieredConsolidationPolicy implements ConsolidationPolicy {
+    public static final int DEFAULT_FILES_PER_MERGE = 4;
+    public static final double DEFAULT_TIER_RATIO = 4;
+    public static final double DEFAULT_NEAR_TARGET_FRACTION = 0.75;
+    private static final int MAX_TIERS = 16;
+
+    private int _filesPerMerge;
+    private double _tierRatio;
+    private double _nearTargetFraction;
+
+    public TieredConsolidationPolicy() {
+        this(DEFAULT_FILES_PER_MERGE, DEFAULT_TIER_RATIO, DEFAULT_NEAR_TARGET_FRACTION);
+    }
+
+    public TieredConsolidationPolicy(int filesPerMerge, double tierRatio, double nearTargetFraction) {
+        if(filesPerMerge < 2) throw new IllegalArgumentException("filesPerMerge must be at least 2");
+        if(tierRatio <= 1) throw new IllegalArgumentException("tierRatio must be greater than 1");
+        _filesPerMerge = filesPerMerge;
+        _tierRatio = tierRatio;
+        _nearTargetFraction = nearTargetFraction;
+    }
+
+    /**
+     * Tier 0 holds the largest files that still get merged, higher tiers hold smaller files. Returns -1 for files
+     * close enough to the target size to be left alone.
+     */
+    public int getTier(long size, long targetSize) {
+        if(size >= _nearTargetFraction * targetSize) return -1;
+        if(size <= 0) return MAX_TIERS - 1;
+        int tier = (int) Math.floor(Math.log((double) targetSize / size) / Math.log(_tierRatio));
+        return Math.max(0, Math.min(tier, MAX_TIERS - 1));
+    }
+
+    public <T extends SubsetSum.Value> List<List<T>> plan(List<T> files, long targetSize) {
+        List<List<T>> tiers = new ArrayList<List<T>>();
+        for(int i=0; i<MAX_TIERS; i++) {
+            tiers.add(new ArrayList<T>());
+        }
+        for(T f: files) {
+            int tier = getTier(f.getValue(), targetSize);
+            if(tier >= 0) tiers.get(tier).add(f);
+        }
+        List<List<T>> ret = new ArrayList<List<T>>();
+        for(List<T> tier: tiers) {
+            if(tier.size() >= _filesPerMerge) {
+                ret.addAll(SubsetSum.split(tier, targetSize));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,74 @@
+package com.backtype.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists every file under a directory, one level of the tree at a time with all the directories of a level listed
+ * in parallel. A tree of n files in d directories costs d listings rather than a call per file.
+ */
+public class TreeLister {
+    private static final FileStatus[] EMPTY = new FileStatus[0];
+
+    /**
+     * Returns the statuses of all files under root, or of root itself if it's a file. A missing root has no files.
+     */
+    public static List<FileStatus> listFiles(final FileSystem fs, Path root, ExecutorService pool) throws IOException {
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        FileStatus rootStatus;
+        try {
+            rootStatus = fs.getFileStatus(root);
+        } catch(FileNotFoundException e) {
+            return ret;
+        }
+        if(!rootStatus.isDirectory()) {
+            ret.add(rootStatus);
+            return ret;
+        }
+        List<Path> level = new ArrayList<Path>();
+        level.add(root);
+        while(!level.isEmpty()) {
+            List<Callable<FileStatus[]>> listings = new ArrayList<Callable<FileStatus[]>>();
+            for(final Path dir: level) {
+                listings.add(new Callable<FileStatus[]>() {
+                    public FileStatus[] call() throws IOException {
+                        try {
+                            FileStatus[] ret = fs.listStatus(dir);
+                            return ret==null ? EMPTY : ret;
+                        } catch(FileNotFoundException e) {
+                            //deleted since its parent was listed
+                            return EMPTY;
+                        }
+                    }
+                });
+            }
+            List<Path> next = new ArrayList<Path>();
+            try {
+                for(Future<FileStatus[]> f: pool.invokeAll(listings)) {
+                    for(FileStatus stat: f.get()) {
+                        if(stat.isDirectory()) next.add(stat.getPath());
+                        else ret.add(stat);
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while listing " + root, e);
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Failed to list " + root, e.getCause());
+            }
+            level = next;
+        }
+        return ret;
+    }
+}
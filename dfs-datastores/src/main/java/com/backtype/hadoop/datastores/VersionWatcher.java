@@ -0,0 +1,296 @@
+package com.backtype.hadoop.datastores;
+
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls the root of a versioned store for versions being finished and deleted, on behalf of every watch of that
+ * root in the JVM, so many clients of a store cost a single poller. The poller runs as often as the most frequent
+ * watch asks for.
+ *
+ * A poll stats the root and only lists it if its modification time moved, or is too recent to tell whether it will
+ * move again within the same tick. Finishing or deleting a version, and updating the _LATEST pointer, all change
+ * the root. A _SUCCESS flag is written inside a version directory instead, so directories still waiting for one are
+ * checked for it too: on every poll if they were modified in the last UNFINISHED_RECENT ms, otherwise only every
+ * UNFINISHED_RECHECK ms, as they are most likely abandoned. Any change to the root checks them all.
+ */
+public class VersionWatcher {
+    public static Logger LOG = LoggerFactory.getLogger(VersionWatcher.class);
+
+    // modification times this recent are listed again, as some filesystems only keep them to the second
+    private static final long MTIME_SLACK = 2000;
+    static final long UNFINISHED_RECENT = 60 * 60 * 1000;
+    static final long UNFINISHED_RECHECK = 10 * 60 * 1000;
+
+    public interface Listener {
+        public void versionAdded(long version);
+        public void versionDeleted(long version);
+    }
+
+    private static final Map<String, VersionWatcher> WATCHERS = new HashMap<String, VersionWatcher>();
+
+    private static final ExecutorService EVENTS = Executors.newCachedThreadPool(daemonThreads("version-watcher-events"));
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    static Watch watch(VersionedStore store, Listener listener, long pollMillis, Executor executor) throws IOException {
+        if(pollMillis <= 0) throw new IllegalArgumentException("Poll interval must be positive: " + pollMillis);
+        String key = store.getFileSystem().makeQualified(new Path(store.getRoot())).toString();
+        while(true) {
+            VersionWatcher watcher;
+            synchronized(WATCHERS) {
+                watcher = WATCHERS.get(key);
+                if(watcher==null) {
+                    watcher = new VersionWatcher(key, store);
+                    WATCHERS.put(key, watcher);
+                }
+            }
+            // the first listing of a store can be slow, so watches of other stores don't wait for it
+            try {
+                watcher.init();
+            } catch(IOException e) {
+                watcher.discardIfUnused();
+                throw e;
+            }
+            synchronized(WATCHERS) {
+                // the last watch of the watcher can have cancelled it in the meantime
+                if(WATCHERS.get(key)==watcher) return watcher.add(listener, pollMillis, executor==null ? EVENTS : executor);
+            }
+        }
+    }
+
+    static int numWatchers() {
+        synchronized(WATCHERS) {
+            return WATCHERS.size();
+        }
+    }
+
+    /**
+     * A registered listener. Events for it are delivered one at a time, in the order they were seen.
+     */
+    public class Watch {
+        private Listener _listener;
+        private Executor _executor;
+        private long _pollMillis;
+        private LinkedList<Runnable> _queued = new LinkedList<Runnable>();
+        private boolean _delivering = false;
+        private volatile boolean _cancelled = false;
+
+        private Watch(Listener listener, long pollMillis, Executor executor) {
+            _listener = listener;
+            _pollMillis = pollMillis;
+            _executor = executor;
+        }
+
+        /**
+         * Stops events for this watch. The poller stops once its root has no watches left.
+         */
+        public void cancel() {
+            _cancelled = true;
+            remove(this);
+        }
+
+        private void deliver(final List<Long> added, final List<Long> deleted) {
+            Runnable events = new Runnable() {
+                public void run() {
+                    for(Long v: deleted) {
+                        if(!_cancelled) _listener.versionDeleted(v);
+                    }
+                    for(Long v: added) {
+                        if(!_cancelled) _listener.versionAdded(v);
+                    }
+                }
+            };
+            synchronized(_queued) {
+                _queued.add(events);
+                if(_delivering) return;
+                _delivering = true;
+            }
+            try {
+                _executor.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                LOG.warn("Could not deliver version events for " + _key, e);
+                synchronized(_queued) {
+                    _queued.clear();
+                    _delivering = false;
+                }
+            }
+        }
+
+        private void drain() {
+            while(true) {
+                Runnable events;
+                synchronized(_queued) {
+                    events = _queued.poll();
+                    if(events==null) {
+                        _delivering = false;
+                        return;
+                    }
+                }
+                try {
+                    events.run();
+                } catch(RuntimeException e) {
+                    LOG.warn("Version listener failed for " + _key, e);
+                }
+            }
+        }
+    }
+
+    private String _key;
+    private VersionedStore _store;
+    private List<Watch> _watches = new CopyOnWriteArrayList<Watch>();
+    private ScheduledExecutorService _poller;
+    private ScheduledFuture<?> _task;
+    private long _interval = Long.MAX_VALUE;
+    private Set<Long> _versions;
+    // unfinished versions with the modification times of their directories
+    private Map<Long, Long> _unfinished = new HashMap<Long, Long>();
+    private long _lastModified = -1;
+    private long _lastUnfinishedCheck;
+
+    private VersionWatcher(String key, VersionedStore store) {
+        _key = key;
+        _store = store;
+        _poller = Executors.newSingleThreadScheduledExecutor(daemonThreads("version-watcher"));
+    }
+
+    // lists the versions to watch from, once
+    private synchronized void init() throws IOException {
+        if(_versions!=null) return;
+        _lastModified = rootModified();
+        refresh();
+    }
+
+    private void discardIfUnused() {
+        synchronized(WATCHERS) {
+            if(_watches.isEmpty() && WATCHERS.get(_key)==this) {
+                WATCHERS.remove(_key);
+                _poller.shutdown();
+            }
+        }
+    }
+
+    // called holding WATCHERS
+    private Watch add(Listener listener, long pollMillis, Executor executor) {
+        Watch watch = new Watch(listener, pollMillis, executor);
+        _watches.add(watch);
+        if(pollMillis < _interval) schedule(pollMillis);
+        return watch;
+    }
+
+    private void remove(Watch watch) {
+        synchronized(WATCHERS) {
+            if(!_watches.remove(watch)) return;
+            if(_watches.isEmpty()) {
+                _task.cancel(false);
+                _poller.shutdown();
+                WATCHERS.remove(_key);
+            } else {
+                long interval = Long.MAX_VALUE;
+                for(Watch w: _watches) {
+                    interval = Math.min(interval, w._pollMillis);
+                }
+                if(interval != _interval) schedule(interval);
+            }
+        }
+    }
+
+    private void schedule(long interval) {
+        if(_task!=null) _task.cancel(false);
+        _interval = interval;
+        _task = _poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void poll() {
+        try {
+            long modified = rootModified();
+            // object stores don't keep times for directories
+            boolean changed = modified==0 || modified != _lastModified ||
+                    System.currentTimeMillis() - modified < MTIME_SLACK;
+            _lastModified = modified;
+            if(changed || !_store.withSuccessFlag(unfinishedToCheck()).isEmpty()) refresh();
+        } catch(IOException e) {
+            LOG.warn("Could not poll versions of " + _key, e);
+        }
+    }
+
+    private long rootModified() throws IOException {
+        try {
+            return _store.getFileSystem().getFileStatus(new Path(_store.getRoot())).getModificationTime();
+        } catch(FileNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private List<Long> unfinishedToCheck() {
+        long now = System.currentTimeMillis();
+        boolean all = now - _lastUnfinishedCheck >= UNFINISHED_RECHECK;
+        if(all) _lastUnfinishedCheck = now;
+        List<Long> ret = new ArrayList<Long>();
+        for(Map.Entry<Long, Long> e: _unfinished.entrySet()) {
+            if(all || now - e.getValue() < UNFINISHED_RECENT) ret.add(e.getKey());
+        }
+        return ret;
+    }
+
+    private synchronized void refresh() throws IOException {
+        Map<Long, Long> unfinished = new HashMap<Long, Long>();
+        _lastUnfinishedCheck = System.currentTimeMillis();
+        Set<Long> versions = new HashSet<Long>(_store.getAllVersions(unfinished));
+        _unfinished = unfinished;
+        Set<Long> previous = _versions;
+        _versions = versions;
+        if(previous==null) return;
+
+        List<Long> added = new ArrayList<Long>(versions);
+        added.removeAll(previous);
+        List<Long> deleted = new ArrayList<Long>(previous);
+        deleted.removeAll(versions);
+        if(added.isEmpty() && deleted.isEmpty()) return;
+        Collections.sort(added);
+        Collections.sort(deleted);
+        for(Watch watch: _watches) {
+            watch.deliver(added, deleted);
+        }
+    }
+}
@@ -2,25 +2,40 @@ package com.backtype.hadoop.datastores;
 
 import com.backtype.support.Utils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.local.LocalFsWithoutBug;
 import org.apache.hadoop.security.AccessControlException;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 public class VersionedStore {
     public static final String FINISHED_VERSION_SUFFIX = ".version";
     public static final String HADOOP_SUCCESS_FLAG = "_SUCCESS";
+    public static final String LATEST_POINTER = "_LATEST";
 
     private String root;
     private FileSystem fs;
+    private boolean latestPointer = false;
 
     public VersionedStore(String path) throws IOException {
       this(Utils.getFS(path), path);
@@ -45,6 +60,24 @@ public class VersionedStore {
         return root;
     }
 
+    /**
+     * Keeps a _LATEST file in the root naming the most recent finished version, replaced atomically by
+     * succeedVersion, so mostRecentVersion reads that file rather than listing the store. Once the file exists,
+     * succeedVersion and deleteVersion keep it up to date whatever this is set to. This only decides whether the
+     * file gets created and read.
+     *
+     * Versions finishing at the same time can leave the pointer on an older one for a moment: succeedVersion
+     * lists the store after writing it and moves it forward again if a newer version finished meanwhile.
+     */
+    public VersionedStore setLatestPointer(boolean latestPointer) {
+        this.latestPointer = latestPointer;
+        return this;
+    }
+
+    public boolean isLatestPointer() {
+        return latestPointer;
+    }
+
     public String versionPath(long version) {
         return new Path(getRoot(), "" + version).toString();
     }
@@ -72,6 +105,10 @@ public class VersionedStore {
     }
 
     public Long mostRecentVersion(boolean skipVersionSuffix, Long maxVersion) throws IOException {
+        if(latestPointer && !skipVersionSuffix) {
+            Long latest = readLatestPointer();
+            if(latest != null && (maxVersion == null || latest <= maxVersion)) return latest;
+        }
         List<Long> all = getAllVersions(skipVersionSuffix);
         if (maxVersion == null) {
             return (all.size() == 0) ? null : all.get(0);
@@ -111,6 +148,12 @@ public class VersionedStore {
         // Be sure to delete success indicators before data
         fs.delete(new Path(tokenPath(version)), false);
         fs.delete(new Path(successFlagPath(version)), false);
+        Long latest = readLatestPointer();
+        if(latest != null && latest == version) {
+            List<Long> remaining = getAllVersions();
+            if(remaining.isEmpty()) fs.delete(new Path(root, LATEST_POINTER), false);
+            else writeLatestPointer(remaining.get(0));
+        }
         fs.delete(new Path(versionPath(version)), true);
     }
 
@@ -120,6 +163,13 @@ public class VersionedStore {
 
     public void succeedVersion(long version) throws IOException {
         createNewFile(tokenPath(version));
+        Long latest = readLatestPointer();
+        if(latest == null ? latestPointer : version >= latest) {
+            writeLatestPointer(version);
+            // another version may have finished after the read above and been overwritten
+            List<Long> all = getAllVersions();
+            if(!all.isEmpty() && all.get(0) > version) writeLatestPointer(all.get(0));
+        }
     }
 
     public void cleanup() throws IOException {
@@ -151,43 +201,131 @@ public class VersionedStore {
     }
 
     public List<Long> getAllVersions(boolean skipVersionSuffix) throws IOException {
+        if(!skipVersionSuffix) return getAllVersions(new HashMap<Long, Long>());
+
+        // backwards compatible if version suffix does not exist
         List<Long> ret = new ArrayList<Long>();
+        for(FileStatus status: listRoot()) {
+            if(Utils.isLong(status.getPath().getName())) {
+                ret.add(Long.valueOf(status.getPath().getName()));
+            }
+        }
+        Collections.sort(ret);
+        Collections.reverse(ret);
+        return ret;
+    }
 
-        Path rootPath = new Path(getRoot());
-        if (getFileSystem().exists(rootPath)) {
-            for(Path p: listDir(getRoot())) {
-                final FileStatus status = getFileSystem().getFileStatus(p);
-                if (skipVersionSuffix) {
-                    // backwards compatible if version suffix does not exist
-                    if(Utils.isLong(p.getName())) {
-                        ret.add(Long.valueOf(p.getName()));
-                    }
-                } else {
-                    if (!p.getName().startsWith("_")) {
-                        try {
-                            if (p.getName().endsWith(FINISHED_VERSION_SUFFIX)) {
-                                ret.add(validateAndGetVersion(p.toString()));
-                            } else if (status != null && status.isDir() && getFileSystem().exists(new Path(p, HADOOP_SUCCESS_FLAG))) {
-                                // FORCE the _SUCCESS flag into the versioned store directory.
-                                ret.add(validateAndGetVersion(p.toString() + FINISHED_VERSION_SUFFIX));
-                            }
-                        } catch (RuntimeException e) {
-                            // Skip this version
-                            continue;
-                        }
-                    }
-                }
+    /**
+     * Finished versions, most recent first. Version directories that are neither finished nor failed are put in
+     * unfinished, with their modification times.
+     */
+    List<Long> getAllVersions(Map<Long, Long> unfinished) throws IOException {
+        // everything needed comes from the one listing, except _SUCCESS flags of versions without a token
+        Map<Long, Long> dirs = new HashMap<Long, Long>();
+        Set<Long> tokens = new HashSet<Long>();
+        for(FileStatus status: listRoot()) {
+            String name = status.getPath().getName();
+            if(name.startsWith("_")) continue;
+            Long v = parseVersion(name);
+            if(v == null) continue;
+            if(name.endsWith(FINISHED_VERSION_SUFFIX)) tokens.add(v);
+            else if(status.isDirectory() && name.equals(v.toString())) dirs.put(v, status.getModificationTime());
+        }
+        List<Long> ret = new ArrayList<Long>();
+        List<Long> untokened = new ArrayList<Long>();
+        for(Long v: dirs.keySet()) {
+            if(tokens.contains(v)) ret.add(v);
+            else untokened.add(v);
+        }
+        // FORCE the _SUCCESS flag into the versioned store directory.
+        List<Long> flagged = withSuccessFlag(untokened);
+        ret.addAll(flagged);
+        untokened.removeAll(flagged);
+        for(Long v: untokened) {
+            unfinished.put(v, dirs.get(v));
+        }
+        Collections.sort(ret);
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    private FileStatus[] listRoot() throws IOException {
+        try {
+            return fs.listStatus(new Path(getRoot()));
+        } catch(FileNotFoundException e) {
+            return new FileStatus[0];
+        }
+    }
+
+    /**
+     * Those of versions that have a _SUCCESS flag, found with a single glob.
+     */
+    List<Long> withSuccessFlag(List<Long> versions) throws IOException {
+        List<Long> ret = new ArrayList<Long>();
+        if(versions.isEmpty()) return ret;
+        StringBuilder pattern = new StringBuilder("{");
+        for(Long v: versions) {
+            if(pattern.length() > 1) pattern.append(",");
+            pattern.append(v);
+        }
+        pattern.append("}/").append(HADOOP_SUCCESS_FLAG);
+        FileStatus[] flags = fs.globStatus(new Path(getRoot(), pattern.toString()));
+        if(flags != null) {
+            for(FileStatus flag: flags) {
+                ret.add(Long.valueOf(flag.getPath().getParent().getName()));
             }
-            Collections.sort(ret);
-            Collections.reverse(ret);
         }
         return ret;
     }
 
+    /**
+     * Calls listener as versions of this store are finished or deleted, checking every pollMillis. Every watch of a
+     * root in this JVM shares one poller. Events are delivered in order on a shared pool of daemon threads.
+     */
+    public VersionWatcher.Watch watch(VersionWatcher.Listener listener, long pollMillis) throws IOException {
+        return VersionWatcher.watch(this, listener, pollMillis, null);
+    }
+
+    /**
+     * Like watch(listener, pollMillis), delivering the events to listener with executor.
+     */
+    public VersionWatcher.Watch watch(VersionWatcher.Listener listener, long pollMillis, Executor executor) throws IOException {
+        return VersionWatcher.watch(this, listener, pollMillis, executor);
+    }
+
     public boolean hasVersion(long version) throws IOException {
         return getAllVersions().contains(version);
     }
 
+    private Long readLatestPointer() throws IOException {
+        FSDataInputStream in;
+        try {
+            in = fs.open(new Path(root, LATEST_POINTER));
+        } catch(FileNotFoundException e) {
+            return null;
+        }
+        try {
+            String line = new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine();
+            return line == null ? null : parseVersion(line.trim());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeLatestPointer(long version) throws IOException {
+        Path tmp = new Path(root, LATEST_POINTER + "." + UUID.randomUUID().toString());
+        FSDataOutputStream out = fs.create(tmp, true);
+        try {
+            out.write(Long.toString(version).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Configuration conf = new Configuration(fs.getConf());
+        conf.set("fs.AbstractFileSystem.file.impl", LocalFsWithoutBug.class.getName());
+        FileContext.getFileContext(fs.getUri(), conf)
+                .rename(tmp.makeQualified(fs), new Path(root, LATEST_POINTER).makeQualified(fs), Options.Rename.OVERWRITE);
+    }
+
     private String tokenPath(long version) {
         return new Path(root, "" + version + FINISHED_VERSION_SUFFIX).toString();
     }
@@ -252,18 +390,4 @@ public class VersionedStore {
             }
         }
     }
-
-    private List<Path> listDir(String dir) throws IOException {
-        List<Path> ret = new ArrayList<Path>();
-        if(fs instanceof LocalFileSystem) {
-            for(File f: new File(dir).listFiles()) {
-                ret.add(new Path(f.getAbsolutePath()));
-            }
-        } else {
-            for(FileStatus status: fs.listStatus(new Path(dir))) {
-                ret.add(status.getPath());
-            }
-        }
-        return ret;
-    }
 }
@@ -0,0 +1,34 @@
+package com.backtype.hadoop.formats;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * RecordStreamFactory that can merge files of its own format without decoding their records.
+ */
+public interface ConcatenatingStreamFactory extends RecordStreamFactory {
+    /**
+     * Target of a concatenation, which the sources are appended to one at a time.
+     */
+    public interface ConcatOutput {
+        public void append(Path source, Progressable progress) throws IOException;
+        public void close() throws IOException;
+    }
+
+    /**
+     * Creates target so that the records of sources can be appended to it as if they were written through
+     * getOutputStream. Returns null, without creating target, if the sources can't be merged this way and need to be
+     * copied record by record.
+     */
+    public ConcatOutput openConcat(FileSystem fs, List<Path> sources, Path target) throws IOException;
+
+    /**
+     * Appends the records of sources to the existing file target in place, without rewriting target and leaving the
+     * sources untouched. Returns false without changing anything if the filesystem or the files don't allow it.
+     */
+    public boolean concatInto(FileSystem fs, Path target, List<Path> sources, Progressable progress) throws IOException;
+}
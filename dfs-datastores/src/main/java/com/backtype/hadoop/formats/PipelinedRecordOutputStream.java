@@ -0,0 +1,187 @@
+package com.backtype.hadoop.formats;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * RecordOutputStream that moves serialization, compression and writing off the calling thread. Records are copied
+ * into batches which are handed to a shared executor. Batches of one stream are written one at a time and in order
+ * so the file contents are identical to a synchronous write, while different streams use the executor threads in
+ * parallel.
+ *
+ * The semaphore is shared by all streams of a writer and bounds the number of batches in flight: writeRaw blocks
+ * once it is exhausted. The first failure of the delegate is rethrown by the next call to writeRaw or close.
+ */
+public class PipelinedRecordOutputStream implements RecordOutputStream {
+
+    private static class Batch {
+        byte[] data;
+        int size = 0;
+        int[] lengths = new int[64];
+        int count = 0;
+
+        public Batch(int capacity) {
+            data = new byte[capacity];
+        }
+
+        public void add(byte[] record, int start, int length) {
+            if(size + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + length, data.length * 2));
+            }
+            if(count == lengths.length) {
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            System.arraycopy(record, start, data, size, length);
+            size += length;
+            lengths[count++] = length;
+        }
+    }
+
+    private RecordOutputStream _delegate;
+    private Executor _executor;
+    private Semaphore _permits;
+    private int _batchBytes;
+
+    private Batch _current = null;
+    private LinkedList<Batch> _queued = new LinkedList<Batch>();
+    private boolean _draining = false;
+    private int _outstanding = 0;
+    private volatile Throwable _error = null;
+    private volatile long _writeNanos = 0;
+
+    private Runnable _drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public PipelinedRecordOutputStream(RecordOutputStream delegate, Executor executor, Semaphore permits, int batchBytes) {
+        _delegate = delegate;
+        _executor = executor;
+        _permits = permits;
+        _batchBytes = batchBytes;
+    }
+
+    public void writeRaw(byte[] record) throws IOException {
+        writeRaw(record, 0, record.length);
+    }
+
+    public void writeRaw(byte[] record, int start, int length) throws IOException {
+        checkError();
+        if(_current == null) {
+            _current = new Batch(Math.max(_batchBytes, length));
+        }
+        _current.add(record, start, length);
+        if(_current.size >= _batchBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands the records buffered so far to the executor without waiting for them to be written.
+     */
+    public void flush() throws IOException {
+        if(_current == null || _current.count == 0) return;
+        Batch b = _current;
+        _current = null;
+        try {
+            _permits.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to queue records", e);
+        }
+        boolean schedule;
+        synchronized(this) {
+            _queued.add(b);
+            _outstanding++;
+            schedule = !_draining;
+            _draining = true;
+        }
+        if(schedule) {
+            try {
+                _executor.execute(_drainer);
+            } catch(RuntimeException e) {
+                synchronized(this) {
+                    _queued.clear();
+                    _draining = false;
+                    _outstanding = 0;
+                    notifyAll();
+                }
+                _permits.release();
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        while(true) {
+            Batch b;
+            synchronized(this) {
+                b = _queued.poll();
+                if(b == null) {
+                    _draining = false;
+                    return;
+                }
+            }
+            try {
+                if(_error == null) {
+                    long start = System.nanoTime();
+                    int offset = 0;
+                    for(int i=0; i<b.count; i++) {
+                        _delegate.writeRaw(b.data, offset, b.lengths[i]);
+                        offset += b.lengths[i];
+                    }
+                    _writeNanos += System.nanoTime() - start;
+                }
+            } catch(Throwable t) {
+                _error = t;
+            } finally {
+                _permits.release();
+                synchronized(this) {
+                    _outstanding--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Time spent by the executor threads writing to the delegate.
+     */
+    public long getWriteNanos() {
+        return _writeNanos;
+    }
+
+    private void checkError() throws IOException {
+        Throwable t = _error;
+        if(t != null) {
+            if(t instanceof Error) throw (Error) t;
+            throw new IOException("Asynchronous write failed", t);
+        }
+    }
+
+    /**
+     * Waits for all queued records to be written before closing the delegate. If a write failed, the delegate is
+     * left unclosed, like it would be after a failed synchronous write, so partial output is never committed.
+     */
+    public void close() throws IOException {
+        flush();
+        try {
+            synchronized(this) {
+                while(_outstanding > 0) {
+                    wait();
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for queued records", e);
+        }
+        checkError();
+        long start = System.nanoTime();
+        _delegate.close();
+        _writeNanos += System.nanoTime() - start;
+    }
+}
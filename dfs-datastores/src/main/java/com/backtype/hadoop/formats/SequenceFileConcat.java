@@ -0,0 +1,299 @@
+package com.backtype.hadoop.formats;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Concatenates SequenceFiles without decoding their records. The header of the first file is copied once, then the
+ * body of every file is copied as is: records for uncompressed and record compressed files, compressed blocks for
+ * block compressed files. Each file has its own random sync marker, so the markers are rewritten to the one of the
+ * output header along the way.
+ *
+ * Only files whose headers are identical apart from the sync marker can be concatenated: same version, key and value
+ * classes, compression and codec, and metadata.
+ */
+public class SequenceFileConcat implements ConcatenatingStreamFactory.ConcatOutput {
+    public static Logger LOG = LoggerFactory.getLogger(SequenceFileConcat.class);
+
+    // the Concat used by concatInto, for filesystems other than HDFS and for tests
+    public static final String CONCAT_CLASS = "pail.concat.class";
+
+    private static final int SYNC_ESCAPE = -1;
+    private static final int SYNC_HASH_SIZE = 16;
+
+    public static class Header {
+        public byte[] bytes;
+        public String keyClassName;
+        public String valueClassName;
+        public CompressionType type;
+        public String codecClassName;
+
+        public byte[] getSync() {
+            return Arrays.copyOfRange(bytes, bytes.length - SYNC_HASH_SIZE, bytes.length);
+        }
+
+        /**
+         * Headers match if everything but the sync marker is equal.
+         */
+        public boolean matches(Header other) {
+            if(bytes.length != other.bytes.length) return false;
+            for(int i=0; i<bytes.length - SYNC_HASH_SIZE; i++) {
+                if(bytes[i] != other.bytes[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Attaches whole files to the end of another without copying their data.
+     */
+    public interface Concat {
+        public boolean canConcat(FileSystem fs);
+
+        /**
+         * Appends sources to target and removes them, atomically.
+         */
+        public void concat(FileSystem fs, Path target, Path[] sources) throws IOException;
+    }
+
+    public static class HdfsConcat implements Concat {
+        public boolean canConcat(FileSystem fs) {
+            return fs instanceof DistributedFileSystem;
+        }
+
+        public void concat(FileSystem fs, Path target, Path[] sources) throws IOException {
+            ((DistributedFileSystem) fs).concat(target, sources);
+        }
+    }
+
+    public static Concat getConcat(Configuration conf) {
+        return ReflectionUtils.newInstance(conf.getClass(CONCAT_CLASS, HdfsConcat.class, Concat.class), conf);
+    }
+
+    public static Header readHeader(FileSystem fs, Path path) throws IOException {
+        Header ret = new Header();
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, fs.getConf());
+        long headerEnd;
+        try {
+            ret.keyClassName = reader.getKeyClassName();
+            ret.valueClassName = reader.getValueClassName();
+            if(reader.isBlockCompressed()) ret.type = CompressionType.BLOCK;
+            else if(reader.isCompressed()) ret.type = CompressionType.RECORD;
+            else ret.type = CompressionType.NONE;
+            ret.codecClassName = reader.isCompressed() ? reader.getCompressionCodec().getClass().getName() : null;
+            headerEnd = reader.getPosition();
+        } finally {
+            reader.close();
+        }
+        ret.bytes = new byte[(int) headerEnd];
+        FSDataInputStream in = fs.open(path);
+        try {
+            in.readFully(0, ret.bytes);
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    private FileSystem _fs;
+    private FSDataOutputStream _out;
+    private byte[] _sync;
+    private byte[] _buffer = new byte[64 * 1024];
+    private Map<Path, Header> _headers;
+
+    private SequenceFileConcat(FileSystem fs, Path target, Header first, Map<Path, Header> headers) throws IOException {
+        _fs = fs;
+        _headers = headers;
+        _sync = first.getSync();
+        _out = fs.create(target, true);
+        _out.write(first.bytes);
+    }
+
+    /**
+     * Checks that the sources are all written with the given classes, compression type and codec, then creates
+     * target so they can be appended to it one at a time. Returns null without creating target if they aren't.
+     */
+    public static SequenceFileConcat open(FileSystem fs, List<Path> sources, Path target, Class keyClass,
+                                          Class valueClass, CompressionType type, CompressionCodec codec) throws IOException {
+        if(sources.isEmpty()) return null;
+        Map<Path, Header> headers = new HashMap<Path, Header>();
+        for(Path p: sources) {
+            headers.put(p, readHeader(fs, p));
+        }
+        Header first = headers.get(sources.get(0));
+        if(!isWrittenWith(first, keyClass, valueClass, type, codec)) return null;
+        for(Header h: headers.values()) {
+            if(!first.matches(h)) return null;
+        }
+        return new SequenceFileConcat(fs, target, first, headers);
+    }
+
+    private static boolean isWrittenWith(Header header, Class keyClass, Class valueClass, CompressionType type,
+                                         CompressionCodec codec) {
+        if(!header.keyClassName.equals(keyClass.getName()) || !header.valueClassName.equals(valueClass.getName())) return false;
+        if(header.type != type) return false;
+        return type == CompressionType.NONE || header.codecClassName.equals(codec.getClass().getName());
+    }
+
+    /**
+     * Appends the records of sources to the end of the existing file target without rewriting it, leaving the
+     * sources in place. The bodies of the sources are written, with the sync marker of target, to files next to
+     * target that are then attached to it with the Concat set by CONCAT_CLASS, by default DistributedFileSystem.concat.
+     * That needs HDFS 2.7 or later, which allows blocks that aren't full in the middle of a file.
+     *
+     * Returns false without changing target if the Concat can't handle fs, the files aren't all written with the given classes,
+     * compression type and codec, or the namenode refuses the concat.
+     */
+    public static boolean concatInto(FileSystem fs, Path target, List<Path> sources, Class keyClass, Class valueClass,
+                                     CompressionType type, CompressionCodec codec, Progressable progress) throws IOException {
+        Concat concat = getConcat(fs.getConf());
+        if(!concat.canConcat(fs) || sources.isEmpty()) return false;
+        Header header = readHeader(fs, target);
+        if(!isWrittenWith(header, keyClass, valueClass, type, codec)) return false;
+        Map<Path, Header> headers = new HashMap<Path, Header>();
+        for(Path p: sources) {
+            Header h = readHeader(fs, p);
+            if(!header.matches(h)) return false;
+            headers.put(p, h);
+        }
+        FileStatus stat = fs.getFileStatus(target);
+        byte[] buffer = new byte[64 * 1024];
+        List<Path> bodies = new ArrayList<Path>();
+        boolean succeeded = false;
+        try {
+            for(Path p: sources) {
+                // hidden, so pail listings never see them
+                Path body = new Path(target.getParent(), "_" + target.getName() + "." + UUID.randomUUID().toString());
+                bodies.add(body);
+                FSDataOutputStream out = fs.create(body, true, buffer.length, stat.getReplication(), stat.getBlockSize());
+                try {
+                    copyBody(fs, p, headers.get(p), out, header.getSync(), buffer, progress);
+                } finally {
+                    out.close();
+                }
+            }
+            try {
+                concat.concat(fs, target, bodies.toArray(new Path[bodies.size()]));
+            } catch(IOException e) {
+                LOG.warn("Could not concat into " + target + ": " + e.getMessage());
+                return false;
+            }
+            succeeded = true;
+        } finally {
+            if(!succeeded) {
+                for(Path body: bodies) {
+                    fs.delete(body, false);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the records of source, without its header and with its sync markers replaced by sync, to out. Appended
+     * to a file written with the same header and sync, they read as if they had been written to it.
+     */
+    public static void writeBody(FileSystem fs, Path source, byte[] sync, FSDataOutputStream out, Progressable progress) throws IOException {
+        copyBody(fs, source, readHeader(fs, source), out, sync, new byte[64 * 1024], progress);
+    }
+
+    /**
+     * Appends the records of source, which must be one of the sources the concatenation was opened with.
+     */
+    public void append(Path source, Progressable progress) throws IOException {
+        Header header = _headers.get(source);
+        if(header==null) throw new IllegalArgumentException(source + " was not checked when opening the concatenation");
+        copyBody(_fs, source, header, _out, _sync, _buffer, progress);
+    }
+
+    public void close() throws IOException {
+        _out.close();
+    }
+
+    /**
+     * Concatenates the sources into target if they are all written with the given classes, compression type and
+     * codec. Returns false without creating target otherwise.
+     */
+    public static boolean concat(FileSystem fs, List<Path> sources, Path target, Class keyClass, Class valueClass,
+                                 CompressionType type, CompressionCodec codec, Progressable progress) throws IOException {
+        SequenceFileConcat concat = open(fs, sources, target, keyClass, valueClass, type, codec);
+        if(concat==null) return false;
+        try {
+            for(Path p: sources) {
+                concat.append(p, progress);
+            }
+        } finally {
+            concat.close();
+        }
+        return true;
+    }
+
+    private static void copyBody(FileSystem fs, Path source, Header header, FSDataOutputStream out, byte[] sync,
+                                 byte[] buffer, Progressable progress) throws IOException {
+        long length = fs.getFileStatus(source).getLen();
+        byte[] sourceSync = header.getSync();
+        byte[] readSync = new byte[SYNC_HASH_SIZE];
+        FSDataInputStream in = fs.open(source);
+        try {
+            in.seek(header.bytes.length);
+            while(in.getPos() < length) {
+                int len = in.readInt();
+                if(len == SYNC_ESCAPE) {
+                    in.readFully(readSync);
+                    if(!Arrays.equals(readSync, sourceSync)) throw new IOException("Bad sync marker in " + source);
+                    out.writeInt(SYNC_ESCAPE);
+                    out.write(sync);
+                    if(header.type == CompressionType.BLOCK) {
+                        // a block: number of records followed by the key lengths, keys, value lengths and values
+                        WritableUtils.writeVInt(out, WritableUtils.readVInt(in));
+                        for(int b=0; b<4; b++) {
+                            int bufferLen = WritableUtils.readVInt(in);
+                            WritableUtils.writeVInt(out, bufferLen);
+                            copyBytes(in, out, bufferLen, buffer);
+                        }
+                        if(progress!=null) progress.progress();
+                    }
+                } else if(header.type == CompressionType.BLOCK) {
+                    throw new IOException("Expected a sync marker before a block in " + source);
+                } else {
+                    // a record: record length, key length, key and value
+                    out.writeInt(len);
+                    copyBytes(in, out, len + 4, buffer);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if(progress!=null) progress.progress();
+    }
+
+    private static void copyBytes(FSDataInputStream in, FSDataOutputStream out, long amt, byte[] buffer) throws IOException {
+        while(amt > 0) {
+            int toRead = (int) Math.min(buffer.length, amt);
+            in.readFully(buffer, 0, toRead);
+            out.write(buffer, 0, toRead);
+            amt -= toRead;
+        }
+    }
+}
@@ -8,7 +8,10 @@ import org.apache.hadoop.fs.Path;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 public abstract class AbstractPail {
@@ -23,10 +26,20 @@ public abstract class AbstractPail {
         private Path finalFile;
         private RecordOutputStream delegate;
 
-        public PailOutputStream(String userfilename, boolean overwrite) throws IOException {
-            tempFile = new Path(_instance_root, userfilename + TEMP_EXTENSION);
+        public PailOutputStream(String userfilename, boolean overwrite, boolean direct) throws IOException {
             finalFile = new Path(_instance_root, userfilename + EXTENSION);
             if(finalFile.getName().equals(EXTENSION)) throw new IllegalArgumentException("Cannot create empty user file name");
+            if(direct) {
+                tempFile = finalFile;
+                mkdirs(finalFile.getParent());
+                if(exists(finalFile)) {
+                    if(!overwrite) throw new IOException("File already exists " + finalFile.toString());
+                    delete(finalFile, false);
+                }
+                delegate = createOutputStream(finalFile);
+                return;
+            }
+            tempFile = new Path(_instance_root, userfilename + TEMP_EXTENSION);
 
             mkdirs(tempFile.getParent());
             if(exists(tempFile)) {
@@ -51,7 +64,7 @@ public abstract class AbstractPail {
 
         public void close() throws IOException {
             delegate.close();
-            if(!rename(tempFile, finalFile)) {
+            if(tempFile!=finalFile && !rename(tempFile, finalFile)) {
                 throw new IOException("Unable to atomically create pailfile with rename " + tempFile.toString());
             }
         }
@@ -76,7 +89,16 @@ public abstract class AbstractPail {
     }
 
     public RecordOutputStream openWrite(String userfilename, boolean overwrite) throws IOException {
-        return new PailOutputStream(userfilename, overwrite);
+        return openWrite(userfilename, overwrite, false);
+    }
+
+    /**
+     * A direct write creates the pailfile under its final name instead of renaming a temporary file on close.
+     * The file is visible to readers while it is being written, so this is only for writers that control
+     * visibility some other way, like PailOutputCommitter.
+     */
+    public RecordOutputStream openWrite(String userfilename, boolean overwrite, boolean direct) throws IOException {
+        return new PailOutputStream(userfilename, overwrite, direct);
     }
 
     public RecordInputStream openRead(String userfilename) throws IOException {
@@ -126,6 +148,14 @@ public abstract class AbstractPail {
     protected abstract boolean mkdirs(Path path) throws IOException;
     protected abstract FileStatus[] listStatus(Path path) throws IOException;
 
+    /**
+     * Whether a pailfile found listing the pail is visible, see PailOutputCommitter. committed is shared by the
+     * checks of a listing.
+     */
+    protected boolean isCommitted(FileStatus stat, Map<String, Set<String>> committed) throws IOException {
+        return true;
+    }
+
     public List<String> getUserFileNames() throws IOException {
         List<String> ret = new ArrayList<String>();
         getFilesHelper(new Path(_instance_root), "", EXTENSION, true, ret);
@@ -188,6 +218,37 @@ public abstract class AbstractPail {
     }
 
 
+    /**
+     * Same files as getStoredFiles, with the FileStatus from the listing so callers don't need to stat each file.
+     */
+    public List<FileStatus> getStoredFileStatuses() throws IOException {
+        List<String> extensions = new ArrayList<String>();
+        extensions.add(EXTENSION);
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        getFilesHelper(new Path(_instance_root), "", extensions, true, new ArrayList<String>(), ret);
+        return ret;
+    }
+
+    /**
+     * Same as getStoredFileStatuses, including the files PailOutputCommitter hides as they are not committed.
+     */
+    public List<FileStatus> getAllStoredFileStatuses() throws IOException {
+        List<String> extensions = new ArrayList<String>();
+        extensions.add(EXTENSION);
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        getFilesHelper(new Path(_instance_root), "", extensions, true, new ArrayList<String>(), ret, null);
+        return ret;
+    }
+
+    public List<FileStatus> getStoredFileAndMetadataStatuses() throws IOException {
+        List<String> extensions = new ArrayList<String>();
+        extensions.add(META_EXTENSION);
+        extensions.add(EXTENSION);
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        getFilesHelper(new Path(_instance_root), "", extensions, false, new ArrayList<String>(), ret);
+        return ret;
+    }
+
     public List<Path> getStoredUnfinishedFiles() throws IOException {
         List<String> userfiles = new ArrayList<String>();
         getFilesHelper(new Path(_instance_root), "", TEMP_EXTENSION, true, userfiles);
@@ -248,15 +309,25 @@ public abstract class AbstractPail {
     }
 
     private void getFilesHelper(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files) throws IOException {
+        getFilesHelper(abs, rel, extensions, stripExtension, files, null);
+    }
+
+    private void getFilesHelper(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> statuses) throws IOException {
+        getFilesHelper(abs, rel, extensions, stripExtension, files, statuses, new HashMap<String, Set<String>>());
+    }
+
+    // committed is null to list the files that aren't committed too
+    private void getFilesHelper(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> statuses, Map<String, Set<String>> committed) throws IOException {
         FileStatus[] contents = listStatus(abs);
         for(FileStatus stat: contents) {
             Path p = stat.getPath();
             if(stat.isDir()) {
-                getFilesHelper(p, relify(rel, stat.getPath().getName()), extensions, stripExtension, files);
+                getFilesHelper(p, relify(rel, stat.getPath().getName()), extensions, stripExtension, files, statuses, committed);
             } else {
                 String filename = relify(rel, stat.getPath().getName());
                 for(String extension: extensions) {
                     if(filename.endsWith(extension) && stat.getLen()>0) {
+                        if(committed!=null && extension.equals(EXTENSION) && !isCommitted(stat, committed)) break;
                         String toAdd;
                         if(stripExtension) {
                             toAdd = Utils.stripExtension(filename, extension);
@@ -264,6 +335,7 @@ public abstract class AbstractPail {
                             toAdd = filename;
                         }
                         files.add(toAdd);
+                        if(statuses!=null) statuses.add(stat);
                         break;
                     }
                 }
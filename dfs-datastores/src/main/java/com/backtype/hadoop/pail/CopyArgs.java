@@ -1,5 +1,6 @@
 package com.backtype.hadoop.pail;
 
+import com.backtype.hadoop.FileIdentityStrategy;
 import org.apache.hadoop.conf.Configuration;
 
 public class CopyArgs {
@@ -7,12 +8,18 @@ public class CopyArgs {
     public boolean copyMetadata = true;
     public boolean force = false;
     public Configuration configuration = new Configuration();
+    //skip files a previous copy into the same pail already moved, see CopyLog
+    public boolean incremental = false;
+    //how files already in the target pail are compared with their source, null for the legacy comparison
+    public FileIdentityStrategy identity = null;
 
     public CopyArgs(CopyArgs other) {
         this.renameMode = other.renameMode;
         this.copyMetadata = other.copyMetadata;
         this.force = other.force;
         this.configuration = other.configuration;
+        this.incremental = other.incremental;
+        this.identity = other.identity;
     }
 
     public CopyArgs() {
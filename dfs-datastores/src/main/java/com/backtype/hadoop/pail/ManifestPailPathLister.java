@@ -0,0 +1,60 @@
+package com.backtype.hadoop.pail;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the files of a pail snapshot view for input formats. An input dir in the pail the view was taken of lists
+ * the files of the view there, which for a view backed by an HDFS snapshot are read from the snapshot. Pails outside
+ * the view are listed as usual. The manifest is read once per lister.
+ */
+public class ManifestPailPathLister implements PailPathLister {
+    private String _manifest;
+    private transient PailSnapshot _snapshot;
+    private transient List<Path> _files;
+
+    public ManifestPailPathLister(String manifest) {
+        _manifest = manifest;
+    }
+
+    private synchronized PailSnapshot getSnapshot(FileSystem fs) throws IOException {
+        if(_snapshot==null) {
+            _snapshot = Pail.openSnapshot(fs, _manifest);
+            _files = _snapshot.getStoredFiles();
+        }
+        return _snapshot;
+    }
+
+    private static String toPath(FileSystem fs, String path) {
+        return new Path(path).makeQualified(fs).toUri().getPath();
+    }
+
+    // path of dir relative to root, null if it isn't under root
+    private static String relativize(String root, String dir) {
+        if(dir.equals(root)) return "";
+        if(dir.startsWith(root + "/")) return dir.substring(root.length() + 1);
+        return null;
+    }
+
+    public List<Path> getPaths(Pail p) throws IOException {
+        if(p instanceof PailSnapshot) return p.getStoredFiles();
+        FileSystem fs = p.getFileSystem();
+        PailSnapshot snap = getSnapshot(fs);
+        String root = toPath(fs, snap.getInstanceRoot());
+        String dir = toPath(fs, p.getInstanceRoot());
+        String rel = relativize(root, dir);
+        // the live pail has files written after the view was taken, read the view instead
+        if(rel==null) rel = relativize(toPath(fs, snap.getSourceRoot()), dir);
+        if(rel==null) return p.getStoredFiles();
+        String prefix = rel.isEmpty() ? root + "/" : root + "/" + rel + "/";
+        List<Path> ret = new ArrayList<Path>();
+        for(Path file: _files) {
+            if(file.makeQualified(fs).toUri().getPath().startsWith(prefix)) ret.add(file);
+        }
+        return ret;
+    }
+}
@@ -1,46 +1,78 @@
 package com.backtype.hadoop.pail;
 
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.local.LocalFsWithoutBug;
+import org.apache.hadoop.mapred.Counters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.backtype.hadoop.BalancedDistcp;
 import com.backtype.hadoop.Coercer;
 import com.backtype.hadoop.Consolidator;
+import com.backtype.hadoop.Consolidator.ConsolidatorArgs;
+import com.backtype.hadoop.ConsolidationPolicy;
+import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import com.backtype.hadoop.PackingConsolidationPolicy;
 import com.backtype.hadoop.PathLister;
 import com.backtype.hadoop.RenameMode;
+import com.backtype.hadoop.StatusPathLister;
+import com.backtype.hadoop.formats.ConcatenatingStreamFactory;
 import com.backtype.hadoop.formats.RecordInputStream;
 import com.backtype.hadoop.formats.RecordOutputStream;
+import com.backtype.support.BoundedExecutor;
 import com.backtype.support.Utils;
 
 public class Pail<T> extends AbstractPail implements Iterable<T>{
     public static Logger LOG = LoggerFactory.getLogger(Pail.class);
 
     public static final String META = "pail.meta";
+    // renames, deletes and other per file namenode calls made at once by bulk operations like moveAppend and clear
+    public static final String METADATA_PARALLELISM = "pail.metadata.parallelism";
+    public static final int DEFAULT_METADATA_PARALLELISM = 16;
+    // staging for the files mergeAppend is merging, so a merge cut short can be finished without duplicating records
+    private static final String MERGING_DIR = "_merging";
+    private static final String MERGE_JOURNAL = "_journal";
+    // marks a pail that consolidate(newSpec) is moving to another format and holds that spec. The tag after it in
+    // the name starts the names of the files already rewritten, so they can be read and a rerun can skip them
+    private static final String MIGRATING = "_migrating";
 
     public class TypedRecordOutputStream implements RecordOutputStream {
         private HashMap<String, RecordOutputStream> _workers = new HashMap<String, RecordOutputStream>();
         private String _userfilename;
         private boolean _overwrite;
+        private boolean _direct;
 
         public TypedRecordOutputStream(String userfilename, boolean overwrite) {
+            this(userfilename, overwrite, false);
+        }
+
+        public TypedRecordOutputStream(String userfilename, boolean overwrite, boolean direct) {
             _userfilename = userfilename;
             _overwrite = overwrite;
+            _direct = direct;
         }
 
         public <T> void writeObject(T obj) throws IOException {
@@ -57,7 +89,7 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
                     throw new IllegalArgumentException("Cannot write object " + obj.toString() + " to " + p.toString() +
                             ". Conflicts with the structure of the datastore.");
                 }
-                _workers.put(targetDir, Pail.super.openWrite(p.toString(), _overwrite));
+                _workers.put(targetDir, Pail.super.openWrite(p.toString(), _overwrite, _direct));
             }
             RecordOutputStream os = _workers.get(targetDir);
             os.writeRaw(structure.serialize(obj));
@@ -86,7 +118,7 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         public void writeRaw(byte[] record, int start, int length) throws IOException {
             if(!_workers.containsKey(_userfilename)) {
                 checkValidStructure(_userfilename);
-                _workers.put(_userfilename, Pail.super.openWrite(_userfilename, _overwrite));
+                _workers.put(_userfilename, Pail.super.openWrite(_userfilename, _overwrite, _direct));
             }
             _workers.get(_userfilename).writeRaw(record, start, length);
         }
@@ -223,6 +255,12 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
     private PailStructure<T> _structure;
     private String _root;
     private FileSystem _fs;
+    // loaded on first use, so only consolidations and writes pay for looking for a migration marker
+    private boolean _migrationLoaded = false;
+    private Path _migrationMarker;
+    private String _migrationTag;
+    private PailSpec _migratingSpec;
+    private PailFormat _migratingFormat;
 
     public Pail(String path) throws IOException {
         this(Utils.getFS(path), path);
@@ -244,6 +282,59 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         _format = PailFormatFactory.create(_spec);
     }
 
+    /**
+     * Opens a pail at path with a known root and spec instead of looking for the spec up the tree.
+     */
+    protected Pail(FileSystem fs, String path, String root, PailSpec spec) throws IOException {
+        super(path);
+        _fs = fs;
+        _root = root;
+        _spec = spec;
+        _structure = _spec.getStructure();
+        _format = PailFormatFactory.create(_spec);
+    }
+
+    private synchronized void loadMigration() throws IOException {
+        if(_migrationLoaded) return;
+        FileStatus[] markers = _fs.globStatus(new Path(_root, MIGRATING + "-*"));
+        if(markers!=null && markers.length > 1)
+            throw new IllegalStateException("More than one format migration is in progress at " + _root);
+        if(markers!=null && markers.length==1) {
+            Path marker = markers[0].getPath();
+            PailSpec spec = PailSpec.readFromFileSystem(_fs, marker);
+            _migrationMarker = marker;
+            //a migration that switched the meta file over but didn't get to remove its marker is finished
+            if(!spec.equals(_spec)) {
+                _migrationTag = marker.getName().substring(MIGRATING.length() + 1);
+                _migratingSpec = spec;
+                _migratingFormat = PailFormatFactory.create(spec);
+            }
+        }
+        _migrationLoaded = true;
+    }
+
+    /**
+     * Read only pails, like snapshot views, refuse everything that would change their files.
+     */
+    protected boolean isReadOnly() {
+        return false;
+    }
+
+    private void checkWritable() {
+        if(isReadOnly()) throw new UnsupportedOperationException(getInstanceRoot() + " is read only");
+    }
+
+    private void checkNotMigrating() {
+        try {
+            loadMigration();
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(_migratingSpec!=null)
+            throw new IllegalStateException(_root + " is half way through a migration to " + _migratingSpec +
+                    ", call consolidate with that spec to finish it");
+    }
+
     public FileSystem getFileSystem() {
         return _fs;
     }
@@ -255,9 +346,15 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
 
     @Override
     public TypedRecordOutputStream openWrite(String subFileName, boolean overwrite) throws IOException {
+        return openWrite(subFileName, overwrite, false);
+    }
+
+    @Override
+    public TypedRecordOutputStream openWrite(String subFileName, boolean overwrite, boolean direct) throws IOException {
+        checkWritable();
         if(subFileName.contains(META)) throw new IllegalArgumentException("Illegal user file name " + subFileName);
         checkPathValidity(subFileName);
-        return new TypedRecordOutputStream(subFileName, overwrite);
+        return new TypedRecordOutputStream(subFileName, overwrite, direct);
     }
 
     @Override
@@ -295,6 +392,7 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
     }
 
     public PailFormat getFormat() {
+        checkNotMigrating();
         return _format;
     }
 
@@ -314,6 +412,8 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
 
     //returns if formats are same
     private boolean checkCombineValidity(Pail p, CopyArgs args) throws IOException {
+        checkNotMigrating();
+        p.checkNotMigrating();
         if(args.force) return true;
         PailSpec mine = getSpec();
         PailSpec other = p.getSpec();
@@ -351,16 +451,85 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         return ret;
     }
 
-    public void clear() throws IOException {
-        for(Path p: getStoredFiles()) {
-            delete(p, false);
-        }
+    /**
+     * Freezes the current files of this pail without copying them, recording them in a manifest at manifestPath
+     * and taking an HDFS snapshot of the pail, so the files stay readable even once deleted from the pail. Fails
+     * if the pail can't be snapshotted. Use openSnapshot to read it again later and deleteSnapshot to remove its
+     * files from this pail and release it.
+     */
+    public PailSnapshot<T> snapshotView(String manifestPath) throws IOException {
+        return snapshotView(manifestPath, false);
     }
 
-    public void deleteSnapshot(Pail snapshot) throws IOException {
-        for(String username: snapshot.getUserFileNames()) {
-            delete(username);
+    /**
+     * Same as snapshotView(manifestPath), but if readInPlace is set and no HDFS snapshot can be taken the view
+     * reads the files in the pail itself. Such a view only lasts as long as its files do, so consolidating the pail
+     * breaks it.
+     */
+    public PailSnapshot<T> snapshotView(String manifestPath, boolean readInPlace) throws IOException {
+        Path manifest = new Path(manifestPath);
+        FileSystem manifestFs = manifest.getFileSystem(_fs.getConf());
+        if(manifestFs.exists(manifest)) throw new IllegalArgumentException(manifestPath + " already exists");
+        String name = "pail-" + UUID.randomUUID().toString();
+        String hdfsSnapshot = null;
+        try {
+            _fs.createSnapshot(new Path(getInstanceRoot()), name);
+            hdfsSnapshot = name;
+        } catch(UnsupportedOperationException e) {
+            if(!readInPlace) throw new UnsupportedOperationException("No snapshots on " + _fs.getUri() +
+                    ", a view of " + getInstanceRoot() + " can only read its files in place", e);
+            LOG.debug("No snapshots on " + _fs.getUri() + ", snapshotting " + getInstanceRoot() + " with a manifest");
+        } catch(IOException e) {
+            if(!readInPlace) throw e;
+            LOG.info("Could not take a snapshot of " + getInstanceRoot() + ", using a manifest: " + e.getMessage());
         }
+        return PailSnapshot.create(_fs, manifestPath, getInstanceRoot(), hdfsSnapshot, getSpec());
+    }
+
+    public static PailSnapshot openSnapshot(String manifestPath) throws IOException {
+        return openSnapshot(Utils.getFS(manifestPath), manifestPath);
+    }
+
+    public static PailSnapshot openSnapshot(FileSystem fs, String manifestPath) throws IOException {
+        return PailSnapshot.read(fs, manifestPath);
+    }
+
+    private BoundedExecutor metadataExecutor(Configuration conf, String name) {
+        return new BoundedExecutor(name, conf.getInt(METADATA_PARALLELISM, DEFAULT_METADATA_PARALLELISM));
+    }
+
+    public void clear() throws IOException {
+        checkWritable();
+        metadataExecutor(_fs.getConf(), "pail-clear").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor executor) throws IOException {
+                for(final Path p: getStoredFiles()) {
+                    executor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            delete(p, false);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the files of snapshot from this pail. A snapshot view is released afterwards.
+     */
+    public void deleteSnapshot(final Pail snapshot) throws IOException {
+        checkWritable();
+        metadataExecutor(_fs.getConf(), "pail-delete-snapshot").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor executor) throws IOException {
+                for(final String username: snapshot.getUserFileNames()) {
+                    executor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            delete(username);
+                        }
+                    });
+                }
+            }
+        });
+        if(snapshot instanceof PailSnapshot) ((PailSnapshot) snapshot).release();
     }
 
     public Pail createEmptyMimic(FileSystem fileSystem, String path) throws IOException {
@@ -413,16 +582,22 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
      *
      */
     public void copyAppend(Pail p, CopyArgs args) throws IOException {
+        checkWritable();
         args = new CopyArgs(args);
         if(args.renameMode==null) args.renameMode = RenameMode.ALWAYS_RENAME;
 
         boolean formatsSame = checkCombineValidity(p, args);
         String sourceQual = getQualifiedRoot(p);
         String destQual = getQualifiedRoot(this);
+        PailPathLister lister = p instanceof PailSnapshot ? ((PailSnapshot) p).getPathLister(args.copyMetadata) :
+                new PailPathLister(args.copyMetadata);
+        FileCopyArgs copyArgs = new FileCopyArgs(sourceQual, destQual, args.renameMode, lister, EXTENSION);
+        copyArgs.incremental = args.incremental;
+        if(args.identity!=null) copyArgs.identity = args.identity;
         if(formatsSame) {
-            BalancedDistcp.distcp(sourceQual, destQual, args.renameMode, new PailPathLister(args.copyMetadata), EXTENSION, args.configuration);
+            BalancedDistcp.distcp(copyArgs, args.configuration);
         } else {
-            Coercer.coerce(sourceQual, destQual, args.renameMode, new PailPathLister(args.copyMetadata), p.getFormat(), getFormat(), EXTENSION, args.configuration);
+            Coercer.coerce(copyArgs, p.getFormat(), getFormat(), args.configuration);
         }
     }
 
@@ -436,36 +611,295 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         moveAppend(p, args);
     }
 
-    public void moveAppend(Pail p, CopyArgs args) throws IOException {
+    public void moveAppend(final Pail p, CopyArgs args) throws IOException {
+        checkWritable();
+        p.checkWritable();
         args = new CopyArgs(args);
         if(args.renameMode==null) args.renameMode = RenameMode.ALWAYS_RENAME;
         boolean formatsSame = checkCombineValidity(p, args);
         if(!p._fs.getUri().equals(_fs.getUri())) throw new IllegalArgumentException("Cannot move append between different filesystems");
         if(!formatsSame) throw new IllegalArgumentException("Cannot move append different format pails together");
 
-        for(String name: p.getUserFileNames()) {
-            String parent = new Path(name).getParent().toString();
-            _fs.mkdirs(new Path(getInstanceRoot() + "/" + parent));
-            Path storedPath = p.toStoredPath(name);
-            Path targetPath = toStoredPath(name);
-            if(_fs.exists(targetPath) || args.renameMode == RenameMode.ALWAYS_RENAME) {
-                if(args.renameMode == RenameMode.NO_RENAME)
-                    throw new IllegalArgumentException("Collision of filenames " + targetPath.toString());
-                if(parent.equals("")) targetPath = toStoredPath("ma_" + UUID.randomUUID().toString());
-                else targetPath = toStoredPath(parent + "/ma_" + UUID.randomUUID().toString());
-            }
-            _fs.rename(storedPath, targetPath);
-        }
-
-        if(args.copyMetadata) {
-            for(String metaName: p.getMetadataFileNames()) {
-                Path source = p.toStoredMetadataPath(metaName);
-                Path dest = toStoredMetadataPath(metaName);
-                if(_fs.exists(dest)) {
-                    throw new IllegalArgumentException("Metadata collision: " + source.toString() + " -> " + dest.toString());
+        final Set<String> existing = new HashSet<String>();
+        if(args.renameMode != RenameMode.ALWAYS_RENAME) {
+            //one listing instead of an exists call per file
+            for(String name: getUserFileNames()) {
+                existing.add(toStoredPath(name).toString());
+            }
+        }
+        final int renameMode = args.renameMode;
+        metadataExecutor(args.configuration, "pail-move-append").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor executor) throws IOException {
+                for(final String name: p.getUserFileNames()) {
+                    final Path storedPath = p.toStoredPath(name);
+                    executor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            String parent = new Path(name).getParent().toString();
+                            executor.mkdirs(_fs, new Path(getInstanceRoot() + "/" + parent));
+                            Path targetPath = toStoredPath(name);
+                            if(existing.contains(targetPath.toString()) || renameMode == RenameMode.ALWAYS_RENAME) {
+                                if(renameMode == RenameMode.NO_RENAME)
+                                    throw new IllegalArgumentException("Collision of filenames " + targetPath.toString());
+                                if(parent.equals("")) targetPath = toStoredPath("ma_" + UUID.randomUUID().toString());
+                                else targetPath = toStoredPath(parent + "/ma_" + UUID.randomUUID().toString());
+                            }
+                            if(!_fs.rename(storedPath, targetPath))
+                                throw new IOException("could not rename " + storedPath + " to " + targetPath);
+                        }
+                    });
+                }
+            }
+        });
+
+        if(args.copyMetadata) moveMetadata(p, args);
+    }
+
+    private void moveMetadata(final Pail p, CopyArgs args) throws IOException {
+        metadataExecutor(args.configuration, "pail-move-append-metadata").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor metaExecutor) throws IOException {
+                for(String metaName: p.getMetadataFileNames()) {
+                    final Path source = p.toStoredMetadataPath(metaName);
+                    final Path dest = toStoredMetadataPath(metaName);
+                    metaExecutor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            if(_fs.exists(dest)) {
+                                throw new IllegalArgumentException("Metadata collision: " + source.toString() + " -> " + dest.toString());
+                            }
+                            _fs.rename(source, dest);
+                        }
+                    });
                 }
-                _fs.rename(source, dest);
             }
+        });
+    }
+
+    // an existing or incoming file with the small incoming files to merge into it
+    private static class MergeBin {
+        Path base;
+        boolean incoming;
+        long size;
+        List<Path> sources = new ArrayList<Path>();
+
+        MergeBin(Path base, boolean incoming, long size) {
+            this.base = base;
+            this.incoming = incoming;
+            this.size = size;
+        }
+    }
+
+    public void mergeAppend(Pail p, long targetSize) throws IOException {
+        mergeAppend(p, targetSize, new CopyArgs());
+    }
+
+    /**
+     * Moves the files of p into this pail like moveAppend, merging the small ones into under-full files of this pail
+     * in the same directory, or into each other, up to targetSize. On HDFS records are attached to existing files
+     * with concat so those aren't rewritten; elsewhere the files are merged into a new file that replaces the
+     * existing one. Files are always given new names. Formats that can't concatenate their files, and files whose
+     * headers don't match, are moved as they are.
+     *
+     * The files merged into an existing file are first moved into a hidden staging directory of this pail, with a
+     * journal of the length the existing file had. If a merge is cut short, the next mergeAppend into this pail
+     * finishes it: staged files whose records didn't reach the existing file are moved in as they are, the others are
+     * dropped. Merge appends into the same pail must not run concurrently.
+     */
+    public void mergeAppend(Pail p, final long targetSize, CopyArgs args) throws IOException {
+        checkWritable();
+        p.checkWritable();
+        args = new CopyArgs(args);
+        args.renameMode = RenameMode.ALWAYS_RENAME;
+        boolean formatsSame = checkCombineValidity(p, args);
+        if(!p._fs.getUri().equals(_fs.getUri())) throw new IllegalArgumentException("Cannot merge append between different filesystems");
+        if(!formatsSame) throw new IllegalArgumentException("Cannot merge append different format pails together");
+        if(!(_format instanceof ConcatenatingStreamFactory)) {
+            moveAppend(p, args);
+            return;
+        }
+        final ConcatenatingStreamFactory fact = (ConcatenatingStreamFactory) _format;
+        recoverMerges();
+
+        Path sourceRoot = new Path(p.getInstanceRoot()).makeQualified(_fs);
+        final Map<String, List<FileStatus>> incoming = new HashMap<String, List<FileStatus>>();
+        for(FileStatus stat: p.getStoredFileStatuses()) {
+            Path parent = new Path(Utils.makeRelative(sourceRoot, stat.getPath())).getParent();
+            String dir = parent==null ? "" : parent.toString();
+            if(!incoming.containsKey(dir)) incoming.put(dir, new ArrayList<FileStatus>());
+            incoming.get(dir).add(stat);
+        }
+
+        metadataExecutor(args.configuration, "pail-merge-append").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor executor) throws IOException {
+                for(final String dir: incoming.keySet()) {
+                    for(final MergeBin bin: planMerge(dir, incoming.get(dir), targetSize)) {
+                        executor.submit(new BoundedExecutor.Operation() {
+                            public void run() throws IOException {
+                                executor.mkdirs(_fs, new Path(getInstanceRoot() + "/" + dir));
+                                if(bin.incoming) bin.base = moveIn(bin.base, dir);
+                                if(!bin.sources.isEmpty()) merge(fact, bin.base, bin.sources, dir);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+        if(args.copyMetadata) moveMetadata(p, args);
+    }
+
+    /**
+     * First fit decreasing of the incoming files of a directory into its under-full files, opening new bins with
+     * incoming files when nothing has room. Files at least targetSize get a bin of their own.
+     */
+    private List<MergeBin> planMerge(String dir, List<FileStatus> files, long targetSize) throws IOException {
+        List<MergeBin> bins = new ArrayList<MergeBin>();
+        FileStatus[] existing;
+        try {
+            existing = _fs.listStatus(dir.length()==0 ? new Path(getInstanceRoot()) : new Path(getInstanceRoot(), dir));
+        } catch(FileNotFoundException e) {
+            existing = null;
+        }
+        if(existing!=null) {
+            Map<String, Set<String>> committed = new HashMap<String, Set<String>>();
+            for(FileStatus stat: existing) {
+                String name = stat.getPath().getName();
+                if(!stat.isDirectory() && name.endsWith(EXTENSION) && !name.startsWith("_") &&
+                   stat.getLen() > 0 && stat.getLen() < targetSize && isCommitted(stat, committed)) {
+                    bins.add(new MergeBin(stat.getPath(), false, stat.getLen()));
+                }
+            }
+        }
+        List<FileStatus> sorted = new ArrayList<FileStatus>(files);
+        Collections.sort(sorted, new Comparator<FileStatus>() {
+            public int compare(FileStatus o1, FileStatus o2) {
+                return Long.valueOf(o2.getLen()).compareTo(o1.getLen());
+            }
+        });
+        List<MergeBin> ret = new ArrayList<MergeBin>();
+        for(FileStatus stat: sorted) {
+            MergeBin fit = null;
+            if(stat.getLen() < targetSize) {
+                for(MergeBin bin: bins) {
+                    if(bin.size + stat.getLen() <= targetSize) {
+                        fit = bin;
+                        break;
+                    }
+                }
+            }
+            if(fit==null) {
+                MergeBin bin = new MergeBin(stat.getPath(), true, stat.getLen());
+                ret.add(bin);
+                if(stat.getLen() < targetSize) bins.add(bin);
+            } else {
+                fit.sources.add(stat.getPath());
+                fit.size += stat.getLen();
+            }
+        }
+        for(MergeBin bin: bins) {
+            if(!bin.incoming && !bin.sources.isEmpty()) ret.add(bin);
+        }
+        return ret;
+    }
+
+    private Path moveIn(Path source, String dir) throws IOException {
+        Path target = toStoredPath(dir.length()==0 ? "ma_" + UUID.randomUUID().toString() :
+                dir + "/ma_" + UUID.randomUUID().toString());
+        if(!_fs.rename(source, target)) throw new IOException("could not rename " + source + " to " + target);
+        return target;
+    }
+
+    private void merge(ConcatenatingStreamFactory fact, Path base, List<Path> sources, String dir) throws IOException {
+        Path staging = new Path(new Path(getInstanceRoot(), MERGING_DIR), UUID.randomUUID().toString());
+        if(!_fs.mkdirs(staging)) throw new IOException("could not create " + staging);
+        writeMergeJournal(staging, base, dir);
+        List<Path> staged = new ArrayList<Path>();
+        for(Path source: sources) {
+            Path p = new Path(staging, staged.size() + EXTENSION);
+            if(!_fs.rename(source, p)) throw new IOException("could not rename " + source + " to " + p);
+            staged.add(p);
+        }
+
+        //from here until base grows, recovery moves the staged files in as they are
+        if(!fact.concatInto(_fs, base, staged, null)) {
+            Path tmp = new Path(base.getParent(), "_" + base.getName() + "." + UUID.randomUUID().toString());
+            List<Path> all = new ArrayList<Path>();
+            all.add(base);
+            all.addAll(staged);
+            ConcatenatingStreamFactory.ConcatOutput out = fact.openConcat(_fs, all, tmp);
+            if(out==null) {
+                //the headers don't match, so these can't be merged
+                for(Path p: staged) {
+                    moveIn(p, dir);
+                }
+            } else {
+                boolean succeeded = false;
+                try {
+                    for(Path p: all) {
+                        out.append(p, null);
+                    }
+                    out.close();
+                    overwrite(tmp, base);
+                    succeeded = true;
+                } finally {
+                    if(!succeeded) _fs.delete(tmp, false);
+                }
+            }
+        }
+        _fs.delete(staging, true);
+    }
+
+    private void writeMergeJournal(Path staging, Path base, String dir) throws IOException {
+        Path journal = new Path(staging, MERGE_JOURNAL);
+        Path tmp = new Path(staging, MERGE_JOURNAL + ".tmp");
+        FSDataOutputStream out = _fs.create(tmp, true);
+        try {
+            out.write((base.toString() + "\n" + _fs.getFileStatus(base).getLen() + "\n" + dir + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        if(!_fs.rename(tmp, journal)) throw new IOException("could not rename " + tmp + " to " + journal);
+    }
+
+    /**
+     * Finishes the merges of a mergeAppend that was cut short. A merge happened if the file merged into no longer
+     * has the length journaled before it.
+     */
+    private void recoverMerges() throws IOException {
+        FileStatus[] stagings;
+        try {
+            stagings = _fs.listStatus(new Path(getInstanceRoot(), MERGING_DIR));
+        } catch(FileNotFoundException e) {
+            return;
+        }
+        for(FileStatus staging: stagings) {
+            Path journal = new Path(staging.getPath(), MERGE_JOURNAL);
+            //the journal is written before anything is staged
+            if(_fs.exists(journal)) {
+                List<String> lines = new ArrayList<String>();
+                FSDataInputStream in = _fs.open(journal);
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } finally {
+                    in.close();
+                }
+                if(lines.size() < 3) throw new IOException("Corrupt merge journal " + journal);
+                Path base = new Path(lines.get(0));
+                long length = Long.parseLong(lines.get(1));
+                String dir = lines.get(2);
+                if(!_fs.exists(base) || _fs.getFileStatus(base).getLen() == length) {
+                    LOG.info("Moving in the files of unfinished merge into " + base);
+                    _fs.mkdirs(dir.length()==0 ? new Path(getInstanceRoot()) : new Path(getInstanceRoot(), dir));
+                    for(FileStatus stat: _fs.listStatus(staging.getPath())) {
+                        String name = stat.getPath().getName();
+                        if(name.endsWith(EXTENSION) && !name.startsWith("_")) moveIn(stat.getPath(), dir);
+                    }
+                } else {
+                    LOG.info("Dropping the staged files of finished merge into " + base);
+                }
+            }
+            _fs.delete(staging.getPath(), true);
         }
     }
 
@@ -499,14 +933,23 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
     }
 
     public void s3ConsistencyFix() throws IOException {
-        for(Path p: getStoredFiles()) {
-            try {
-                _fs.getFileStatus(p);
-            } catch(FileNotFoundException e) {
-                LOG.info("Fixing file: " + p);
-                _fs.create(p, true).close();
+        checkWritable();
+        metadataExecutor(_fs.getConf(), "pail-s3-fix").run(new BoundedExecutor.Submitter() {
+            public void submitAll(final BoundedExecutor executor) throws IOException {
+                for(final Path p: getStoredFiles()) {
+                    executor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            try {
+                                _fs.getFileStatus(p);
+                            } catch(FileNotFoundException e) {
+                                LOG.info("Fixing file: " + p);
+                                _fs.create(p, true).close();
+                            }
+                        }
+                    });
+                }
             }
-        }
+        });
     }
 
     public void consolidate() throws IOException {
@@ -514,6 +957,111 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
     }
 
     public void consolidate(long maxSize) throws IOException {
+        consolidate(maxSize, new PackingConsolidationPolicy());
+    }
+
+    public void consolidate(ConsolidationPolicy policy) throws IOException {
+        consolidate(Consolidator.DEFAULT_CONSOLIDATION_SIZE, policy);
+    }
+
+    /**
+     * Merges the files of every leaf directory up to maxSize, choosing which files to merge with the given policy.
+     * Use a TieredConsolidationPolicy to avoid rewriting already consolidated files on every run.
+     */
+    public void consolidate(long maxSize, ConsolidationPolicy policy) throws IOException {
+        checkWritable();
+        checkNotMigrating();
+        Consolidator.consolidate(_fs, _format, new PailPathLister(false), getConsolidationDirs(), maxSize, EXTENSION, policy);
+    }
+
+    /**
+     * Consolidates many pails without blocking, in at most maxJobs jobs running at the same time. Returns a future
+     * per pail, in order.
+     */
+    public static List<Future<Counters>> consolidate(List<Pail> pails, long maxSize, ConsolidationPolicy policy,
+                                                     int maxJobs) throws IOException {
+        List<ConsolidatorArgs> requests = new ArrayList<ConsolidatorArgs>();
+        for(Pail p: pails) {
+            p.checkWritable();
+            p.checkNotMigrating();
+            requests.add(new ConsolidatorArgs(p._fs.getUri().toString(), p._format, new PailPathLister(false),
+                    p.getConsolidationDirs(), maxSize, EXTENSION, policy));
+        }
+        if(pails.isEmpty()) return new ArrayList<Future<Counters>>();
+        return Consolidator.consolidate(pails.get(0)._fs.getConf(), requests, maxJobs);
+    }
+
+    public void consolidate(PailSpec newSpec) throws IOException {
+        consolidate(newSpec, Consolidator.DEFAULT_CONSOLIDATION_SIZE, new PackingConsolidationPolicy());
+    }
+
+    /**
+     * Consolidates the pail and rewrites every file in the format of newSpec in the same pass, then switches the
+     * pail over to newSpec by replacing its meta file. Must be called on the root of the pail, and the pail
+     * shouldn't be written until it returns. newSpec keeps the current structure if it doesn't set one.
+     *
+     * A marker holding newSpec is written first. Until the switch the pail can still be read record by record,
+     * while anything relying on a single format for every file, like getFormat, fails. If the migration is cut
+     * short, calling this again with the same spec rewrites only the files left and finishes it.
+     */
+    public void consolidate(PailSpec newSpec, long maxSize, ConsolidationPolicy policy) throws IOException {
+        checkWritable();
+        if(!getAttrs().isEmpty())
+            throw new IllegalStateException("The format of " + getRoot() + " can only be changed from its root, not from " + getInstanceRoot());
+        if(newSpec.getName()==null) throw new IllegalArgumentException("No format given in " + newSpec);
+        if(!newSpec.getStructure().getClass().equals(_spec.getStructure().getClass())) {
+            //a spec without a structure gets the default one
+            if(!(newSpec.getStructure() instanceof DefaultPailStructure))
+                throw new IllegalArgumentException("Cannot change the structure of a pail while consolidating: " + newSpec + ", " + _spec);
+            newSpec = new PailSpec(newSpec.getName(), newSpec.getArgs(), _spec.getStructure());
+        }
+        loadMigration();
+        if(_migratingSpec!=null && !_migratingSpec.equals(newSpec))
+            throw new IllegalStateException(getRoot() + " is half way through a migration to " + _migratingSpec +
+                    ", finish it before migrating to " + newSpec);
+        if(newSpec.equals(_spec)) {
+            if(_migrationMarker!=null) {
+                _fs.delete(_migrationMarker, false);
+                _migrationMarker = null;
+            }
+            consolidate(maxSize, policy);
+            return;
+        }
+        if(_migratingSpec==null) startMigration(newSpec);
+        String done = Consolidator.getTaggedPrefix(_migrationTag);
+        Consolidator.consolidate(_fs, _format, _migratingFormat, new MigrationPathLister(done), getConsolidationDirs(),
+                maxSize, EXTENSION, policy, _migrationTag);
+        writeSpec(newSpec);
+        _fs.delete(_migrationMarker, false);
+        _spec = newSpec;
+        _structure = newSpec.getStructure();
+        _format = _migratingFormat;
+        _migrationMarker = null;
+        _migrationTag = null;
+        _migratingSpec = null;
+        _migratingFormat = null;
+    }
+
+    private void startMigration(PailSpec newSpec) throws IOException {
+        String tag = UUID.randomUUID().toString().substring(0, 8);
+        Path marker = new Path(getRoot(), MIGRATING + "-" + tag);
+        Path tmp = new Path(getRoot(), MIGRATING + ".tmp");
+        newSpec.writeToFileSystem(_fs, tmp);
+        if(!_fs.rename(tmp, marker)) throw new IOException("Could not create " + marker);
+        _migrationMarker = marker;
+        _migrationTag = tag;
+        _migratingSpec = newSpec;
+        _migratingFormat = PailFormatFactory.create(newSpec);
+    }
+
+    private void writeSpec(PailSpec spec) throws IOException {
+        Path meta = new Path(getRoot(), META);
+        Path tmp = new Path(getRoot(), META + ".tmp");
+        spec.writeToFileSystem(_fs, tmp);
+        overwrite(tmp, meta);
+    }
+
+    private List<String> getConsolidationDirs() throws IOException {
         List<String> toCheck = new ArrayList<String>();
         toCheck.add("");
         PailStructure structure = getSpec().getStructure();
@@ -539,21 +1087,30 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
             }
         }
 
-        Consolidator.consolidate(_fs, _format, new PailPathLister(false), consolidatedirs, maxSize, EXTENSION);
+        return consolidatedirs;
     }
 
     @Override
     protected RecordInputStream createInputStream(Path path) throws IOException {
+        //only files written by a consolidation can be in the format being migrated to
+        if(path.getName().startsWith(Consolidator.CONSOLIDATED_PREFIX)) {
+            loadMigration();
+            if(_migratingSpec!=null && path.getName().startsWith(Consolidator.getTaggedPrefix(_migrationTag)))
+                return _migratingFormat.getInputStream(_fs, path);
+        }
         return _format.getInputStream(_fs, path);
     }
 
     @Override
     protected RecordOutputStream createOutputStream(Path path) throws IOException {
+        checkWritable();
+        checkNotMigrating();
         return _format.getOutputStream(_fs, path);
     }
 
     @Override
     protected boolean delete(Path path, boolean recursive) throws IOException {
+        checkWritable();
         return _fs.delete(path, recursive);
     }
 
@@ -564,11 +1121,13 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
 
     @Override
     protected boolean rename(Path source, Path dest) throws IOException {
+        checkWritable();
         return _fs.rename(source, dest);
     }
 
     @Override
     protected boolean overwrite(Path source, Path dest) throws IOException {
+        checkWritable();
         Configuration conf = new Configuration(_fs.getConf());
         conf.set("fs.AbstractFileSystem.file.impl", LocalFsWithoutBug.class.getName());
         FileContext fileContext = FileContext.getFileContext(conf);
@@ -578,6 +1137,7 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
 
     @Override
     protected boolean mkdirs(Path path) throws IOException {
+        checkWritable();
         return _fs.mkdirs(path);
     }
 
@@ -593,6 +1153,11 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         return ret.toArray(new FileStatus[ret.size()]);
     }
 
+    @Override
+    protected boolean isCommitted(FileStatus stat, Map<String, Set<String>> committed) throws IOException {
+        return PailOutputCommitter.isCommitted(_fs, new Path(getRoot()), stat.getPath().getName(), committed);
+    }
+
     protected String toFullPath(String relpath) {
        Path p;
        if(relpath.length()==0) p = new Path(getInstanceRoot());
@@ -620,7 +1185,7 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
         }
     }
 
-    protected static class PailPathLister implements PathLister {
+    protected static class PailPathLister implements StatusPathLister {
         boolean _includeMeta;
 
         public PailPathLister() {
@@ -631,9 +1196,13 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
             _includeMeta = includeMeta;
         }
 
+        protected Pail open(FileSystem fs, String path) throws IOException {
+            return new Pail(fs, path);
+        }
+
         public List<Path> getFiles(FileSystem fs, String path) {
             try {
-                Pail p = new Pail(fs, path);
+                Pail p = open(fs, path);
                 List<Path> ret;
                 if(_includeMeta) {
                     ret = p.getStoredFilesAndMetadata();
@@ -645,6 +1214,47 @@ public class Pail<T> extends AbstractPail implements Iterable<T>{
                 throw new RuntimeException(e);
             }
         }
+
+        public List<FileStatus> getFileStatuses(FileSystem fs, String path) {
+            try {
+                Pail p = open(fs, path);
+                if(_includeMeta) {
+                    return p.getStoredFileAndMetadataStatuses();
+                } else {
+                    return p.getStoredFileStatuses();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    //skips the files a migration has already rewritten
+    private static class MigrationPathLister extends PailPathLister {
+        String _done;
+
+        public MigrationPathLister(String done) {
+            super(false);
+            _done = done;
+        }
+
+        @Override
+        public List<Path> getFiles(FileSystem fs, String path) {
+            List<Path> ret = new ArrayList<Path>();
+            for(Path p: super.getFiles(fs, path)) {
+                if(!p.getName().startsWith(_done)) ret.add(p);
+            }
+            return ret;
+        }
+
+        @Override
+        public List<FileStatus> getFileStatuses(FileSystem fs, String path) {
+            List<FileStatus> ret = new ArrayList<FileStatus>();
+            for(FileStatus stat: super.getFileStatuses(fs, path)) {
+                if(!stat.getPath().getName().startsWith(_done)) ret.add(stat);
+            }
+            return ret;
+        }
     }
 
     public boolean isEmpty() throws IOException {
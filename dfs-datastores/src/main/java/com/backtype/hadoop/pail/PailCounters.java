@@ -0,0 +1,88 @@
+package com.backtype.hadoop.pail;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Accumulates pail read/write statistics locally and pushes them to Hadoop counters in batches,
+ * so that the per-record cost is an array increment rather than a counter lookup.
+ *
+ * Counters are grouped per pail format (e.g. "Pail SequenceFile") so jobs mixing formats can be told apart.
+ */
+public class PailCounters {
+    public static final String GROUP_PREFIX = "Pail ";
+
+    public static enum Counter {
+        RECORDS_READ,
+        BYTES_READ,
+        //time spent inside the underlying reader, which is dominated by decompression
+        DECOMPRESSION_MILLIS,
+        EOF_RETRIES,
+        DISCARDED_FILES,
+        //approximate: remaining bytes of the split when a file is given up on
+        DISCARDED_BYTES,
+        RECORDS_WRITTEN,
+        BYTES_WRITTEN,
+        //time spent handing records to the underlying writer, which is dominated by compression
+        COMPRESSION_MILLIS,
+        FILES_OPENED,
+        FILES_ROLLED,
+        FILES_CLOSED
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private String _group;
+    private long[] _values = new long[COUNTERS.length];
+
+    public PailCounters(PailSpec spec) {
+        _group = getGroup(spec);
+    }
+
+    public static String getGroup(PailSpec spec) {
+        String name = spec == null ? null : spec.getName();
+        if(name==null) name = PailFormatFactory.SEQUENCE_FILE;
+        return GROUP_PREFIX + name;
+    }
+
+    public String getGroup() {
+        return _group;
+    }
+
+    public void incr(Counter counter, long amount) {
+        _values[counter.ordinal()] += amount;
+    }
+
+    /**
+     * Time counters are accumulated in nanoseconds and reported in milliseconds.
+     */
+    public void incrNanos(Counter counter, long nanos) {
+        _values[counter.ordinal()] += nanos;
+    }
+
+    public long get(Counter counter) {
+        return _values[counter.ordinal()];
+    }
+
+    public void flush(Reporter reporter) {
+        if(reporter==null) return;
+        for(Counter c: COUNTERS) {
+            long val = _values[c.ordinal()];
+            if(isTime(c)) {
+                //keep the sub-millisecond remainder around for the next flush
+                long millis = val / NANOS_PER_MILLI;
+                if(millis > 0) {
+                    reporter.incrCounter(_group, c.name(), millis);
+                    _values[c.ordinal()] = val - millis * NANOS_PER_MILLI;
+                }
+            } else if(val != 0) {
+                reporter.incrCounter(_group, c.name(), val);
+                _values[c.ordinal()] = 0;
+            }
+        }
+    }
+
+    private static boolean isTime(Counter c) {
+        return c == Counter.DECOMPRESSION_MILLIS || c == Counter.COMPRESSION_MILLIS;
+    }
+}
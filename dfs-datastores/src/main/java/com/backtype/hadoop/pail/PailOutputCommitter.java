@@ -0,0 +1,335 @@
+package com.backtype.hadoop.pail;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.OutputCommitter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output committer for PailOutputFormat that commits a job with a single rename, whatever the number of files it
+ * wrote. Tasks write their pailfiles directly under the final attribute directories of the pail, named
+ * pc-[attempt]-... so attempts never collide. Which of those files belong to the output is decided by manifests kept
+ * in the hidden _manifests directory:
+ *
+ * - on close, the record writer writes _manifests/[job]/[attempt].pending
+ * - commitTask renames it to _manifests/[job]/[task].task, so only one attempt per task is committed
+ * - commitJob lists the committed attempts in _manifests/[job].manifest. Renaming that manifest into place is the
+ *   commit, and its only step
+ *
+ * Listing a pail hides the files of an attempt unless the manifest of its job lists it, so readers never see running,
+ * failed or speculative attempts, nor jobs that died. That costs a read of the manifest of each job still having files
+ * in the pail per listing, see isCommitted.
+ *
+ * The hidden files are deleted afterwards by a sweep, which lists the pail once: commitJob and abortJob sweep their
+ * job, and cleanup, run by setupJob, sweeps the jobs whose commit or abort didn't get to it and the jobs that died
+ * without either once they are older than pail.output.committer.stale.millis. A sweep also deletes the manifests of
+ * stale jobs that have no file left in the pail, like after a consolidation.
+ */
+public class PailOutputCommitter extends OutputCommitter {
+    public static Logger LOG = LoggerFactory.getLogger(PailOutputCommitter.class);
+
+    public static final String ENABLED = "pail.output.committer.manifest";
+    public static final String MANIFEST_DIR = "_manifests";
+    // files and manifests left by jobs that died are deleted after this long
+    public static final String STALE_MILLIS = "pail.output.committer.stale.millis";
+    public static final long DEFAULT_STALE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String FILE_PREFIX = "pc-";
+    // pc-[job]-[task type]-[task]-[attempt]-..., the job being [jobtracker start]-[job number]
+    private static final Pattern FILE_NAME = Pattern.compile("pc-(\\d+-\\d+)-([a-z]+-\\d+-\\d+)-.*");
+    private static final String PENDING_EXTENSION = ".pending";
+    private static final String TASK_EXTENSION = ".task";
+    private static final String JOB_EXTENSION = ".manifest";
+
+    public static void setEnabled(JobConf conf, boolean enabled) {
+        conf.setBoolean(ENABLED, enabled);
+        if(enabled) {
+            conf.setOutputCommitter(PailOutputCommitter.class);
+        }
+    }
+
+    public static boolean isEnabled(JobConf conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    private static String tag(String id) {
+        // job_200707121733_0003 -> 200707121733-0003. underscores would make the files invisible to pails
+        return id.substring(id.indexOf('_') + 1).replace('_', '-');
+    }
+
+    private static String getJobTag(JobID id) {
+        return tag(id.toString());
+    }
+
+    private static TaskAttemptID getAttemptId(JobConf conf) {
+        String id = conf.get(MRJobConfig.TASK_ATTEMPT_ID);
+        if(id==null) throw new IllegalStateException("No task attempt id in the configuration");
+        return TaskAttemptID.forName(id);
+    }
+
+    /**
+     * Prefix given to the pailfiles written by the current task attempt.
+     */
+    public static String getFilePrefix(JobConf conf) {
+        return FILE_PREFIX + tag(getAttemptId(conf).toString()) + "-";
+    }
+
+    private static Path getManifestDir(Path root, String jobTag) {
+        return new Path(new Path(root, MANIFEST_DIR), jobTag);
+    }
+
+    private static Path getPendingManifest(Path root, TaskAttemptID id) {
+        return new Path(getManifestDir(root, getJobTag(id.getJobID())), tag(id.toString()) + PENDING_EXTENSION);
+    }
+
+    private static Path getTaskManifest(Path root, TaskAttemptID id) {
+        return new Path(getManifestDir(root, getJobTag(id.getJobID())), tag(id.getTaskID().toString()) + TASK_EXTENSION);
+    }
+
+    public static Path getJobManifest(Path root, JobID id) {
+        return getJobManifest(root, getJobTag(id));
+    }
+
+    private static Path getJobManifest(Path root, String jobTag) {
+        return new Path(new Path(root, MANIFEST_DIR), jobTag + JOB_EXTENSION);
+    }
+
+    /**
+     * Called by the record writer once the current task attempt closed its files.
+     */
+    public static void writePendingManifest(JobConf conf) throws IOException {
+        Path root = getRoot(conf);
+        FileSystem fs = root.getFileSystem(conf);
+        TaskAttemptID id = getAttemptId(conf);
+        writeManifest(fs, getPendingManifest(root, id), Collections.singletonList(tag(id.toString())));
+    }
+
+    private static void writeManifest(FileSystem fs, Path path, Iterable<String> lines) throws IOException {
+        FSDataOutputStream os = fs.create(path, true);
+        try {
+            for(String l: lines) {
+                os.write((l + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    public static List<String> readManifest(FileSystem fs, Path path) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine())!=null) {
+                if(!line.isEmpty()) ret.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return ret;
+    }
+
+    // the committed attempts of a job, null if it isn't committed
+    private static Set<String> readCommitted(FileSystem fs, Path root, String jobTag) throws IOException {
+        try {
+            return new HashSet<String>(readManifest(fs, getJobManifest(root, jobTag)));
+        } catch(FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the pailfile named name, in the pail rooted at root, is visible. The files written through this
+     * committer are visible once the manifest of their job lists their attempt, any other file always is. committed
+     * keeps the manifests read for a listing, so each is read once.
+     */
+    public static boolean isCommitted(FileSystem fs, Path root, String name, Map<String, Set<String>> committed)
+            throws IOException {
+        if(!name.startsWith(FILE_PREFIX)) return true;
+        Matcher m = FILE_NAME.matcher(name);
+        if(!m.matches()) return true;
+        String jobTag = m.group(1);
+        Set<String> attempts = committed.get(jobTag);
+        if(attempts==null) {
+            attempts = readCommitted(fs, root, jobTag);
+            if(attempts==null) attempts = Collections.emptySet();
+            committed.put(jobTag, attempts);
+        }
+        return attempts.contains(jobTag + "-" + m.group(2));
+    }
+
+    private static Path getRoot(JobConf conf) {
+        return FileOutputFormat.getOutputPath(conf);
+    }
+
+    @Override
+    public void setupJob(JobContext context) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        FileSystem fs = root.getFileSystem(conf);
+        cleanup(fs, root, conf.getLong(STALE_MILLIS, DEFAULT_STALE_MILLIS));
+        fs.mkdirs(getManifestDir(root, getJobTag(context.getJobID())));
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext context) throws IOException {
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        return root.getFileSystem(conf).exists(getPendingManifest(root, context.getTaskAttemptID()));
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext context) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        FileSystem fs = root.getFileSystem(conf);
+        Path pending = getPendingManifest(root, context.getTaskAttemptID());
+        Path committed = getTaskManifest(root, context.getTaskAttemptID());
+        if(fs.exists(committed)) {
+            LOG.info("Replacing manifest of an earlier attempt " + committed);
+            fs.delete(committed, false);
+        }
+        if(!fs.rename(pending, committed)) {
+            throw new IOException("Unable to commit task manifest " + pending + " to " + committed);
+        }
+    }
+
+    /**
+     * The files of the attempt stay hidden and are deleted by the sweep of the job.
+     */
+    @Override
+    public void abortTask(TaskAttemptContext context) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        root.getFileSystem(conf).delete(getPendingManifest(root, context.getTaskAttemptID()), false);
+    }
+
+    @Override
+    public void commitJob(JobContext context) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        FileSystem fs = root.getFileSystem(conf);
+        String jobTag = getJobTag(context.getJobID());
+        Path manifestDir = getManifestDir(root, jobTag);
+
+        Set<String> attempts = new HashSet<String>();
+        if(fs.exists(manifestDir)) {
+            for(FileStatus stat: fs.listStatus(manifestDir)) {
+                if(stat.getPath().getName().endsWith(TASK_EXTENSION)) {
+                    attempts.addAll(readManifest(fs, stat.getPath()));
+                }
+            }
+        }
+        Path jobManifest = getJobManifest(root, jobTag);
+        Path tmpManifest = new Path(jobManifest.toString() + ".tmp");
+        writeManifest(fs, tmpManifest, attempts);
+        if(!fs.rename(tmpManifest, jobManifest)) {
+            throw new IOException("Unable to commit job manifest " + tmpManifest + " to " + jobManifest);
+        }
+        LOG.info("Committed " + attempts.size() + " task attempts to " + root);
+        sweepQuietly(fs, root, jobTag, conf.getLong(STALE_MILLIS, DEFAULT_STALE_MILLIS));
+    }
+
+    @Override
+    public void abortJob(JobContext context, int runState) throws IOException {
+        JobConf conf = context.getJobConf();
+        Path root = getRoot(conf);
+        FileSystem fs = root.getFileSystem(conf);
+        sweepQuietly(fs, root, getJobTag(context.getJobID()), conf.getLong(STALE_MILLIS, DEFAULT_STALE_MILLIS));
+        LOG.info("Aborted job writing to " + root);
+    }
+
+    // the job is settled either way, what a failed sweep leaves is swept by a later cleanup
+    private static void sweepQuietly(FileSystem fs, Path root, String jobTag, long staleMillis) {
+        try {
+            sweep(fs, root, Collections.singleton(jobTag), staleMillis);
+        } catch(IOException e) {
+            LOG.warn("Could not delete the hidden files of " + jobTag + " from " + root, e);
+        }
+    }
+
+    /**
+     * Deletes the files of the given jobs that aren't committed, which is all of them for jobs without a manifest,
+     * then their task manifests. Also deletes the job manifests older than staleMillis that no file refers to anymore.
+     */
+    private static void sweep(FileSystem fs, Path root, Set<String> jobTags, long staleMillis) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Set<String>> committed = new HashMap<String, Set<String>>();
+        for(String jobTag: jobTags) {
+            committed.put(jobTag, readCommitted(fs, root, jobTag));
+        }
+        Set<String> present = new HashSet<String>();
+        for(FileStatus stat: new Pail(fs, root.toString()).getAllStoredFileStatuses()) {
+            Matcher m = FILE_NAME.matcher(stat.getPath().getName());
+            if(!m.matches()) continue;
+            String jobTag = m.group(1);
+            present.add(jobTag);
+            if(!jobTags.contains(jobTag)) continue;
+            Set<String> attempts = committed.get(jobTag);
+            if(attempts==null || !attempts.contains(jobTag + "-" + m.group(2))) fs.delete(stat.getPath(), false);
+        }
+        for(String jobTag: jobTags) {
+            fs.delete(getManifestDir(root, jobTag), true);
+        }
+        for(FileStatus stat: fs.listStatus(new Path(root, MANIFEST_DIR))) {
+            String name = stat.getPath().getName();
+            if(name.endsWith(JOB_EXTENSION) && start - stat.getModificationTime() > staleMillis &&
+               !present.contains(name.substring(0, name.length() - JOB_EXTENSION.length()))) {
+                fs.delete(stat.getPath(), false);
+            }
+        }
+    }
+
+    /**
+     * Sweeps the jobs that committed or aborted without finishing their sweep, and the jobs left for longer than
+     * staleMillis, which are jobs that died without committing or aborting. Doesn't depend on those jobs running
+     * again.
+     */
+    public static void cleanup(FileSystem fs, Path root, long staleMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        Path manifests = new Path(root, MANIFEST_DIR);
+        if(!fs.exists(manifests)) return;
+        Set<String> jobTags = new HashSet<String>();
+        for(FileStatus stat: fs.listStatus(manifests)) {
+            String name = stat.getPath().getName();
+            boolean stale = now - stat.getModificationTime() > staleMillis;
+            if(stat.isDirectory()) {
+                if(stale || fs.exists(getJobManifest(root, name))) jobTags.add(name);
+            } else if(!name.endsWith(JOB_EXTENSION) && stale) {
+                // job manifest of a commit that died before renaming it
+                fs.delete(stat.getPath(), false);
+            }
+        }
+        if(!jobTags.isEmpty()) {
+            LOG.info("Deleting the hidden files of jobs " + jobTags + " from " + root);
+            sweep(fs, root, jobTags, staleMillis);
+        }
+    }
+}
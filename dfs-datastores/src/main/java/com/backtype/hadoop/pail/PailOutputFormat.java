@@ -1,5 +1,6 @@
 package com.backtype.hadoop.pail;
 
+import com.backtype.hadoop.formats.PipelinedRecordOutputStream;
 import com.backtype.hadoop.formats.RecordOutputStream;
 import com.backtype.support.Utils;
 import org.apache.hadoop.fs.FileSystem;
@@ -12,13 +13,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class  PailOutputFormat extends FileOutputFormat<Text, BytesWritable> {
     public static Logger LOG = LoggerFactory.getLogger(PailOutputFormat.class);
     public static final String SPEC_ARG = "pail_spec_arg";
 
+    // number of attributes reported in the per-attribute bytes counter group, largest first. The rest is summed
+    // into a single counter to stay under the job counter limit. 0 disables per-attribute counters.
+    public static final String ATTR_COUNTERS_MAX = "pail.counters.attributes.max";
+    public static final int DEFAULT_ATTR_COUNTERS_MAX = 10;
+    public static final String ATTR_COUNTERS_GROUP = "Pail attribute bytes written";
+
+    // "default" keeps a file open per attribute. "spill" buffers records, sorts them by attribute and writes one
+    // attribute at a time, see SpillingPailRecordWriter
+    public static final String WRITER_MODE = "pail.writer.mode";
+    public static final String WRITER_MODE_DEFAULT = "default";
+    public static final String WRITER_MODE_SPILL = "spill";
+
+    // number of threads serializing, compressing and writing pail files in the background. 0 writes on the task thread
+    public static final String ASYNC_THREADS = "pail.writer.async.threads";
+    // max number of batches of records queued for the background threads
+    public static final String ASYNC_QUEUE_SIZE = "pail.writer.async.queue.size";
+    public static final String ASYNC_BATCH_BYTES = "pail.writer.async.batch.bytes";
+    public static final int DEFAULT_ASYNC_BATCH_BYTES = 1024 * 1024;
+
     // we limit the size of outputted files because of s3 file limits
     public static final long FILE_LIMIT_SIZE_BYTES = 1L * 1024 * 1024 * 1024; // 1GB
 
@@ -29,6 +58,15 @@ public class  PailOutputFormat extends FileOutputFormat<Text, BytesWritable> {
     public static class PailRecordWriter implements RecordWriter<Text, BytesWritable> {
         private Pail _pail;
         private String _unique;
+        private Reporter _reporter;
+        private PailCounters _counters;
+        private int _maxAttrCounters;
+        private Map<String, long[]> _attrBytes = new HashMap<String, long[]>();
+        private ExecutorService _asyncPool = null;
+        private Semaphore _asyncPermits;
+        private int _asyncBatchBytes;
+        private JobConf _conf;
+        private boolean _manifestCommit;
 
         protected static class OpenAttributeFile {
             public String attr;
@@ -44,6 +82,8 @@ public class  PailOutputFormat extends FileOutputFormat<Text, BytesWritable> {
         }
 
         private Map<String, OpenAttributeFile> _outputters = new HashMap<String, OpenAttributeFile>();
+        // lookup by the raw key so write doesn't decode every key into a String
+        private Map<Text, OpenAttributeFile> _outputtersByKey = new HashMap<Text, OpenAttributeFile>();
         private int writtenRecords = 0;
         private int numFilesOpened = 0;
 
@@ -53,18 +93,65 @@ public class  PailOutputFormat extends FileOutputFormat<Text, BytesWritable> {
             Path path = getOutputPath(conf);
             FileSystem fs = path.getFileSystem(conf);
 
-            Pail.create(fs, path.toString(), spec,  false);
-            // this is a hack to get the work output directory since it's not exposed directly. instead it only
-            // provides a path to a particular file.
-            _pail = Pail.create(fs, FileOutputFormat.getTaskOutputPath(conf, unique).getParent().toString(), spec, false);
-            _unique = unique;
+            _conf = conf;
+            _manifestCommit = PailOutputCommitter.isEnabled(conf);
+            if(_manifestCommit) {
+                // straight into the pail, hidden until the job commits, see PailOutputCommitter
+                _pail = Pail.create(fs, path.toString(), spec, false);
+                _unique = PailOutputCommitter.getFilePrefix(conf) + unique;
+            } else {
+                Pail.create(fs, path.toString(), spec,  false);
+                // this is a hack to get the work output directory since it's not exposed directly. instead it only
+                // provides a path to a particular file.
+                _pail = Pail.create(fs, FileOutputFormat.getTaskOutputPath(conf, unique).getParent().toString(), spec, false);
+                _unique = unique;
+            }
+            // the old api hands the task reporter in as the progressable
+            _reporter = (p instanceof Reporter) ? (Reporter) p : null;
+            _counters = new PailCounters(spec);
+            _maxAttrCounters = conf.getInt(ATTR_COUNTERS_MAX, DEFAULT_ATTR_COUNTERS_MAX);
+            int asyncThreads = conf.getInt(ASYNC_THREADS, 0);
+            if(asyncThreads > 0) {
+                _asyncPool = Executors.newFixedThreadPool(asyncThreads, new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "pail-writer-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                _asyncPermits = new Semaphore(conf.getInt(ASYNC_QUEUE_SIZE, asyncThreads * 4));
+                _asyncBatchBytes = conf.getInt(ASYNC_BATCH_BYTES, DEFAULT_ASYNC_BATCH_BYTES);
+            }
+        }
+
+        protected RecordOutputStream openFile(String filename) throws IOException {
+            //need overwrite for situations where regular FileOutputCommitter isn't used (like S3)
+            RecordOutputStream os = _pail.openWrite(filename, true, _manifestCommit);
+            if(_asyncPool!=null) {
+                os = new PipelinedRecordOutputStream(os, _asyncPool, _asyncPermits, _asyncBatchBytes);
+            }
+            return os;
         }
 
         public void write(Text k, BytesWritable v) throws IOException {
-            String attr = k.toString();
+            OpenAttributeFile oaf = _outputtersByKey.get(k);
+            if(oaf==null || oaf.numBytesWritten >= FILE_LIMIT_SIZE_BYTES) {
+                oaf = getOutputter(k.toString());
+                _outputtersByKey.put(new Text(k), oaf);
+            }
+            writeRecord(oaf, v.getBytes(), 0, v.getLength());
+        }
+
+        /**
+         * Returns the open file for the attribute, rolling over to a new file once the current one hits the size limit.
+         */
+        protected OpenAttributeFile getOutputter(String attr) throws IOException {
             OpenAttributeFile oaf = _outputters.get(attr);
             if(oaf!=null && oaf.numBytesWritten >= FILE_LIMIT_SIZE_BYTES) {
                 closeAttributeFile(oaf);
+                _counters.incr(PailCounters.Counter.FILES_ROLLED, 1);
                 oaf = null;
                 _outputters.remove(attr);
             }
@@ -77,50 +164,145 @@ public class  PailOutputFormat extends FileOutputFormat<Text, BytesWritable> {
                 }
                 numFilesOpened++;
                 LOG.info("Opening " + filename + " for attribute " + attr);
-                //need overwrite for situations where regular FileOutputCommitter isn't used (like S3)
-                oaf = new OpenAttributeFile(attr, filename, _pail.openWrite(filename, true));
+                oaf = new OpenAttributeFile(attr, filename, openFile(filename));
+                _counters.incr(PailCounters.Counter.FILES_OPENED, 1);
                 _outputters.put(attr, oaf);
             }
-            oaf.os.writeRaw(v.getBytes(), 0, v.getLength());
-            oaf.numBytesWritten+=v.getLength();
+            return oaf;
+        }
+
+        protected void writeRecord(OpenAttributeFile oaf, byte[] record, int start, int length) throws IOException {
+            if(_asyncPool==null) {
+                long startTime = System.nanoTime();
+                oaf.os.writeRaw(record, start, length);
+                _counters.incrNanos(PailCounters.Counter.COMPRESSION_MILLIS, System.nanoTime() - startTime);
+            } else {
+                //timed by the background threads, see closeAttributeFile
+                oaf.os.writeRaw(record, start, length);
+            }
+            oaf.numBytesWritten+=length;
+            countWrite(oaf.attr, length);
             logProgress();
         }
 
+        protected void closeOutputter(String attr) throws IOException {
+            OpenAttributeFile oaf = _outputters.remove(attr);
+            if(oaf!=null) closeAttributeFile(oaf);
+        }
+
+        protected Reporter getReporter() {
+            return _reporter;
+        }
+
+        protected void countWrite(String attr, int numBytes) {
+            _counters.incr(PailCounters.Counter.RECORDS_WRITTEN, 1);
+            _counters.incr(PailCounters.Counter.BYTES_WRITTEN, numBytes);
+            if(_maxAttrCounters > 0) {
+                long[] total = _attrBytes.get(attr);
+                if(total==null) {
+                    total = new long[1];
+                    _attrBytes.put(attr, total);
+                }
+                total[0]+=numBytes;
+            }
+        }
+
         protected void logProgress() {
             writtenRecords++;
             if(writtenRecords%100000 == 0) {
                 for(OpenAttributeFile oaf: _outputters.values()) {
                     LOG.info("Attr:" + oaf.attr + " Filename:" + oaf.filename + " Bytes written:" + oaf.numBytesWritten);
                 }
+                _counters.flush(_reporter);
             }
         }
 
         protected void closeAttributeFile(OpenAttributeFile oaf) throws IOException {
             LOG.info("Closing " + oaf.filename + " for attr " + oaf.attr);
             //print out the size of the file here
-            oaf.os.close();
+            if(oaf.os instanceof PipelinedRecordOutputStream) {
+                PipelinedRecordOutputStream pos = (PipelinedRecordOutputStream) oaf.os;
+                pos.close();
+                _counters.incrNanos(PailCounters.Counter.COMPRESSION_MILLIS, pos.getWriteNanos());
+            } else {
+                long start = System.nanoTime();
+                oaf.os.close();
+                _counters.incrNanos(PailCounters.Counter.COMPRESSION_MILLIS, System.nanoTime() - start);
+            }
+            _counters.incr(PailCounters.Counter.FILES_CLOSED, 1);
+            _outputtersByKey.remove(new Text(oaf.attr));
             LOG.info("Closed " + oaf.filename + " for attr " + oaf.attr);
         }
 
         public void close(Reporter rprtr) throws IOException {
-            for(String key: _outputters.keySet()) {
-                closeAttributeFile(_outputters.get(key));
-                rprtr.progress();
+            try {
+                if(_asyncPool!=null) {
+                    //let the tail of every file compress in parallel before waiting on each of them
+                    for(OpenAttributeFile oaf: _outputters.values()) {
+                        ((PipelinedRecordOutputStream) oaf.os).flush();
+                    }
+                }
+                for(String key: _outputters.keySet()) {
+                    closeAttributeFile(_outputters.get(key));
+                    rprtr.progress();
+                }
+                _outputters.clear();
+                _outputtersByKey.clear();
+                if(_manifestCommit) {
+                    PailOutputCommitter.writePendingManifest(_conf);
+                }
+            } finally {
+                if(_asyncPool!=null) _asyncPool.shutdownNow();
             }
-            _outputters.clear();
+            _counters.flush(rprtr);
+            reportAttributeBytes(rprtr);
+        }
+
+        private void reportAttributeBytes(Reporter rprtr) {
+            if(_attrBytes.isEmpty()) return;
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(_attrBytes.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+                    long b1 = o1.getValue()[0];
+                    long b2 = o2.getValue()[0];
+                    return b1 > b2 ? -1 : (b1 == b2 ? 0 : 1);
+                }
+            });
+            long other = 0;
+            for(int i=0; i<sorted.size(); i++) {
+                Map.Entry<String, long[]> e = sorted.get(i);
+                if(i < _maxAttrCounters) {
+                    String name = e.getKey().isEmpty() ? "(root)" : e.getKey();
+                    rprtr.incrCounter(ATTR_COUNTERS_GROUP, name, e.getValue()[0]);
+                } else {
+                    other += e.getValue()[0];
+                }
+            }
+            if(other > 0) {
+                rprtr.incrCounter(ATTR_COUNTERS_GROUP, "(other)", other);
+            }
+            _attrBytes.clear();
         }
     }
 
     public RecordWriter<Text, BytesWritable> getRecordWriter(FileSystem ignored, JobConf jc, String string, Progressable p) throws IOException {
-        return new PailRecordWriter(jc, string, p);
+        String mode = jc.get(WRITER_MODE, WRITER_MODE_DEFAULT);
+        if(mode.equals(WRITER_MODE_SPILL)) {
+            return new SpillingPailRecordWriter(jc, string, p);
+        } else if(mode.equals(WRITER_MODE_DEFAULT)) {
+            return new PailRecordWriter(jc, string, p);
+        } else {
+            throw new IllegalArgumentException("Unknown " + WRITER_MODE + ": " + mode);
+        }
     }
 
     @Override
     public void checkOutputSpecs(FileSystem fs, JobConf conf) throws IOException {
         // because this outputs multiple files, doesn't work with speculative execution on something like EMR with S3
-        if(!(conf.getOutputCommitter() instanceof FileOutputCommitter)) {
+        OutputCommitter committer = conf.getOutputCommitter();
+        if(!(committer instanceof FileOutputCommitter) && !(committer instanceof PailOutputCommitter)) {
             if(conf.getMapSpeculativeExecution() && conf.getNumReduceTasks()==0 || conf.getReduceSpeculativeExecution()) {
-                throw new IllegalArgumentException("Cannot use speculative execution with PailOutputFormat unless FileOutputCommitter is enabled");
+                throw new IllegalArgumentException("Cannot use speculative execution with PailOutputFormat unless FileOutputCommitter or PailOutputCommitter is enabled");
             }
         }
     }
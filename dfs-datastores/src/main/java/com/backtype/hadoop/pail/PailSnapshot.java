@@ -0,0 +1,206 @@
+package com.backtype.hadoop.pail;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read only view of the files a pail had when Pail.snapshotView was called. The files are listed in a manifest,
+ * and read either from an HDFS snapshot of the pail or in place from the pail itself. Everything that would change
+ * the files of the view throws UnsupportedOperationException.
+ *
+ * Jobs reading the view need getInputPathLister, as the root of the view on its own lists every file there is now.
+ */
+public class PailSnapshot<T> extends Pail<T> {
+    private static final String SNAPSHOT_DIR = ".snapshot";
+    private static final String SEPARATOR = "\t";
+    private static final String ROOT = "root";
+    private static final String HDFS_SNAPSHOT = "hdfs-snapshot";
+    private static final String FILE = "file";
+
+    private String _manifest;
+    private String _source;
+    private String _hdfsSnapshot;
+    private List<String> _names;
+
+    private PailSnapshot(FileSystem fs, String manifest, String source, String hdfsSnapshot, PailSpec spec,
+                         List<String> names) throws IOException {
+        super(fs, readRoot(source, hdfsSnapshot), readRoot(source, hdfsSnapshot), spec);
+        _manifest = manifest;
+        _source = source;
+        _hdfsSnapshot = hdfsSnapshot;
+        _names = names;
+    }
+
+    private static String readRoot(String source, String hdfsSnapshot) {
+        if(hdfsSnapshot==null) return source;
+        return new Path(new Path(source, SNAPSHOT_DIR), hdfsSnapshot).toString();
+    }
+
+    static <T> PailSnapshot<T> create(FileSystem fs, String manifest, String source, String hdfsSnapshot, PailSpec spec) throws IOException {
+        PailSnapshot<T> ret = new PailSnapshot<T>(fs, manifest, source, hdfsSnapshot, spec, null);
+        ret._names = ret.listUserFileNames();
+        ret.writeManifest();
+        return ret;
+    }
+
+    static PailSnapshot read(FileSystem fs, String manifest) throws IOException {
+        Path path = new Path(manifest);
+        FSDataInputStream in = path.getFileSystem(fs.getConf()).open(path);
+        String source = null;
+        String hdfsSnapshot = null;
+        List<String> names = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split(SEPARATOR, 2);
+                if(parts.length != 2) continue;
+                if(parts[0].equals(ROOT)) source = parts[1];
+                else if(parts[0].equals(HDFS_SNAPSHOT)) hdfsSnapshot = parts[1];
+                else if(parts[0].equals(FILE)) names.add(parts[1]);
+            }
+        } finally {
+            in.close();
+        }
+        if(source==null) throw new IOException("Not a pail snapshot manifest " + manifest);
+        return new PailSnapshot(fs, manifest, source, hdfsSnapshot, new Pail(fs, source).getSpec(), names);
+    }
+
+    private List<String> listUserFileNames() throws IOException {
+        return super.getUserFileNames();
+    }
+
+    private void writeManifest() throws IOException {
+        Path path = new Path(_manifest);
+        FileSystem fs = path.getFileSystem(getFileSystem().getConf());
+        Path tmp = new Path(_manifest + ".tmp");
+        FSDataOutputStream out = fs.create(tmp, true);
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append(ROOT).append(SEPARATOR).append(_source).append("\n");
+            if(_hdfsSnapshot!=null) sb.append(HDFS_SNAPSHOT).append(SEPARATOR).append(_hdfsSnapshot).append("\n");
+            for(String name: _names) {
+                sb.append(FILE).append(SEPARATOR).append(name).append("\n");
+            }
+            out.write(sb.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        if(!fs.rename(tmp, path)) throw new IOException("could not rename " + tmp + " to " + path);
+    }
+
+    /**
+     * Lists the files of this snapshot rather than those of the pail at the path it's given.
+     */
+    private static class SnapshotPathLister extends PailPathLister {
+        private String _manifest;
+
+        public SnapshotPathLister(String manifest, boolean includeMeta) {
+            super(includeMeta);
+            _manifest = manifest;
+        }
+
+        @Override
+        protected Pail open(FileSystem fs, String path) throws IOException {
+            return read(fs, _manifest);
+        }
+    }
+
+    PailPathLister getPathLister(boolean includeMeta) {
+        return new SnapshotPathLister(_manifest, includeMeta);
+    }
+
+    /**
+     * Lister to set with PailFormatFactory.setPailPathLister, or on a PailTap, for jobs reading this view.
+     */
+    public ManifestPailPathLister getInputPathLister() {
+        return new ManifestPailPathLister(_manifest);
+    }
+
+    public String getManifestPath() {
+        return _manifest;
+    }
+
+    /**
+     * Root of the pail this is a snapshot of.
+     */
+    public String getSourceRoot() {
+        return _source;
+    }
+
+    /**
+     * Name of the HDFS snapshot backing this view, or null when files are read in place.
+     */
+    public String getHdfsSnapshot() {
+        return _hdfsSnapshot;
+    }
+
+    /**
+     * Deletes the manifest and the HDFS snapshot, if any. The files stay in the pail.
+     */
+    public void release() throws IOException {
+        if(_hdfsSnapshot!=null) getFileSystem().deleteSnapshot(new Path(_source), _hdfsSnapshot);
+        Path path = new Path(_manifest);
+        path.getFileSystem(getFileSystem().getConf()).delete(path, false);
+    }
+
+    @Override
+    public List<String> getUserFileNames() throws IOException {
+        return new ArrayList<String>(_names);
+    }
+
+    @Override
+    public List<FileStatus> getStoredFileStatuses() throws IOException {
+        return inManifest(super.getStoredFileStatuses());
+    }
+
+    @Override
+    public List<FileStatus> getStoredFileAndMetadataStatuses() throws IOException {
+        return inManifest(super.getStoredFileAndMetadataStatuses());
+    }
+
+    @Override
+    public List<Path> getStoredFilesAndMetadata() throws IOException {
+        Set<String> stored = getStoredPaths();
+        List<Path> ret = new ArrayList<Path>();
+        for(Path p: super.getStoredFilesAndMetadata()) {
+            if(!p.getName().endsWith(EXTENSION) || stored.contains(p.toUri().getPath())) ret.add(p);
+        }
+        return ret;
+    }
+
+    @Override
+    protected boolean isReadOnly() {
+        return true;
+    }
+
+    private Set<String> getStoredPaths() {
+        Set<String> ret = new HashSet<String>();
+        for(String name: _names) {
+            ret.add(toStoredPath(name).toUri().getPath());
+        }
+        return ret;
+    }
+
+    // listings of the pail also have files written after the snapshot
+    private List<FileStatus> inManifest(List<FileStatus> statuses) {
+        Set<String> stored = getStoredPaths();
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        for(FileStatus stat: statuses) {
+            Path p = stat.getPath();
+            if(!p.getName().endsWith(EXTENSION) || stored.contains(p.toUri().getPath())) ret.add(stat);
+        }
+        return ret;
+    }
+}
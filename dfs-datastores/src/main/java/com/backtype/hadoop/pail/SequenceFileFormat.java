@@ -1,7 +1,9 @@
 package com.backtype.hadoop.pail;
 
+import com.backtype.hadoop.formats.ConcatenatingStreamFactory;
 import com.backtype.hadoop.formats.RecordInputStream;
 import com.backtype.hadoop.formats.RecordOutputStream;
+import com.backtype.hadoop.formats.SequenceFileConcat;
 import com.backtype.hadoop.formats.SequenceFileInputStream;
 import com.backtype.hadoop.formats.SequenceFileOutputStream;
 import com.backtype.support.KeywordArgParser;
@@ -18,6 +20,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.Progressable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,7 +31,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class SequenceFileFormat implements PailFormat {
+public class SequenceFileFormat implements PailFormat, ConcatenatingStreamFactory {
     public static final String TYPE_ARG = "compressionType";
     public static final String CODEC_ARG = "compressionCodec";
 
@@ -77,6 +80,28 @@ public class SequenceFileFormat implements PailFormat {
             return new SequenceFileOutputStream(fs, path, type, codec);
     }
 
+    public CompressionType getCompressionType() {
+        CompressionType type = TYPES.get(_typeArg);
+        return type==null ? CompressionType.NONE : type;
+    }
+
+    /**
+     * The codec used by compressed files, or null if this format doesn't compress.
+     */
+    public CompressionCodec getCompressionCodec() {
+        return getCompressionType()==CompressionType.NONE ? null : CODECS.get(_codecArg);
+    }
+
+    public ConcatOutput openConcat(FileSystem fs, List<Path> sources, Path target) throws IOException {
+        return SequenceFileConcat.open(fs, sources, target, BytesWritable.class, NullWritable.class,
+                getCompressionType(), getCompressionCodec());
+    }
+
+    public boolean concatInto(FileSystem fs, Path target, List<Path> sources, Progressable progress) throws IOException {
+        return SequenceFileConcat.concatInto(fs, target, sources, BytesWritable.class, NullWritable.class,
+                getCompressionType(), getCompressionCodec(), progress);
+    }
+
     public Class<? extends InputFormat> getInputFormatClass() {
         return SequenceFilePailInputFormat.class;
     }
@@ -85,11 +110,13 @@ public class SequenceFileFormat implements PailFormat {
     public static class SequenceFilePailRecordReader implements RecordReader<Text, BytesWritable> {
         private static Logger LOG = LoggerFactory.getLogger(SequenceFilePailRecordReader.class);
         public static final int NUM_TRIES = 10;
+        private static final int COUNTER_FLUSH_RECORDS = 10000;
 
         JobConf conf;
         PailInputSplit split;
         int recordsRead;
         Reporter reporter;
+        PailCounters counters;
 
         SequenceFileRecordReader<BytesWritable, NullWritable> delegate;
 
@@ -99,6 +126,7 @@ public class SequenceFileFormat implements PailFormat {
            this.conf = conf;
            this.recordsRead = 0;
            this.reporter = reporter;
+           this.counters = new PailCounters(split.getSpec());
            LOG.info("Processing pail file " + split.getPath().toString());
            resetDelegate();
         }
@@ -130,11 +158,20 @@ public class SequenceFileFormat implements PailFormat {
              */
             for(int i=0; i<NUM_TRIES; i++) {
                 try {
+                    long start = System.nanoTime();
                     boolean ret = delegate.next(v, NullWritable.get());
+                    counters.incrNanos(PailCounters.Counter.DECOMPRESSION_MILLIS, System.nanoTime() - start);
                     k.set(split.getPailRelPath());
-                    recordsRead++;
+                    if(ret) {
+                        recordsRead++;
+                        counters.incr(PailCounters.Counter.RECORDS_READ, 1);
+                        counters.incr(PailCounters.Counter.BYTES_READ, v.getLength());
+                        if(recordsRead % COUNTER_FLUSH_RECORDS == 0) counters.flush(reporter);
+                    }
                     return ret;
                 } catch(EOFException e) {
+                    counters.incr(PailCounters.Counter.EOF_RETRIES, 1);
+                    counters.flush(reporter);
                     progress();
                     Utils.sleep(10000); //in case it takes time for S3 to recover
                     progress();
@@ -145,6 +182,10 @@ public class SequenceFileFormat implements PailFormat {
                 }
             }
             //stop trying to read the file at this point and discard the rest of the file
+            counters.incr(PailCounters.Counter.DISCARDED_FILES, 1);
+            counters.incr(PailCounters.Counter.DISCARDED_BYTES,
+                    Math.max(0, split.getStart() + split.getLength() - delegate.getPos()));
+            counters.flush(reporter);
             return false;
         }
 
@@ -161,6 +202,7 @@ public class SequenceFileFormat implements PailFormat {
         }
 
         public void close() throws IOException {
+            counters.flush(reporter);
             delegate.close();
         }
 
@@ -0,0 +1,346 @@
+package com.backtype.hadoop.pail;
+
+import com.backtype.hadoop.pail.PailOutputFormat.PailRecordWriter;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * PailRecordWriter for outputs spread over a large number of attributes. Instead of keeping one open stream per
+ * attribute, records are buffered in memory up to pail.writer.spill.bytes. When the buffer fills up it is sorted
+ * by attribute and spilled to local disk. At close the spills are merged and each attribute is written out in one
+ * sequential run, so only one pail file is open at any time.
+ *
+ * Spill files are a sequence of runs: a boolean "has next run", the attribute, the number of records and then each
+ * record as a vint length followed by the bytes.
+ */
+public class SpillingPailRecordWriter extends PailRecordWriter {
+    public static Logger LOG = LoggerFactory.getLogger(SpillingPailRecordWriter.class);
+
+    public static final String SPILL_BYTES = "pail.writer.spill.bytes";
+    public static final int DEFAULT_SPILL_BYTES = 64 * 1024 * 1024;
+    // max number of spill files read at once when merging
+    public static final String MERGE_FACTOR = "pail.writer.spill.merge.factor";
+    public static final int DEFAULT_MERGE_FACTOR = 64;
+
+    private JobConf _conf;
+    private FileSystem _localFs;
+    private String _spillPrefix;
+    private int _spillBytes;
+    private int _mergeFactor;
+
+    private byte[] _buffer;
+    private int _bufferLen = 0;
+    private int _numRecords = 0;
+    private int[] _offsets = new int[1024];
+    private int[] _lengths = new int[1024];
+    private int[] _attrs = new int[1024];
+
+    private Map<Text, Integer> _attrIds = new HashMap<Text, Integer>();
+    private List<String> _attrNames = new ArrayList<String>();
+
+    private List<Path> _spills = new ArrayList<Path>();
+    private int _numSpillsCreated = 0;
+
+    public SpillingPailRecordWriter(JobConf conf, String unique, Progressable p) throws IOException {
+        super(conf, unique, p);
+        _conf = conf;
+        _localFs = FileSystem.getLocal(conf);
+        _spillPrefix = "pailspill/" + unique + "-" + UUID.randomUUID().toString();
+        _spillBytes = conf.getInt(SPILL_BYTES, DEFAULT_SPILL_BYTES);
+        _mergeFactor = Math.max(2, conf.getInt(MERGE_FACTOR, DEFAULT_MERGE_FACTOR));
+        _buffer = new byte[Math.min(_spillBytes, 1024 * 1024)];
+    }
+
+    @Override
+    public void write(Text k, BytesWritable v) throws IOException {
+        int length = v.getLength();
+        if(_bufferLen > 0 && _bufferLen + length > _spillBytes) {
+            spill();
+        }
+        ensureCapacity(length);
+        System.arraycopy(v.getBytes(), 0, _buffer, _bufferLen, length);
+        _offsets[_numRecords] = _bufferLen;
+        _lengths[_numRecords] = length;
+        _attrs[_numRecords] = getAttrId(k);
+        _numRecords++;
+        _bufferLen += length;
+    }
+
+    private int getAttrId(Text k) {
+        Integer id = _attrIds.get(k);
+        if(id==null) {
+            id = _attrNames.size();
+            _attrIds.put(new Text(k), id);
+            _attrNames.add(k.toString());
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int length) {
+        if(_bufferLen + length > _buffer.length) {
+            long newSize = Math.max((long) _bufferLen + length, 2L * _buffer.length);
+            _buffer = Arrays.copyOf(_buffer, (int) Math.min(newSize, Integer.MAX_VALUE - 8));
+        }
+        if(_numRecords == _offsets.length) {
+            int newSize = _numRecords * 2;
+            _offsets = Arrays.copyOf(_offsets, newSize);
+            _lengths = Arrays.copyOf(_lengths, newSize);
+            _attrs = Arrays.copyOf(_attrs, newSize);
+        }
+    }
+
+    /**
+     * Returns the buffered record indexes ordered by attribute name, keeping the write order within an attribute.
+     * Uses a counting sort over the attribute ranks so sorting is linear in the number of records.
+     */
+    private int[] sortedOrder() {
+        int numAttrs = _attrNames.size();
+        Integer[] byName = new Integer[numAttrs];
+        for(int i=0; i<numAttrs; i++) byName[i] = i;
+        Arrays.sort(byName, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return _attrNames.get(o1).compareTo(_attrNames.get(o2));
+            }
+        });
+        int[] rank = new int[numAttrs];
+        for(int i=0; i<numAttrs; i++) rank[byName[i]] = i;
+
+        int[] starts = new int[numAttrs + 1];
+        for(int i=0; i<_numRecords; i++) starts[rank[_attrs[i]] + 1]++;
+        for(int i=0; i<numAttrs; i++) starts[i+1] += starts[i];
+        int[] order = new int[_numRecords];
+        for(int i=0; i<_numRecords; i++) {
+            order[starts[rank[_attrs[i]]]++] = i;
+        }
+        return order;
+    }
+
+    private void clearBuffer() {
+        _bufferLen = 0;
+        _numRecords = 0;
+        _attrIds.clear();
+        _attrNames.clear();
+    }
+
+    private Path newSpillPath() throws IOException {
+        Path p = _conf.getLocalPath(_spillPrefix + "-" + _numSpillsCreated);
+        _numSpillsCreated++;
+        return p;
+    }
+
+    private void spill() throws IOException {
+        Path spill = newSpillPath();
+        LOG.info("Spilling " + _numRecords + " records (" + _bufferLen + " bytes) over " + _attrNames.size() +
+                " attributes to " + spill);
+        int[] order = sortedOrder();
+        DataOutputStream os = _localFs.create(spill, true);
+        try {
+            int i = 0;
+            while(i < order.length) {
+                int attr = _attrs[order[i]];
+                int end = i;
+                while(end < order.length && _attrs[order[end]] == attr) end++;
+                os.writeBoolean(true);
+                Text.writeString(os, _attrNames.get(attr));
+                WritableUtils.writeVInt(os, end - i);
+                for(; i<end; i++) {
+                    int rec = order[i];
+                    WritableUtils.writeVInt(os, _lengths[rec]);
+                    os.write(_buffer, _offsets[rec], _lengths[rec]);
+                }
+            }
+            os.writeBoolean(false);
+        } finally {
+            os.close();
+        }
+        _spills.add(spill);
+        clearBuffer();
+        progress();
+    }
+
+    private void progress() {
+        Reporter r = getReporter();
+        if(r!=null) r.progress();
+    }
+
+    /**
+     * Cursor over the runs of a spill file. Ordered by the attribute of the current run, then by spill order so that
+     * records of the same attribute keep the order in which they were written.
+     */
+    private static class SpillReader implements Comparable<SpillReader> {
+        int index;
+        Path path;
+        DataInputStream in;
+        String attr;
+        int runRecords;
+        byte[] record = new byte[1024];
+
+        public SpillReader(int index, Path path, FileSystem fs) throws IOException {
+            this.index = index;
+            this.path = path;
+            this.in = fs.open(path);
+        }
+
+        public boolean nextRun() throws IOException {
+            if(!in.readBoolean()) {
+                attr = null;
+                return false;
+            }
+            attr = Text.readString(in);
+            runRecords = WritableUtils.readVInt(in);
+            return true;
+        }
+
+        public int readRecord() throws IOException {
+            int length = WritableUtils.readVInt(in);
+            if(record.length < length) record = new byte[Math.max(length, record.length * 2)];
+            in.readFully(record, 0, length);
+            return length;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        public int compareTo(SpillReader o) {
+            int c = attr.compareTo(o.attr);
+            if(c!=0) return c;
+            return index - o.index;
+        }
+    }
+
+    private interface RunSink {
+        public void beginRun(String attr, int numRecords) throws IOException;
+        public void write(String attr, byte[] record, int length) throws IOException;
+        public void endRun(String attr) throws IOException;
+    }
+
+    private void merge(List<Path> spills, RunSink sink) throws IOException {
+        PriorityQueue<SpillReader> queue = new PriorityQueue<SpillReader>();
+        List<SpillReader> readers = new ArrayList<SpillReader>();
+        try {
+            for(int i=0; i<spills.size(); i++) {
+                SpillReader r = new SpillReader(i, spills.get(i), _localFs);
+                readers.add(r);
+                if(r.nextRun()) queue.add(r);
+            }
+            String currAttr = null;
+            while(!queue.isEmpty()) {
+                SpillReader r = queue.poll();
+                if(currAttr!=null && !currAttr.equals(r.attr)) {
+                    sink.endRun(currAttr);
+                }
+                currAttr = r.attr;
+                sink.beginRun(r.attr, r.runRecords);
+                for(int i=0; i<r.runRecords; i++) {
+                    int length = r.readRecord();
+                    sink.write(r.attr, r.record, length);
+                }
+                if(r.nextRun()) queue.add(r);
+                progress();
+            }
+            if(currAttr!=null) sink.endRun(currAttr);
+        } finally {
+            for(SpillReader r: readers) {
+                r.close();
+            }
+        }
+        for(Path p: spills) {
+            _localFs.delete(p, false);
+        }
+    }
+
+    private Path mergeToSpill(List<Path> spills) throws IOException {
+        final Path merged = newSpillPath();
+        LOG.info("Merging " + spills.size() + " spills into " + merged);
+        final DataOutputStream os = _localFs.create(merged, true);
+        try {
+            merge(spills, new RunSink() {
+                public void beginRun(String attr, int numRecords) throws IOException {
+                    os.writeBoolean(true);
+                    Text.writeString(os, attr);
+                    WritableUtils.writeVInt(os, numRecords);
+                }
+
+                public void write(String attr, byte[] record, int length) throws IOException {
+                    WritableUtils.writeVInt(os, length);
+                    os.write(record, 0, length);
+                }
+
+                public void endRun(String attr) {
+                }
+            });
+            os.writeBoolean(false);
+        } finally {
+            os.close();
+        }
+        return merged;
+    }
+
+    private void writeBufferToPail() throws IOException {
+        int[] order = sortedOrder();
+        int i = 0;
+        while(i < order.length) {
+            int attr = _attrs[order[i]];
+            String attrName = _attrNames.get(attr);
+            for(; i<order.length && _attrs[order[i]] == attr; i++) {
+                int rec = order[i];
+                writeRecord(getOutputter(attrName), _buffer, _offsets[rec], _lengths[rec]);
+            }
+            closeOutputter(attrName);
+            progress();
+        }
+        clearBuffer();
+    }
+
+    @Override
+    public void close(Reporter rprtr) throws IOException {
+        if(_spills.isEmpty()) {
+            writeBufferToPail();
+        } else {
+            if(_numRecords > 0) spill();
+            //bound the number of spill files open at once
+            while(_spills.size() > _mergeFactor) {
+                List<Path> toMerge = new ArrayList<Path>(_spills.subList(0, _mergeFactor));
+                Path merged = mergeToSpill(toMerge);
+                _spills = new ArrayList<Path>(_spills.subList(_mergeFactor, _spills.size()));
+                //the merged spill holds the oldest records so it goes first
+                _spills.add(0, merged);
+            }
+            merge(_spills, new RunSink() {
+                public void beginRun(String attr, int numRecords) {
+                }
+
+                public void write(String attr, byte[] record, int length) throws IOException {
+                    writeRecord(getOutputter(attr), record, 0, length);
+                }
+
+                public void endRun(String attr) throws IOException {
+                    closeOutputter(attr);
+                }
+            });
+            _spills.clear();
+        }
+        super.close(rprtr);
+    }
+}
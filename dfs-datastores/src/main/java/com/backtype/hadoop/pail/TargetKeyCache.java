@@ -0,0 +1,88 @@
+package com.backtype.hadoop.pail;
+
+import com.backtype.support.Utils;
+import org.apache.hadoop.io.Text;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keys for PailOutputFormat, the target joined with "/" followed by the category, encoded once per target and
+ * category rather than once per record. Hits don't allocate: the last key is checked first and other lookups go
+ * through a reused probe. Past maxSize the least recently used keys are dropped.
+ */
+public class TargetKeyCache {
+    private static class Entry {
+        List<String> target;
+        String category;
+        int hash;
+        Text key;
+
+        void set(List<String> target, String category) {
+            this.target = target;
+            this.category = category;
+            hash = 31 * target.hashCode() + (category==null ? 0 : category.hashCode());
+        }
+
+        boolean matches(List<String> target, String category) {
+            return (this.category==null ? category==null : this.category.equals(category)) && this.target.equals(target);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Entry)) return false;
+            Entry other = (Entry) o;
+            return hash==other.hash && matches(other.target, other.category);
+        }
+    }
+
+    private Map<Entry, Entry> _keys;
+    private Entry _probe = new Entry();
+    private Entry _last;
+    private long _misses = 0;
+
+    public TargetKeyCache(final int maxSize) {
+        _keys = new LinkedHashMap<Entry, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Entry, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * The returned Text is shared between calls and must not be changed. target may be reused by the caller.
+     */
+    public Text get(List<String> target, String category) {
+        if(_last!=null && _last.matches(target, category)) return _last.key;
+        _probe.set(target, category);
+        Entry entry = _keys.get(_probe);
+        if(entry==null) {
+            _misses++;
+            entry = new Entry();
+            entry.set(new ArrayList<String>(target), category);
+            entry.key = new Text(Utils.join(target, "/") + category);
+            _keys.put(entry, entry);
+        }
+        _last = entry;
+        return entry.key;
+    }
+
+    public int size() {
+        return _keys.size();
+    }
+
+    /**
+     * Number of keys that had to be encoded.
+     */
+    public long getMisses() {
+        return _misses;
+    }
+}
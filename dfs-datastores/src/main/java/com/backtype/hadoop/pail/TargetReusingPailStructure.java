@@ -0,0 +1,14 @@
+package com.backtype.hadoop.pail;
+
+import java.util.List;
+
+/**
+ * Optional extension of PailStructure for structures that can write the target of an object into a reused list,
+ * saving the list getTarget allocates for every record written through PailTap.
+ */
+public interface TargetReusingPailStructure<T> extends PailStructure<T> {
+    /**
+     * Replaces the contents of into with the target of object. Must give the same target as getTarget.
+     */
+    public void getTargetInto(T object, List<String> into);
+}
@@ -0,0 +1,14 @@
+package com.backtype.hadoop.pail;
+
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Optional extension of PailStructure for structures that can serialize straight into a reused BytesWritable,
+ * saving the intermediate byte[] that serialize allocates for every record written through PailTap.
+ */
+public interface WritablePailStructure<T> extends PailStructure<T> {
+    /**
+     * Replaces the contents of into with the serialized object. Must produce the same bytes as serialize.
+     */
+    public void serializeInto(T object, BytesWritable into);
+}
@@ -0,0 +1,180 @@
+package com.backtype.support;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many small blocking operations, such as a rename or delete per file, with at most a fixed number in flight.
+ * Submitting blocks once the limit is reached, so any number of operations can be fed in without queueing them all.
+ *
+ * Once an operation fails no new ones are started. await waits for those in flight and rethrows the first
+ * failure, with the others attached as suppressed exceptions. run does both, keeping a failure of the submitting
+ * code over those of the operations.
+ */
+public class BoundedExecutor {
+    public interface Operation {
+        public void run() throws IOException;
+    }
+
+    public interface Submitter {
+        public void submitAll(BoundedExecutor executor) throws IOException;
+    }
+
+    // failures kept beyond the first
+    private static final int MAX_SUPPRESSED = 10;
+
+    private ExecutorService _pool;
+    private Semaphore _inFlight;
+    private int _parallelism;
+    private List<Throwable> _failures = new ArrayList<Throwable>();
+    private int _numFailed = 0;
+    private ConcurrentMap<Path, FutureTask<Boolean>> _dirs = new ConcurrentHashMap<Path, FutureTask<Boolean>>();
+
+    public BoundedExecutor(final String name, int parallelism) {
+        _parallelism = Math.max(1, parallelism);
+        _inFlight = new Semaphore(_parallelism);
+        _pool = Executors.newFixedThreadPool(_parallelism, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Runs op on the pool, waiting for a slot if the limit is reached. Does nothing once an operation has failed.
+     */
+    public void submit(final Operation op) throws IOException {
+        try {
+            _inFlight.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while submitting");
+        }
+        if(hasFailed()) {
+            _inFlight.release();
+            return;
+        }
+        _pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    op.run();
+                } catch(Throwable t) {
+                    fail(t);
+                } finally {
+                    _inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates dir unless this executor already did. Concurrent callers for the same dir wait for a single mkdirs.
+     */
+    public void mkdirs(final FileSystem fs, final Path dir) throws IOException {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                return fs.mkdirs(dir);
+            }
+        });
+        FutureTask<Boolean> existing = _dirs.putIfAbsent(dir, task);
+        if(existing==null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        try {
+            if(!task.get()) throw new IOException("could not create " + dir);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating " + dir);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Failed to create " + dir, e.getCause());
+        }
+    }
+
+    /**
+     * Waits for every submitted operation, shuts the pool down and throws the first failure if there was one.
+     */
+    public void await() throws IOException {
+        try {
+            _inFlight.acquire(_parallelism);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for operations");
+        } finally {
+            _pool.shutdownNow();
+        }
+        synchronized(this) {
+            if(_failures.isEmpty()) return;
+            Throwable first = _failures.get(0);
+            for(Throwable t: _failures.subList(1, _failures.size())) {
+                first.addSuppressed(t);
+            }
+            if(_numFailed > _failures.size()) {
+                first.addSuppressed(new IOException((_numFailed - _failures.size()) + " more operations failed"));
+            }
+            if(first instanceof IOException) throw (IOException) first;
+            if(first instanceof RuntimeException) throw (RuntimeException) first;
+            if(first instanceof Error) throw (Error) first;
+            throw new IOException(first);
+        }
+    }
+
+    /**
+     * Submits operations with submitter, then awaits them. If submitter itself fails, that is the failure thrown,
+     * with any failure of the operations attached as suppressed.
+     */
+    public void run(Submitter submitter) throws IOException {
+        Throwable failure = null;
+        try {
+            submitter.submitAll(this);
+        } catch(Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            await(failure);
+        }
+    }
+
+    // what await would throw is attached to failure instead, plain await when failure is null
+    private void await(Throwable failure) throws IOException {
+        if(failure==null) {
+            await();
+            return;
+        }
+        try {
+            await();
+        } catch(Throwable t) {
+            if(t != failure) failure.addSuppressed(t);
+        }
+    }
+
+    private synchronized boolean hasFailed() {
+        return _numFailed > 0;
+    }
+
+    private synchronized void fail(Throwable t) {
+        _numFailed++;
+        if(_failures.size() <= MAX_SUPPRESSED) _failures.add(t);
+    }
+}
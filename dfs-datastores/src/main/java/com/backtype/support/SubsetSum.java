@@ -1,81 +1,92 @@
 package com.backtype.support;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
+/**
+ * Packs values into sets whose sums don't exceed a target, using as few sets as reasonably possible.
+ *
+ * Uses first-fit decreasing: values are placed from largest to smallest into the first set with enough room left.
+ * The remaining room of every set is kept in a max segment tree, so finding the first set that fits is O(log n)
+ * and a whole plan is O(n log n).
+ */
 public class SubsetSum {
 
     public interface Value {
         public long getValue();
     }
 
-    private static <T extends Value> long greedy(List<T> input, long targetSize, List<T> ret, List<T> left) {
-        long sum = 0;
-        for (T p : input) {
-            if (sum + p.getValue() <= targetSize) {
-                sum += p.getValue();
-                ret.add(p);
+    //things that are too big get their own set
+    public static <T extends Value> List<List<T>> split(List<T> input, long targetSize) {
+        int n = input.size();
+        long[] values = new long[n];
+        for(int i=0; i<n; i++) {
+            values[i] = input.get(i).getValue();
+        }
+        int[] order = sortDescending(values);
+
+        List<List<T>> ret = new ArrayList<List<T>>();
+        int numSmall = 0;
+        for(int i: order) {
+            if(values[i] >= targetSize) {
+                List<T> elem = new ArrayList<T>();
+                elem.add(input.get(i));
+                ret.add(elem);
             } else {
-                left.add(p);
+                numSmall++;
             }
         }
-        return sum;
-    }
-
-    private static <T extends Value> List<T> removeBestSubset(List<T> input, long targetSize) {
-        List<T> ret1 = new ArrayList<T>();
-        List<T> left1 = new ArrayList<T>();
-        List<T> ret2 = new ArrayList<T>();
-        List<T> left2 = new ArrayList<T>();
+        if(numSmall==0) return ret;
 
-        long size1 = greedy(input, targetSize, ret1, left1);
-        Collections.reverse(input);
-        long size2 = greedy(input, targetSize, ret2, left2);
+        int leaves = 1;
+        while(leaves < numSmall) leaves <<= 1;
+        // max remaining room per subtree. sets that aren't opened yet have all the room
+        long[] room = new long[2 * leaves];
+        for(int i=leaves; i<leaves + numSmall; i++) room[i] = targetSize;
+        for(int i=leaves-1; i>=1; i--) room[i] = Math.max(room[2*i], room[2*i+1]);
 
-        List<T> ret;
-        List<T> left;
-        if (size1 > size2) {
-            ret = ret1;
-            left = left1;
-        } else {
-            ret = ret2;
-            left = left2;
+        List<List<T>> sets = new ArrayList<List<T>>();
+        for(int i: order) {
+            long v = values[i];
+            if(v >= targetSize) continue;
+            // there are as many sets as small values, so there's always one with room
+            int node = 1;
+            while(node < leaves) {
+                node = room[2*node] >= v ? 2*node : 2*node + 1;
+            }
+            int set = node - leaves;
+            if(set == sets.size()) sets.add(new ArrayList<T>());
+            sets.get(set).add(input.get(i));
+            room[node] -= v;
+            for(node >>= 1; node >= 1; node >>= 1) {
+                room[node] = Math.max(room[2*node], room[2*node+1]);
+            }
         }
-
-        input.clear();
-        input.addAll(left);
-
+        ret.addAll(sets);
         return ret;
     }
 
-    //things that are too big get their own set
-    public static <T extends Value> List<List<T>> split(List<T> input, long targetSize) {
-        Collections.sort(input, new Comparator<Value>() {
-            public int compare(Value o1, Value o2) {
-                return new Long(o1.getValue()).compareTo(new Long(o2.getValue()));
-            }
-        });
-        List<T> smaller = new ArrayList<T>();
-        List<T> bigger = new ArrayList<T>();
-        for(T v: input) {
-            if(v.getValue() >= targetSize) {
-                bigger.add(v);
-            } else {
-                smaller.add(v);
+    /**
+     * Indexes of values from largest to smallest. Stable, so equal values keep their input order.
+     */
+    private static int[] sortDescending(long[] values) {
+        int n = values.length;
+        int[] order = new int[n];
+        for(int i=0; i<n; i++) order[i] = i;
+        int[] tmp = new int[n];
+        for(int width=1; width<n; width*=2) {
+            for(int lo=0; lo<n - width; lo += 2*width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2*width, n);
+                int a = lo, b = mid, k = lo;
+                while(a < mid && b < hi) {
+                    tmp[k++] = values[order[b]] > values[order[a]] ? order[b++] : order[a++];
+                }
+                while(a < mid) tmp[k++] = order[a++];
+                while(b < hi) tmp[k++] = order[b++];
+                System.arraycopy(tmp, lo, order, lo, hi - lo);
             }
         }
-        List<List<T>> ret = new ArrayList<List<T>>();
-        for(T b: bigger) {
-            List<T> elem = new ArrayList<T>();
-            elem.add(b);
-            ret.add(elem);
-        }
-
-        while(smaller.size()>0) {
-            ret.add(removeBestSubset(smaller, targetSize));
-        }
-        return ret;
+        return order;
     }
 }
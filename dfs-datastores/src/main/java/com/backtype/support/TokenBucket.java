@@ -0,0 +1,61 @@
+package com.backtype.support;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Limits a rate, such as bytes per second, shared by any number of threads. Tokens accumulate at the rate up to the
+ * capacity, and taking more than are available waits for the difference to accumulate. Large requests are let
+ * through on credit, so later ones wait for them.
+ */
+public class TokenBucket {
+    private long _rate;
+    private long _capacity;
+    private double _tokens;
+    private long _last;
+    private long _waitedMillis = 0;
+
+    public TokenBucket(long ratePerSecond) {
+        this(ratePerSecond, ratePerSecond);
+    }
+
+    public TokenBucket(long ratePerSecond, long capacity) {
+        if(ratePerSecond <= 0) throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+        _rate = ratePerSecond;
+        _capacity = capacity;
+        _tokens = capacity;
+        _last = System.nanoTime();
+    }
+
+    public long getRate() {
+        return _rate;
+    }
+
+    /**
+     * Takes n tokens, waiting until they are available.
+     */
+    public synchronized void acquire(long n) throws IOException {
+        long now = System.nanoTime();
+        _tokens = Math.min(_capacity, _tokens + (now - _last) * _rate / 1e9);
+        _last = now;
+        _tokens -= n;
+        if(_tokens < 0) {
+            // waiting while holding the lock queues up the other threads behind the debt
+            long wait = (long) Math.ceil(-_tokens * 1000 / _rate);
+            try {
+                Thread.sleep(wait);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+            _waitedMillis += wait;
+        }
+    }
+
+    /**
+     * Total time spent waiting for tokens.
+     */
+    public synchronized long getWaitedMillis() {
+        return _waitedMillis;
+    }
+}
@@ -0,0 +1,199 @@
+package com.backtype.hadoop;
+
+import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Progressable;
+import static com.backtype.support.TestUtils.*;
+
+public class ChunkedCopyTest extends TestCase {
+    private static final Progressable NO_PROGRESS = new Progressable() {
+        public void progress() {
+        }
+    };
+
+    private static class FlatLister implements PathLister {
+        public List<Path> getFiles(FileSystem fs, String path) {
+            List<Path> ret = new ArrayList<Path>();
+            try {
+                for(FileStatus stat: fs.listStatus(new Path(path))) {
+                    ret.add(stat.getPath());
+                }
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            return ret;
+        }
+    }
+
+    FileSystem fs;
+
+    public ChunkedCopyTest() throws IOException {
+        fs = FileSystem.getLocal(new Configuration());
+    }
+
+    private byte[] writeRandom(Path p, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        FSDataOutputStream os = fs.create(p);
+        os.write(data);
+        os.close();
+        return data;
+    }
+
+    private byte[] read(Path p) throws IOException {
+        byte[] ret = new byte[(int) fs.getFileStatus(p).getLen()];
+        FSDataInputStream is = fs.open(p);
+        is.readFully(ret);
+        is.close();
+        return ret;
+    }
+
+    public void testOrderedCopy() throws IOException {
+        ChunkedCopy copy = new ChunkedCopy(4, 1000, 128);
+        try {
+            for(int length: new int[] {1001, 4000, 123457}) {
+                Path source = new Path(getTmpPath(fs, "source"));
+                Path target = new Path(getTmpPath(fs, "target"));
+                byte[] data = writeRandom(source, length);
+                assertTrue(copy.shouldChunk(length));
+                copy.copy(fs, source, length, fs, target, NO_PROGRESS);
+                assertArraysEqual(data, read(target));
+            }
+            assertFalse(copy.shouldChunk(1000));
+        } finally {
+            copy.close();
+        }
+        assertFalse(new ChunkedCopy(1, 1000, 128).shouldChunk(5000));
+    }
+
+    /**
+     * Enough of HDFS over the local filesystem for the concat copy.
+     */
+    private static class LocalDfs extends DistributedFileSystem {
+        FileSystem local;
+        long blockSize;
+        boolean failConcat = false;
+
+        LocalDfs(FileSystem local, long blockSize) {
+            this.local = local;
+            this.blockSize = blockSize;
+            setConf(local.getConf());
+        }
+
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                                         short replication, long blockSize, Progressable progress) throws IOException {
+            return local.create(f, overwrite, bufferSize);
+        }
+
+        @Override
+        public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+            return local.open(f, bufferSize);
+        }
+
+        @Override
+        public boolean delete(Path f, boolean recursive) throws IOException {
+            return local.delete(f, recursive);
+        }
+
+        @Override
+        public long getDefaultBlockSize(Path f) {
+            return blockSize;
+        }
+
+        @Override
+        public short getDefaultReplication(Path f) {
+            return 1;
+        }
+
+        @Override
+        public void concat(Path trg, Path[] psrcs) throws IOException {
+            if(psrcs.length==0) throw new IllegalArgumentException("No sources given");
+            if(failConcat) throw new IOException("concat failed");
+            Path tmp = new Path(trg.toString() + ".concat");
+            FSDataOutputStream out = local.create(tmp);
+            List<Path> all = new ArrayList<Path>(Arrays.asList(psrcs));
+            all.add(0, trg);
+            for(Path p: all) {
+                FSDataInputStream in = local.open(p);
+                IOUtils.copyBytes(in, out, 4096, false);
+                in.close();
+                local.delete(p, false);
+            }
+            out.close();
+            local.rename(tmp, trg);
+        }
+    }
+
+    public void testConcatCopy() throws IOException {
+        ChunkedCopy copy = new ChunkedCopy(4, 4096, 512);
+        try {
+            //chunks of whole blocks, and a block larger than the chunk size leaving a single chunk
+            for(long blockSize: new long[] {1024, 65536}) {
+                LocalDfs dfs = new LocalDfs(fs, blockSize);
+                Path source = new Path(getTmpPath(fs, "source"));
+                Path target = new Path(getTmpPath(fs, "target"), "file");
+                byte[] data = writeRandom(source, 20000);
+                assertTrue(copy.shouldChunk(data.length));
+                copy.copy(fs, source, data.length, dfs, target, NO_PROGRESS);
+                assertArraysEqual(data, read(target));
+                assertEquals(1, fs.listStatus(target.getParent()).length);
+            }
+        } finally {
+            copy.close();
+        }
+    }
+
+    public void testConcatCopyFailure() throws IOException {
+        ChunkedCopy copy = new ChunkedCopy(4, 1024, 512);
+        try {
+            LocalDfs dfs = new LocalDfs(fs, 1024);
+            dfs.failConcat = true;
+            Path source = new Path(getTmpPath(fs, "source"));
+            Path target = new Path(getTmpPath(fs, "target"), "file");
+            byte[] data = writeRandom(source, 20000);
+            try {
+                copy.copy(fs, source, data.length, dfs, target, NO_PROGRESS);
+                fail("concat should fail");
+            } catch(IOException e) {
+            }
+            assertEquals(0, fs.listStatus(target.getParent()).length);
+        } finally {
+            copy.close();
+        }
+    }
+
+    public void testDistcpLargeFiles() throws IOException {
+        String source = getTmpPath(fs, "source");
+        String dest = getTmpPath(fs, "dest");
+        byte[] big = writeRandom(new Path(source, "big"), 50000);
+        byte[] small = writeRandom(new Path(source, "small"), 100);
+        Configuration conf = new Configuration();
+        conf.setLong(BalancedDistcp.CHUNK_SIZE, 4096);
+        conf.setInt(BalancedDistcp.BUFFER_SIZE, 512);
+        conf.setLong(BalancedDistcp.JOB_BANDWIDTH, 1000000);
+        FileCopyArgs args = new FileCopyArgs(fs.makeQualified(new Path(source)).toString(),
+                fs.makeQualified(new Path(dest)).toString(), RenameMode.NO_RENAME, new FlatLister(), "");
+        BalancedDistcp.distcp(args, conf);
+        assertArraysEqual(big, read(new Path(dest, "big")));
+        assertArraysEqual(small, read(new Path(dest, "small")));
+    }
+
+    public void testBufferSizes() {
+        assertEquals(BalancedDistcp.LOCAL_BUFFER_SIZE, BalancedDistcp.getBufferSize(fs));
+    }
+}
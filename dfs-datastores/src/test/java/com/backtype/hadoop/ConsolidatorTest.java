@@ -0,0 +1,54 @@
+package com.backtype.hadoop;
+
+import com.backtype.hadoop.Consolidator.ConsolidatorRecordReader;
+import com.backtype.hadoop.Consolidator.ConsolidatorSplit;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+
+public class ConsolidatorTest extends TestCase {
+
+    private ConsolidatorSplit split() {
+        return new ConsolidatorSplit(new String[] {"/a/1", "/a/2", "/a/3"}, new long[] {100, 300, 600}, "/a/cons1",
+                400, new String[] {"host2", "host1"});
+    }
+
+    public void testSplitSerialization() throws IOException {
+        ConsolidatorSplit split = split();
+        assertEquals(1000, split.getLength());
+        DataOutputBuffer out = new DataOutputBuffer();
+        split.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        ConsolidatorSplit read = new ConsolidatorSplit();
+        read.readFields(in);
+        assertEquals(Arrays.asList(split.sources), Arrays.asList(read.sources));
+        assertTrue(Arrays.equals(split.sizes, read.sizes));
+        assertEquals(split.target, read.target);
+        assertEquals(400, read.newBytes);
+        assertEquals(Arrays.asList("host2", "host1"), Arrays.asList(read.getLocations()));
+    }
+
+    public void testByteProgress() throws IOException {
+        ConsolidatorRecordReader reader = new ConsolidatorRecordReader(split());
+        Text k = reader.createKey();
+        Text v = reader.createValue();
+        assertEquals(0f, reader.getProgress());
+        assertTrue(reader.next(k, v));
+        assertEquals("/a/1", k.toString());
+        assertEquals("/a/cons1", v.toString());
+        assertEquals(0f, reader.getProgress());
+        assertTrue(reader.next(k, v));
+        assertEquals(0.1f, reader.getProgress(), 0.0001);
+        assertTrue(reader.next(k, v));
+        assertEquals("/a/3", k.toString());
+        assertEquals(0.4f, reader.getProgress(), 0.0001);
+        assertFalse(reader.next(k, v));
+        assertEquals(1f, reader.getProgress());
+        assertFalse(reader.next(k, v));
+        assertEquals(1f, reader.getProgress());
+    }
+}
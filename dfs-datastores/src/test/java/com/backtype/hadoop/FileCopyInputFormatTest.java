@@ -0,0 +1,116 @@
+package com.backtype.hadoop;
+
+import com.backtype.hadoop.FileCopyInputFormat.FileCopy;
+import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import com.backtype.hadoop.FileCopyInputFormat.FileCopySplit;
+import com.backtype.support.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import static com.backtype.support.TestUtils.*;
+
+public class FileCopyInputFormatTest extends TestCase {
+    private static class RecursiveLister implements PathLister {
+        public List<Path> getFiles(FileSystem fs, String path) {
+            List<Path> ret = new ArrayList<Path>();
+            try {
+                for(FileStatus stat: fs.listStatus(new Path(path))) {
+                    if(stat.isDirectory()) ret.addAll(getFiles(fs, stat.getPath().toString()));
+                    else ret.add(stat.getPath());
+                }
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            return ret;
+        }
+    }
+
+    FileSystem fs;
+
+    public FileCopyInputFormatTest() throws IOException {
+        fs = FileSystem.getLocal(new Configuration());
+    }
+
+    private void write(Path p, int length) throws IOException {
+        fs.mkdirs(p.getParent());
+        FSDataOutputStream os = fs.create(p);
+        os.write(new byte[length]);
+        os.close();
+    }
+
+    public void testListFiles() throws Exception {
+        Path root = new Path(getTmpPath(fs, "tree"));
+        write(new Path(root, "a"), 1);
+        write(new Path(root, "b/c"), 2);
+        write(new Path(root, "b/d/e"), 3);
+        write(new Path(root, "b/d/f"), 4);
+        fs.mkdirs(new Path(root, "empty"));
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Map<String, Long> found = new HashMap<String, Long>();
+            for(FileStatus stat: TreeLister.listFiles(fs, root, pool)) {
+                found.put(Utils.makeRelative(root, stat.getPath()), stat.getLen());
+            }
+            assertEquals(4, found.size());
+            assertEquals(Long.valueOf(1), found.get("a"));
+            assertEquals(Long.valueOf(2), found.get("b/c"));
+            assertEquals(Long.valueOf(3), found.get("b/d/e"));
+            assertEquals(Long.valueOf(4), found.get("b/d/f"));
+
+            assertEquals(1, TreeLister.listFiles(fs, new Path(root, "a"), pool).size());
+            assertTrue(TreeLister.listFiles(fs, new Path(root, "missing"), pool).isEmpty());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testPlanning() throws Exception {
+        String source = getTmpPath(fs, "source");
+        String dest = getTmpPath(fs, "dest");
+        write(new Path(source, "a"), 10);
+        write(new Path(source, "x/b"), 20);
+        write(new Path(source, "x/y/c"), 30);
+        write(new Path(dest, "x/b"), 5);
+
+        JobConf conf = new JobConf();
+        conf.setInt(FileCopyInputFormat.PLANNING_THREADS, 3);
+        FileCopyArgs args = new FileCopyArgs(source, dest, RenameMode.RENAME_IF_NECESSARY, new RecursiveLister(), "");
+        Utils.setObject(conf, FileCopyInputFormat.ARGS, args);
+        Map<String, FileCopy> copies = new HashMap<String, FileCopy>();
+        for(InputSplit split: new FileCopyInputFormat().getSplits(conf, 1)) {
+            for(FileCopy copy: ((FileCopySplit) split).copies) {
+                copies.put(Utils.makeRelative(new Path(source), new Path(copy.source)), copy);
+            }
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a", "x/b", "x/y/c")), copies.keySet());
+        assertEquals(30, copies.get("x/y/c").length);
+        assertEquals(new Path(dest, "a").toString(), copies.get("a").target);
+        assertEquals(new Path(dest, "x/y/c").toString(), copies.get("x/y/c").target);
+        //already at the destination, so it gets a new name
+        Path renamed = new Path(copies.get("x/b").target);
+        assertEquals(new Path(dest, "x"), renamed.getParent());
+        assertTrue(renamed.getName().startsWith("fc_"));
+
+        args.renameMode = RenameMode.NO_RENAME;
+        Utils.setObject(conf, FileCopyInputFormat.ARGS, args);
+        try {
+            new FileCopyInputFormat().getSplits(conf, 1);
+            fail("should fail on existing target");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+}
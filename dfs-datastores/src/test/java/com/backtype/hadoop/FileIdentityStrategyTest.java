@@ -0,0 +1,92 @@
+package com.backtype.hadoop;
+
+import com.backtype.hadoop.FileCopyInputFormat.FileCopyArgs;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import static com.backtype.support.TestUtils.*;
+
+public class FileIdentityStrategyTest extends TestCase {
+    FileSystem fs;
+    String source;
+    String dest;
+
+    public FileIdentityStrategyTest() throws IOException {
+        fs = FileSystem.getLocal(new Configuration());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        source = getTmpPath(fs, "source");
+        dest = getTmpPath(fs, "dest");
+    }
+
+    private Path write(String root, String name, String content) throws IOException {
+        Path p = new Path(root, name);
+        FSDataOutputStream os = fs.create(p);
+        os.write(content.getBytes());
+        os.close();
+        return p;
+    }
+
+    private FileIdentityStrategy configured(FileIdentityStrategy strategy) {
+        strategy.configure(new Configuration(), new FileCopyArgs(source, dest, null));
+        return strategy;
+    }
+
+    public void testLegacy() throws IOException {
+        FileIdentityStrategy legacy = configured(new FileIdentityStrategy.Legacy());
+        Path s = write(source, "a", "abcd");
+        assertTrue(legacy.isSameFile(fs, s, fs, write(dest, "a", "abcd")));
+        assertFalse(legacy.isSameFile(fs, s, fs, write(dest, "b", "abce")));
+        assertFalse(legacy.isSameFile(fs, s, fs, write(dest, "c", "abc")));
+        assertTrue(legacy.isSameFile(fs, fs.getFileStatus(s), fs, fs.getFileStatus(new Path(dest, "a"))));
+        assertFalse(legacy.isSameFile(fs, fs.getFileStatus(s), fs, fs.getFileStatus(new Path(dest, "c"))));
+    }
+
+    public void testLengthAndModificationTime() throws IOException {
+        FileIdentityStrategy strategy = configured(new FileIdentityStrategy.LengthAndModificationTime());
+        Path s = write(source, "a", "abcd");
+        fs.setTimes(s, 1000000, -1);
+        Path d = write(dest, "a", "abcd");
+        assertFalse(strategy.isSameFile(fs, s, fs, d));
+        strategy.copied(fs, s, fs, d);
+        assertTrue(strategy.isSameFile(fs, s, fs, d));
+        assertTrue(strategy.isSameFile(fs, fs.getFileStatus(s), fs, fs.getFileStatus(d)));
+
+        Path shorter = write(dest, "b", "abc");
+        strategy.copied(fs, s, fs, shorter);
+        assertFalse(strategy.isSameFile(fs, s, fs, shorter));
+    }
+
+    public void testManifest() throws IOException {
+        Path a = write(source, "a", "abcd");
+        Path b = write(source, "b", "efgh");
+        Path c = write(source, "c", "ijkl");
+        Map<String, String> hashes = new HashMap<String, String>();
+        hashes.put("a", "1");
+        hashes.put("b", "2");
+        FileIdentityStrategy.Manifest.write(fs, source, hashes);
+        hashes.clear();
+        hashes.put("a", "1");
+        hashes.put("b", "3");
+        FileIdentityStrategy.Manifest.write(fs, dest, hashes);
+
+        FileIdentityStrategy strategy = configured(new FileIdentityStrategy.Manifest());
+        //the hashes decide even though the contents are the same
+        assertTrue(strategy.isSameFile(fs, a, fs, write(dest, "a", "xxxx")));
+        assertFalse(strategy.isSameFile(fs, b, fs, write(dest, "b", "efgh")));
+        //no hash, falls back to comparing the files
+        assertTrue(strategy.isSameFile(fs, c, fs, write(dest, "c", "ijkl")));
+
+        Path copied = write(dest, "d", "efgh");
+        strategy.copied(fs, b, fs, copied);
+        strategy.close(fs);
+        assertEquals("2", FileIdentityStrategy.Manifest.read(fs, dest).get("d"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.backtype.hadoop;
+
+import com.backtype.support.SubsetSum;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class TieredConsolidationPolicyTest extends TestCase {
+
+    private static class Item implements SubsetSum.Value {
+        long value;
+
+        public Item(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private List<Item> items(long... values) {
+        List<Item> ret = new ArrayList<Item>();
+        for(long v: values) ret.add(new Item(v));
+        return ret;
+    }
+
+    private int countMerged(List<List<Item>> plan) {
+        int ret = 0;
+        for(List<Item> group: plan) {
+            if(group.size() > 1) ret += group.size();
+        }
+        return ret;
+    }
+
+    public void testTiers() {
+        TieredConsolidationPolicy policy = new TieredConsolidationPolicy(4, 4, 0.75);
+        assertEquals(-1, policy.getTier(800, 1000));
+        assertEquals(0, policy.getTier(700, 1000));
+        assertEquals(0, policy.getTier(251, 1000));
+        assertEquals(1, policy.getTier(249, 1000));
+        assertEquals(3, policy.getTier(10, 1000));
+        assertEquals(15, policy.getTier(0, 1000));
+    }
+
+    public void testOnlyFullTiersAreMerged() {
+        TieredConsolidationPolicy policy = new TieredConsolidationPolicy(4, 4, 0.75);
+        // three small files aren't enough, the large ones are near the target
+        assertEquals(0, countMerged(policy.plan(items(10, 12, 11, 900, 950), 1000)));
+        // four small files get merged, the 200 byte file is in its own tier
+        assertEquals(4, countMerged(policy.plan(items(10, 12, 11, 13, 200, 900), 1000)));
+        // the packing policy rewrites everything that fits
+        assertEquals(5, countMerged(new PackingConsolidationPolicy().plan(items(10, 12, 11, 13, 200, 900), 1000)));
+    }
+
+    public void testWriteAmplification() {
+        assertEquals(1.0, Consolidator.getWriteAmplification(100, 100));
+        assertEquals(4.0, Consolidator.getWriteAmplification(400, 100));
+        assertEquals(0.0, Consolidator.getWriteAmplification(0, 0));
+    }
+}
@@ -2,10 +2,13 @@ package com.backtype.hadoop.datastores;
 
 import com.backtype.support.FSTestCase;
 import junit.framework.Assert;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -60,4 +63,149 @@ public class VersionedStoreTest extends FSTestCase {
         Assert.assertEquals(output, expected);
     }
 
+    public void testSuccessFlags() throws Exception {
+        String tmp1 = getTmpPath(fs, "versions_flags");
+        VersionedStore vs = new VersionedStore(tmp1);
+        fs.mkdirs(new Path(vs.createVersion(1)));
+        vs.succeedVersion(1);
+        for(int i = 2; i <= 4; i ++) {
+            fs.mkdirs(new Path(vs.createVersion(i)));
+        }
+        new File(new Path(vs.versionPath(2), VersionedStore.HADOOP_SUCCESS_FLAG).toString()).createNewFile();
+        new File(new Path(vs.versionPath(4), VersionedStore.HADOOP_SUCCESS_FLAG).toString()).createNewFile();
+        Assert.assertEquals(Arrays.asList(4L, 2L, 1L), vs.getAllVersions());
+        Assert.assertEquals(Arrays.asList(4L, 3L, 2L, 1L), vs.getAllVersions(true));
+        Assert.assertTrue(vs.hasVersion(2));
+        Assert.assertFalse(vs.hasVersion(3));
+
+        VersionedStore missing = new VersionedStore(new Path(getTmpPath(fs, "versions_missing")), new Configuration());
+        Assert.assertTrue(missing.getAllVersions().isEmpty());
+        Assert.assertNull(missing.mostRecentVersion());
+    }
+
+    public void testLatestPointer() throws Exception {
+        String tmp1 = getTmpPath(fs, "versions_latest");
+        VersionedStore vs = new VersionedStore(tmp1).setLatestPointer(true);
+        Assert.assertNull(vs.mostRecentVersion());
+        for(int i = 1; i <= 3; i ++) {
+            fs.mkdirs(new Path(vs.createVersion(i)));
+            vs.succeedVersion(i);
+        }
+        Assert.assertTrue(fs.exists(new Path(tmp1, VersionedStore.LATEST_POINTER)));
+        Assert.assertEquals(Long.valueOf(3), vs.mostRecentVersion());
+        Assert.assertEquals(Long.valueOf(2), vs.mostRecentVersion(2));
+
+        // an older version finishing late doesn't move the pointer back
+        fs.mkdirs(new Path(vs.versionPath(0)));
+        vs.succeedVersion(0);
+        Assert.assertEquals(Long.valueOf(3), vs.mostRecentVersion());
+
+        // stores without the flag still keep an existing pointer up to date
+        VersionedStore plain = new VersionedStore(tmp1);
+        fs.mkdirs(new Path(vs.versionPath(5)));
+        plain.succeedVersion(5);
+        Assert.assertEquals(Long.valueOf(5), vs.mostRecentVersion());
+
+        // the pointer is what gets read
+        fs.mkdirs(new Path(vs.versionPath(6)));
+        fs.createNewFile(new Path(tmp1, "6" + VersionedStore.FINISHED_VERSION_SUFFIX));
+        Assert.assertEquals(Long.valueOf(5), vs.mostRecentVersion());
+        Assert.assertEquals(Long.valueOf(6), plain.mostRecentVersion());
+
+        plain.deleteVersion(5);
+        Assert.assertEquals(Long.valueOf(6), vs.mostRecentVersion());
+        plain.cleanup(0);
+        Assert.assertNull(vs.mostRecentVersion());
+        Assert.assertFalse(fs.exists(new Path(tmp1, VersionedStore.LATEST_POINTER)));
+        Assert.assertEquals(0, fs.listStatus(new Path(tmp1)).length);
+    }
+
+    private static class RecordingListener implements VersionWatcher.Listener {
+        List<String> events = new ArrayList<String>();
+
+        public synchronized void versionAdded(long version) {
+            events.add("+" + version);
+            notifyAll();
+        }
+
+        public synchronized void versionDeleted(long version) {
+            events.add("-" + version);
+            notifyAll();
+        }
+
+        synchronized void waitFor(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000;
+            while(events.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+        }
+    }
+
+    public void testWatch() throws Exception {
+        String tmp1 = getTmpPath(fs, "versions_watched");
+        VersionedStore vs = new VersionedStore(tmp1);
+        fs.mkdirs(new Path(vs.createVersion(1)));
+        vs.succeedVersion(1);
+
+        RecordingListener listener = new RecordingListener();
+        RecordingListener other = new RecordingListener();
+        VersionWatcher.Watch watch = vs.watch(listener, 20);
+        VersionWatcher.Watch otherWatch = null;
+        try {
+            otherWatch = new VersionedStore(tmp1).watch(other, 1000000);
+            Assert.assertEquals(1, VersionWatcher.numWatchers());
+
+            fs.mkdirs(new Path(vs.createVersion(2)));
+            vs.succeedVersion(2);
+            listener.waitFor(1);
+            Assert.assertEquals(Arrays.asList("+2"), listener.events);
+
+            // finished by a _SUCCESS flag, which doesn't touch the root
+            fs.mkdirs(new Path(vs.createVersion(3)));
+            Thread.sleep(100);
+            new File(new Path(vs.versionPath(3), VersionedStore.HADOOP_SUCCESS_FLAG).toString()).createNewFile();
+            listener.waitFor(2);
+            vs.deleteVersion(1);
+            listener.waitFor(3);
+            Assert.assertEquals(Arrays.asList("+2", "+3", "-1"), listener.events);
+            // the shared poller runs as often as the most frequent watch
+            other.waitFor(3);
+            Assert.assertEquals(listener.events, other.events);
+
+            watch.cancel();
+            Assert.assertEquals(1, VersionWatcher.numWatchers());
+            otherWatch.cancel();
+            Assert.assertEquals(0, VersionWatcher.numWatchers());
+        } finally {
+            // cancelling again does nothing, a live poller would break the counts of later tests
+            watch.cancel();
+            if(otherWatch!=null) otherWatch.cancel();
+        }
+    }
+
+    public void testWatchSkipsAbandoned() throws Exception {
+        String tmp1 = getTmpPath(fs, "versions_abandoned");
+        VersionedStore vs = new VersionedStore(tmp1);
+        fs.mkdirs(new Path(vs.createVersion(1)));
+        long old = System.currentTimeMillis() - 2 * VersionWatcher.UNFINISHED_RECENT;
+        fs.setTimes(new Path(vs.versionPath(1)), old, -1);
+        fs.setTimes(new Path(tmp1), old, -1);
+
+        RecordingListener listener = new RecordingListener();
+        VersionWatcher.Watch watch = vs.watch(listener, 20);
+        try {
+            // left alone for so long that its _SUCCESS flag isn't looked for on every poll
+            new File(new Path(vs.versionPath(1), VersionedStore.HADOOP_SUCCESS_FLAG).toString()).createNewFile();
+            Thread.sleep(300);
+            Assert.assertEquals(0, listener.events.size());
+
+            // but it is as soon as the root changes
+            fs.mkdirs(new Path(vs.createVersion(2)));
+            vs.succeedVersion(2);
+            listener.waitFor(2);
+            Assert.assertEquals(Arrays.asList("+1", "+2"), listener.events);
+        } finally {
+            watch.cancel();
+        }
+    }
 }
@@ -0,0 +1,178 @@
+package com.backtype.hadoop.formats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import static com.backtype.support.TestUtils.*;
+
+public class SequenceFileConcatTest extends TestCase {
+    FileSystem fs;
+
+    public SequenceFileConcatTest() throws IOException {
+        fs = FileSystem.getLocal(new Configuration());
+    }
+
+    private Path write(String name, CompressionType type, int start, int end) throws IOException {
+        Path p = new Path(getTmpPath(fs, name));
+        RecordOutputStream os = type == CompressionType.NONE ? new SequenceFileOutputStream(fs, p) :
+                new SequenceFileOutputStream(fs, p, type, new DefaultCodec());
+        for(int i=start; i<end; i++) {
+            os.writeRaw(("record" + i).getBytes());
+        }
+        os.close();
+        return p;
+    }
+
+    private void concatTest(CompressionType type) throws IOException {
+        List<Path> sources = new ArrayList<Path>();
+        //large enough to contain sync markers in the middle of the files
+        sources.add(write("s1", type, 0, 3000));
+        sources.add(write("s2", type, 3000, 3000));
+        sources.add(write("s3", type, 3000, 10000));
+        Path target = new Path(getTmpPath(fs, "target"));
+        CompressionCodec codec = type == CompressionType.NONE ? null : new DefaultCodec();
+        assertTrue(SequenceFileConcat.concat(fs, sources, target, BytesWritable.class, NullWritable.class, type, codec, null));
+
+        SequenceFileInputStream is = new SequenceFileInputStream(fs, target);
+        for(int i=0; i<10000; i++) {
+            assertArraysEqual(("record" + i).getBytes(), is.readRawRecord());
+        }
+        assertNull(is.readRawRecord());
+        is.close();
+    }
+
+    public void testConcat() throws IOException {
+        concatTest(CompressionType.NONE);
+        concatTest(CompressionType.RECORD);
+        concatTest(CompressionType.BLOCK);
+    }
+
+    public void testMismatchedFormats() throws IOException {
+        List<Path> sources = new ArrayList<Path>();
+        sources.add(write("s1", CompressionType.BLOCK, 0, 10));
+        sources.add(write("s2", CompressionType.RECORD, 10, 20));
+        Path target = new Path(getTmpPath(fs, "target"));
+        assertFalse(SequenceFileConcat.concat(fs, sources, target, BytesWritable.class, NullWritable.class,
+                CompressionType.BLOCK, new DefaultCodec(), null));
+        assertFalse(SequenceFileConcat.concat(fs, sources.subList(0, 1), target, Text.class, NullWritable.class,
+                CompressionType.BLOCK, new DefaultCodec(), null));
+        assertFalse(fs.exists(target));
+    }
+
+    private void writeBodyTest(CompressionType type) throws IOException {
+        Path target = write("target", type, 0, 3000);
+        Path source = write("source", type, 3000, 10000);
+        byte[] sync = SequenceFileConcat.readHeader(fs, target).getSync();
+
+        //what concat on hdfs does: the body is attached to the end of the target as it is
+        Path appended = new Path(getTmpPath(fs, "appended"));
+        FSDataOutputStream out = fs.create(appended);
+        FSDataInputStream in = fs.open(target);
+        byte[] contents = new byte[(int) fs.getFileStatus(target).getLen()];
+        in.readFully(contents);
+        in.close();
+        out.write(contents);
+        SequenceFileConcat.writeBody(fs, source, sync, out, null);
+        out.close();
+
+        SequenceFileInputStream is = new SequenceFileInputStream(fs, appended);
+        for(int i=0; i<10000; i++) {
+            assertArraysEqual(("record" + i).getBytes(), is.readRawRecord());
+        }
+        assertNull(is.readRawRecord());
+        is.close();
+    }
+
+    public void testWriteBody() throws IOException {
+        writeBodyTest(CompressionType.NONE);
+        writeBodyTest(CompressionType.RECORD);
+        writeBodyTest(CompressionType.BLOCK);
+    }
+
+    /**
+     * Concat for the local filesystem, doing what DistributedFileSystem.concat does by copying.
+     */
+    public static class LocalConcat implements SequenceFileConcat.Concat {
+        public boolean canConcat(FileSystem fs) {
+            return true;
+        }
+
+        public void concat(FileSystem fs, Path target, Path[] sources) throws IOException {
+            Path tmp = new Path(target.getParent(), "_concat" + UUID.randomUUID().toString());
+            List<Path> all = new ArrayList<Path>();
+            all.add(target);
+            all.addAll(Arrays.asList(sources));
+            FSDataOutputStream out = fs.create(tmp);
+            for(Path p: all) {
+                FSDataInputStream in = fs.open(p);
+                IOUtils.copyBytes(in, out, 4096, false);
+                in.close();
+            }
+            out.close();
+            fs.delete(target, false);
+            fs.rename(tmp, target);
+            for(Path p: sources) {
+                fs.delete(p, false);
+            }
+        }
+    }
+
+    private void concatIntoTest(FileSystem fs, CompressionType type) throws IOException {
+        Path target = new Path(getTmpPath(fs, "concat_into"), "target");
+        FileUtil.copy(this.fs, write("original", type, 0, 3000), fs, target, false, fs.getConf());
+        List<Path> sources = new ArrayList<Path>();
+        sources.add(write("s1", type, 3000, 5000));
+        sources.add(write("s2", type, 5000, 5000));
+        sources.add(write("s3", type, 5000, 10000));
+        CompressionCodec codec = type == CompressionType.NONE ? null : new DefaultCodec();
+        assertTrue(SequenceFileConcat.concatInto(fs, target, sources, BytesWritable.class, NullWritable.class, type, codec, null));
+        for(Path p: sources) {
+            assertTrue(fs.exists(p));
+        }
+        //the bodies written for the concat are gone
+        assertEquals(1, fs.listStatus(target.getParent()).length);
+
+        SequenceFileInputStream is = new SequenceFileInputStream(fs, target);
+        for(int i=0; i<10000; i++) {
+            assertArraysEqual(("record" + i).getBytes(), is.readRawRecord());
+        }
+        assertNull(is.readRawRecord());
+        is.close();
+    }
+
+    public void testConcatInto() throws IOException {
+        Configuration conf = new Configuration();
+        conf.setClass(SequenceFileConcat.CONCAT_CLASS, LocalConcat.class, SequenceFileConcat.Concat.class);
+        FileSystem concatFs = FileSystem.newInstanceLocal(conf);
+        concatIntoTest(concatFs, CompressionType.NONE);
+        concatIntoTest(concatFs, CompressionType.RECORD);
+        concatIntoTest(concatFs, CompressionType.BLOCK);
+        concatFs.close();
+    }
+
+    public void testConcatIntoNeedsHdfs() throws IOException {
+        Path target = write("target", CompressionType.BLOCK, 0, 10);
+        long len = fs.getFileStatus(target).getLen();
+        List<Path> sources = new ArrayList<Path>();
+        sources.add(write("s1", CompressionType.BLOCK, 10, 20));
+        assertFalse(SequenceFileConcat.concatInto(fs, target, sources, BytesWritable.class, NullWritable.class,
+                CompressionType.BLOCK, new DefaultCodec(), null));
+        assertEquals(len, fs.getFileStatus(target).getLen());
+    }
+}
@@ -1,18 +1,33 @@
 package com.backtype.hadoop.pail;
 
+import com.backtype.hadoop.Coercer;
+import com.backtype.hadoop.Consolidator;
+import com.backtype.hadoop.CopyLog;
+import com.backtype.hadoop.ExecutionEngines;
 import com.backtype.hadoop.RenameMode;
+import com.backtype.hadoop.PackingConsolidationPolicy;
+import com.backtype.hadoop.TieredConsolidationPolicy;
 import com.backtype.hadoop.formats.RecordInputStream;
+import com.backtype.hadoop.formats.SequenceFileConcat;
+import com.backtype.hadoop.formats.SequenceFileConcatTest;
 import com.backtype.hadoop.formats.RecordOutputStream;
 import com.backtype.support.FSTestCase;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
 import static com.backtype.support.TestUtils.*;
 
 public class PailOpsTest extends FSTestCase {
@@ -51,6 +66,97 @@ public class PailOpsTest extends FSTestCase {
         assertEquals(1, names.size());
     }
 
+    public void testSnapshotView() throws IOException {
+        String path = getTmpPath(local, "pail");
+        String manifest = getTmpPath(local, "manifest");
+        Pail pail = Pail.create(local, path, new StringStructure());
+        writeStrings(pail, "aaa", "a", "b");
+        writeStrings(pail, "x/bbb", "1", "2");
+        try {
+            pail.snapshotView(manifest);
+            fail("reading files in place has to be asked for");
+        } catch(UnsupportedOperationException e) {
+        }
+        PailSnapshot snap = pail.snapshotView(manifest, true);
+        assertNull(snap.getHdfsSnapshot());
+        writeStrings(pail, "aaa2", "a1");
+
+        PailSnapshot reopened = Pail.openSnapshot(local, manifest);
+        assertPailContents(reopened, "a", "b", "1", "2");
+        assertEquals(2, reopened.getStoredFileStatuses().size());
+        try {
+            reopened.openWrite("ccc", false);
+            fail("snapshots are read only");
+        } catch(UnsupportedOperationException e) {
+        }
+        try {
+            reopened.clear();
+            fail("snapshots are read only");
+        } catch(UnsupportedOperationException e) {
+        }
+        try {
+            reopened.writeMetadata("meta", "m");
+            fail("snapshots are read only");
+        } catch(UnsupportedOperationException e) {
+        }
+        try {
+            reopened.consolidate();
+            fail("snapshots are read only");
+        } catch(UnsupportedOperationException e) {
+        }
+        try {
+            Pail other = Pail.create(local, getTmpPath(local, "other"), new StringStructure());
+            writeStrings(other, "ccc", "c");
+            reopened.moveAppend(other);
+            fail("snapshots are read only");
+        } catch(UnsupportedOperationException e) {
+        }
+        try {
+            pail.moveAppend(reopened);
+            fail("files can only be copied out of a snapshot");
+        } catch(UnsupportedOperationException e) {
+        }
+        assertPailContents(pail, "a", "b", "1", "2", "a1");
+
+        //jobs reading the root of the view only see the files of the snapshot
+        assertEquals(2, reopened.getInputPathLister().getPaths(pail).size());
+        assertEquals(1, reopened.getInputPathLister().getPaths(pail.getSubPail("x")).size());
+
+        Pail copy = Pail.create(local, getTmpPath(local, "pail2"), new StringStructure());
+        copy.copyAppend(reopened);
+        assertEquals(2, copy.getUserFileNames().size());
+
+        pail.deleteSnapshot(reopened);
+        assertPailContents(pail, "a1");
+        assertFalse(local.exists(new Path(manifest)));
+    }
+
+    public void testSnapshotViewListerReadsHdfsSnapshot() throws IOException {
+        String path = getTmpPath(local, "pail");
+        String manifest = getTmpPath(local, "manifest");
+        Pail pail = Pail.create(local, path, new StringStructure());
+        writeStrings(pail, "aaa", "a", "b");
+        writeStrings(pail, "x/bbb", "1", "2");
+        //what HDFS would keep under .snapshot
+        for(String name: new String[] {"aaa", "x/bbb"}) {
+            FileUtil.copy(local, pail.toStoredPath(name), local, new Path(path, ".snapshot/s1/" + name + Pail.EXTENSION),
+                    false, local.getConf());
+        }
+        OutputStream os = local.create(new Path(manifest));
+        os.write(("root\t" + path + "\nhdfs-snapshot\ts1\nfile\taaa\nfile\tx/bbb\n").getBytes("UTF-8"));
+        os.close();
+        writeStrings(pail, "aaa2", "a1");
+
+        //a job pointed at the pail itself reads the snapshot, not the files written since
+        ManifestPailPathLister lister = new ManifestPailPathLister(manifest);
+        List<Path> paths = lister.getPaths(pail);
+        assertEquals(2, paths.size());
+        for(Path p: paths) {
+            assertTrue(p.toString(), p.toString().contains("/.snapshot/s1/"));
+        }
+        assertEquals(1, lister.getPaths(pail.getSubPail("x")).size());
+    }
+
     public void testClear() throws IOException {
         String path = getTmpPath(fs, "pail");
         Pail<String> pail = Pail.create(fs, path, PailFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
@@ -136,6 +242,230 @@ public class PailOpsTest extends FSTestCase {
         assertPailContents(pail.getSubPail("z/a"), "za1", "za2", "za3");
     }
 
+    public void testConsolidationTiered() throws Exception {
+        String path = getTmpPath(local, "pail");
+        Pail pail = Pail.create(local, path);
+        writeStrings(pail, "a", "1");
+        writeStrings(pail, "b", "2");
+        writeStrings(pail, "c", "3");
+        TieredConsolidationPolicy policy = new TieredConsolidationPolicy(4, 4, 0.75);
+        // not enough files of the same size yet
+        pail.consolidate(policy);
+        assertEquals(3, pail.getUserFileNames().size());
+        writeStrings(pail, "d", "4");
+        pail.consolidate(policy);
+        assertEquals(1, pail.getUserFileNames().size());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3", "4")), new HashSet<String>(readWithIt(pail)));
+    }
+
+    public void testConsolidationChangingFormat() throws Exception {
+        String path = getTmpPath(local, "pail");
+        Pail<String> pail = Pail.create(local, path, PailFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        for(String s: new String[] {"a1", "a2", "b1", "za1"}) {
+            Pail<String>.TypedRecordOutputStream os = pail.openWrite();
+            os.writeObject(s);
+            os.close();
+        }
+        PailSpec compressed = new PailSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default");
+        try {
+            pail.getSubPail("a").consolidate(compressed);
+            fail("format can only be changed from the root");
+        } catch(IllegalStateException e) {
+
+        }
+        pail.consolidate(compressed, 1, new PackingConsolidationPolicy());
+        // nothing fits in a single byte, so every file was rewritten on its own
+        assertEquals(4, pail.getUserFileNames().size());
+        assertEquals("block", pail.getSpec().getArgs().get("compressionType"));
+        assertEquals(TestStructure.class, pail.getSpec().getStructure().getClass());
+        Pail<String> reopened = new Pail<String>(local, path);
+        assertEquals(pail.getSpec(), reopened.getSpec());
+        assertPailContents(reopened, "a1", "a2", "b1", "za1");
+        assertPailContents(reopened.getSubPail("a"), "a1", "a2");
+    }
+
+    /**
+     * A format whose files can't be read as sequence files of the same records, failing on a chosen record.
+     */
+    public static class ReversedFormat extends SequenceFileFormat {
+        static volatile String failOn = null;
+
+        public ReversedFormat() {
+            super(new HashMap<String, Object>());
+        }
+
+        private static byte[] reverse(byte[] record) {
+            byte[] ret = new byte[record.length];
+            for(int i=0; i<record.length; i++) {
+                ret[i] = record[record.length - 1 - i];
+            }
+            return ret;
+        }
+
+        @Override
+        public RecordInputStream getInputStream(FileSystem fs, Path path) throws IOException {
+            final RecordInputStream is = super.getInputStream(fs, path);
+            return new RecordInputStream() {
+                public byte[] readRawRecord() throws IOException {
+                    byte[] record = is.readRawRecord();
+                    return record==null ? null : reverse(record);
+                }
+
+                public void close() throws IOException {
+                    is.close();
+                }
+            };
+        }
+
+        @Override
+        public RecordOutputStream getOutputStream(FileSystem fs, Path path) throws IOException {
+            final RecordOutputStream os = super.getOutputStream(fs, path);
+            return new RecordOutputStream() {
+                public void writeRaw(byte[] record) throws IOException {
+                    writeRaw(record, 0, record.length);
+                }
+
+                public void writeRaw(byte[] record, int start, int length) throws IOException {
+                    byte[] copy = Arrays.copyOfRange(record, start, start + length);
+                    if(new String(copy).equals(failOn)) throw new IOException("failing on " + failOn);
+                    os.writeRaw(reverse(copy));
+                }
+
+                public void close() throws IOException {
+                    os.close();
+                }
+            };
+        }
+    }
+
+    public void testConsolidationChangingFormatRecovers() throws Exception {
+        String path = getTmpPath(local, "pail");
+        Pail<String> pail = Pail.create(local, path, PailFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        for(String s: new String[] {"a1", "a2", "b1", "za1"}) {
+            Pail<String>.TypedRecordOutputStream os = pail.openWrite();
+            os.writeObject(s);
+            os.close();
+        }
+        PailSpec reversed = new PailSpec(ReversedFormat.class.getName());
+        ReversedFormat.failOn = "b1";
+        try {
+            pail.consolidate(reversed, 1, new PackingConsolidationPolicy());
+            fail("migration should fail");
+        } catch(IOException e) {
+        } finally {
+            ReversedFormat.failOn = null;
+        }
+        //still on the old spec, with some files in each format
+        Pail<String> reopened = new Pail<String>(local, path);
+        int rewritten = 0;
+        for(String name: reopened.getUserFileNames()) {
+            if(new Path(name).getName().startsWith("cons")) rewritten++;
+        }
+        assertTrue(rewritten > 0 && rewritten < 4);
+        assertEquals(PailFormatFactory.getDefaultCopy().getName(), reopened.getSpec().getName());
+        assertPailContents(reopened, "a1", "a2", "b1", "za1");
+        try {
+            reopened.getFormat();
+            fail("a pail with mixed formats has no format");
+        } catch(IllegalStateException e) {
+        }
+        try {
+            reopened.consolidate();
+            fail("consolidating would mix up the formats");
+        } catch(IllegalStateException e) {
+        }
+        try {
+            reopened.consolidate(new PailSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default"));
+            fail("the migration has to be finished first");
+        } catch(IllegalStateException e) {
+        }
+
+        reopened.consolidate(reversed, 1, new PackingConsolidationPolicy());
+        assertEquals(4, reopened.getUserFileNames().size());
+        Pail<String> finished = new Pail<String>(local, path);
+        assertEquals(ReversedFormat.class, finished.getFormat().getClass());
+        assertPailContents(finished, "a1", "a2", "b1", "za1");
+        assertEquals(0, local.globStatus(new Path(path, "_migrating*")).length);
+    }
+
+    public void testConsolidationStagedInTarget() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Consolidator.STAGING, Consolidator.STAGING_TARGET);
+        FileSystem stagingFs = FileSystem.newInstanceLocal(conf);
+        String path = getTmpPath(local, "pail");
+        Pail pail = Pail.create(stagingFs, path);
+        writeStrings(pail, "a", "1");
+        writeStrings(pail, "b", "2");
+        Path staging = new Path(path, Consolidator.STAGING_DIR);
+        Path orphan = new Path(staging, "orphan");
+        Path recent = new Path(staging, "recent");
+        stagingFs.create(orphan).close();
+        stagingFs.create(recent).close();
+        stagingFs.setTimes(orphan, System.currentTimeMillis() - Consolidator.DEFAULT_STAGING_TTL - 1000, -1);
+        pail.consolidate();
+        assertEquals(1, pail.getUserFileNames().size());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2")), new HashSet<String>(readWithIt(pail)));
+        assertFalse(stagingFs.exists(orphan));
+        // might belong to a running consolidation
+        assertTrue(stagingFs.exists(recent));
+        assertEquals(1, stagingFs.listStatus(staging).length);
+    }
+
+    public void testConsolidationConcurrent() throws Exception {
+        List<Pail> pails = new ArrayList<Pail>();
+        for(int i=0; i<3; i++) {
+            Pail pail = Pail.create(local, getTmpPath(local, "pail" + i));
+            writeStrings(pail, "a", "a" + i);
+            writeStrings(pail, "b", "b" + i);
+            pails.add(pail);
+        }
+        Pail compressed = Pail.create(local, getTmpPath(local, "pail3"),
+                new PailSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default"));
+        writeStrings(compressed, "a", "a3");
+        writeStrings(compressed, "b", "b3");
+        pails.add(compressed);
+
+        List<Future<Counters>> jobs = Pail.consolidate(pails, Consolidator.DEFAULT_CONSOLIDATION_SIZE,
+                new PackingConsolidationPolicy(), 2);
+        assertEquals(4, jobs.size());
+        for(Future<Counters> f: jobs) {
+            assertNotNull(f.get());
+        }
+        for(int i=0; i<4; i++) {
+            assertEquals(1, pails.get(i).getUserFileNames().size());
+            assertEquals(new HashSet<String>(Arrays.asList("a" + i, "b" + i)), new HashSet<String>(readWithIt(pails.get(i))));
+        }
+    }
+
+    public void testConsolidationLocalEngine() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(ExecutionEngines.ENGINE, ExecutionEngines.LOCAL);
+        FileSystem engineFs = FileSystem.newInstanceLocal(conf);
+        String path = getTmpPath(local, "pail");
+        Pail<String> pail = Pail.create(engineFs, path, PailFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        for(String s: new String[] {"a1", "a2", "b1", "za1", "za2"}) {
+            Pail<String>.TypedRecordOutputStream os = pail.openWrite();
+            os.writeObject(s);
+            os.close();
+        }
+        pail.consolidate();
+        assertPailContents(pail, "a1", "a2", "b1", "za1", "za2");
+        assertEquals(3, pail.getUserFileNames().size());
+    }
+
+    public void testCopyAppendAutoEngine() throws Exception {
+        Pail p1 = Pail.create(local, getTmpPath(local, "pail"), new StringStructure());
+        Pail p2 = Pail.create(local, getTmpPath(local, "pail2"), new StringStructure());
+        emitObjectsToPail(p1, "aaa", "bbb");
+        emitObjectsToPail(p2, "ccc");
+        emitObjectsToPail(p2, "ddd");
+        CopyArgs args = new CopyArgs();
+        args.renameMode = RenameMode.RENAME_IF_NECESSARY;
+        args.configuration.set(ExecutionEngines.ENGINE, ExecutionEngines.AUTO);
+        p1.copyAppend(p2, args);
+        assertPailContents(p1, "aaa", "bbb", "ccc", "ddd");
+    }
+
     protected static interface AppendOperation {
         public void append(Pail into, Pail data, int renameMode) throws IOException;
         public void append(Pail into, Pail data, CopyArgs args) throws IOException;
@@ -359,6 +689,105 @@ public class PailOpsTest extends FSTestCase {
         metadataNonConflictTest(op);
     }
 
+    public void testCopyAppendIncremental() throws Exception {
+        Pail source = Pail.create(local, getTmpPath(local, "pail"));
+        Pail dest = Pail.create(local, getTmpPath(local, "pail2"));
+        writeStrings(source, "a", "1");
+        writeStrings(source, "b", "2");
+        source.writeMetadata("a", "meta");
+        CopyArgs args = new CopyArgs();
+        args.incremental = true;
+        dest.copyAppend(source, args);
+        assertEquals(2, dest.getUserFileNames().size());
+
+        // a file copied by a run that died before logging it is found again under the same name
+        String copied = (String) dest.getUserFileNames().get(0);
+        local.delete(new Path(dest.getInstanceRoot(), CopyLog.DIR), true);
+        writeStrings(source, "c", "3");
+        dest.copyAppend(source, args);
+        assertEquals(3, dest.getUserFileNames().size());
+        assertTrue(dest.getUserFileNames().contains(copied));
+
+        writeStrings(source, "d", "4");
+        dest.copyAppend(source, args);
+        assertEquals(4, dest.getUserFileNames().size());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3", "4")), new HashSet<String>(readWithIt(dest)));
+        assertEquals("meta", dest.getMetadata("a"));
+
+        // planning compacts the logs of earlier runs, dropping sources that are gone
+        Path logDir = new Path(dest.getInstanceRoot(), CopyLog.DIR);
+        dest.copyAppend(source, args);
+        assertEquals(4, dest.getUserFileNames().size());
+        assertEquals(1, local.listStatus(logDir).length);
+        assertEquals(4, CopyLog.read(local, dest.getInstanceRoot()).size());
+        source.delete((String) source.getUserFileNames().get(0));
+        dest.copyAppend(source, args);
+        assertEquals(1, local.listStatus(logDir).length);
+        assertEquals(3, CopyLog.read(local, dest.getInstanceRoot()).size());
+
+        // without the log every file gets copied again
+        CopyArgs full = new CopyArgs();
+        full.copyMetadata = false;
+        dest.copyAppend(source, full);
+        assertEquals(7, dest.getUserFileNames().size());
+    }
+
+    public void testCopyAppendCoercedKeepsOrder() throws Exception {
+        Pail source = Pail.create(local, getTmpPath(local, "pail"));
+        PailSpec compressed = new PailSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default");
+        Pail dest = Pail.create(local, getTmpPath(local, "pail2"), compressed);
+        List<String> records = new ArrayList<String>();
+        for(int i=0; i<5000; i++) {
+            records.add("record" + i);
+        }
+        writeStrings(source, "a", records);
+        CopyArgs args = new CopyArgs();
+        //many small batches through a short queue
+        args.configuration.setInt(Coercer.BATCH_BYTES, 100);
+        args.configuration.setInt(Coercer.QUEUE_BATCHES, 2);
+        dest.copyAppend(source, args);
+        assertEquals(records, readWithIt(dest));
+
+        Pail serial = Pail.create(local, getTmpPath(local, "pail3"), compressed);
+        args.configuration.setBoolean(Coercer.PIPELINE, false);
+        serial.copyAppend(source, args);
+        assertEquals(records, readWithIt(serial));
+    }
+
+    public void testCopyAppendCoercedWriterFails() throws Exception {
+        Pail source = Pail.create(local, getTmpPath(local, "pail"));
+        Pail dest = Pail.create(local, getTmpPath(local, "pail2"), new PailSpec(ReversedFormat.class.getName()));
+        List<String> records = new ArrayList<String>();
+        for(int i=0; i<5000; i++) {
+            records.add("record" + i);
+        }
+        writeStrings(source, "a", records);
+        CopyArgs args = new CopyArgs();
+        //the reader fills the queue and blocks on it before the writer fails
+        args.configuration.setInt(Coercer.BATCH_BYTES, 100);
+        args.configuration.setInt(Coercer.QUEUE_BATCHES, 1);
+        ReversedFormat.failOn = "record10";
+        try {
+            dest.copyAppend(source, args);
+            fail("the writer should fail");
+        } catch(IOException e) {
+        } finally {
+            ReversedFormat.failOn = null;
+        }
+        assertEquals(0, dest.getUserFileNames().size());
+        for(int i=0; i<100 && readerAlive(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(readerAlive());
+    }
+
+    private static boolean readerAlive() {
+        for(Thread t: Thread.getAllStackTraces().keySet()) {
+            if(t.getName().equals("coercer-reader") && t.isAlive()) return true;
+        }
+        return false;
+    }
+
     public void testCopyAppend() throws Exception {
         appendOperationTest(new AppendOperation() {
             public void append(Pail into, Pail data, int renameMode) throws IOException {
@@ -393,6 +822,102 @@ public class PailOpsTest extends FSTestCase {
         //TODO: test that original pail is now empty
     }
 
+    public void testMergeAppend() throws Exception {
+        Pail into = Pail.create(local, getTmpPath(local, "pail"));
+        Pail data = Pail.create(local, getTmpPath(local, "pail2"));
+        Set<String> expected = new HashSet<String>();
+        List<String> big = new ArrayList<String>();
+        for(int i=0; i<10000; i++) {
+            big.add("big" + i);
+        }
+        expected.addAll(big);
+        writeStrings(into, "a", "1", "2");
+        writeStrings(into, "d/b", "3");
+        writeStrings(data, "c", "4");
+        writeStrings(data, "e", "5", "6");
+        writeStrings(data, "f", big);
+        writeStrings(data, "d/g", "7");
+        writeStrings(data, "d/h", "8");
+        data.writeMetadata("m", "meta");
+        expected.addAll(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8"));
+
+        into.mergeAppend(data, 10000);
+        assertEquals(expected, new HashSet<String>(readWithIt(into)));
+        //the small files were merged into the existing ones, the big one was moved as it is
+        List<String> names = into.getUserFileNames();
+        assertEquals(3, names.size());
+        assertEquals(1, new Pail(local, into.getInstanceRoot() + "/d").getUserFileNames().size());
+        assertEquals(0, data.getUserFileNames().size());
+        assertEquals("meta", into.getMetadata("m"));
+    }
+
+    public static class CrashBeforeConcat extends SequenceFileConcatTest.LocalConcat {
+        public void concat(FileSystem fs, Path target, Path[] sources) throws IOException {
+            throw new IllegalStateException("crashed before concat");
+        }
+    }
+
+    public static class CrashAfterConcat extends SequenceFileConcatTest.LocalConcat {
+        public void concat(FileSystem fs, Path target, Path[] sources) throws IOException {
+            super.concat(fs, target, sources);
+            throw new IllegalStateException("crashed after concat");
+        }
+    }
+
+    private FileSystem concatFs(Class concat) throws IOException {
+        Configuration conf = new Configuration();
+        conf.setClass(SequenceFileConcat.CONCAT_CLASS, concat, SequenceFileConcat.Concat.class);
+        return FileSystem.newInstanceLocal(conf);
+    }
+
+    public void testMergeAppendConcat() throws Exception {
+        FileSystem concatFs = concatFs(SequenceFileConcatTest.LocalConcat.class);
+        Pail into = Pail.create(concatFs, getTmpPath(local, "pail"));
+        Pail data = Pail.create(concatFs, getTmpPath(local, "pail2"));
+        writeStrings(into, "a", "1", "2");
+        writeStrings(data, "b", "3");
+        writeStrings(data, "c", "4", "5");
+        into.mergeAppend(data, 10000);
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3", "4", "5")), new HashSet<String>(readWithIt(into)));
+        assertEquals(Arrays.asList("a"), into.getUserFileNames());
+        assertEquals(0, data.getUserFileNames().size());
+        concatFs.close();
+    }
+
+    private void mergeRecoveryTest(Class crash) throws Exception {
+        FileSystem crashFs = concatFs(crash);
+        String path = getTmpPath(local, "pail");
+        String path2 = getTmpPath(local, "pail2");
+        Pail into = Pail.create(crashFs, path);
+        Pail data = Pail.create(crashFs, path2);
+        writeStrings(into, "a", "1", "2");
+        writeStrings(data, "b", "3");
+        writeStrings(data, "c", "4", "5");
+        try {
+            into.mergeAppend(data, 10000);
+            fail("should have crashed");
+        } catch(IllegalStateException e) {
+        }
+        crashFs.close();
+
+        FileSystem concatFs = concatFs(SequenceFileConcatTest.LocalConcat.class);
+        into = new Pail(concatFs, path);
+        data = new Pail(concatFs, path2);
+        writeStrings(data, "d", "6");
+        into.mergeAppend(data, 10000);
+        List<String> records = readWithIt(into);
+        Collections.sort(records);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), records);
+        assertEquals(0, data.getUserFileNames().size());
+        assertFalse(concatFs.exists(new Path(path, "_merging")) && concatFs.listStatus(new Path(path, "_merging")).length > 0);
+        concatFs.close();
+    }
+
+    public void testMergeAppendRecovers() throws Exception {
+        mergeRecoveryTest(CrashBeforeConcat.class);
+        mergeRecoveryTest(CrashAfterConcat.class);
+    }
+
     public void testAbsorb() throws Exception {
         appendOperationTest(new AppendOperation() {
             public void append(Pail into, Pail data, int renameMode) throws IOException {
@@ -0,0 +1,204 @@
+package com.backtype.hadoop.pail;
+
+import com.backtype.support.FSTestCase;
+import com.backtype.support.Utils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContextImpl;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptContextImpl;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import static com.backtype.support.TestUtils.*;
+
+public class PailOutputFormatTest extends FSTestCase {
+    private static final String ATTEMPT = "attempt_200707121733_0003_m_000005_0";
+
+    private JobConf makeConf(String path) {
+        JobConf conf = new JobConf();
+        FileOutputFormat.setOutputPath(conf, new Path(path));
+        conf.set("mapreduce.task.attempt.id", ATTEMPT);
+        Utils.setObject(conf, PailOutputFormat.SPEC_ARG, PailFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        return conf;
+    }
+
+    private void writeRecords(JobConf conf, String... records) throws IOException {
+        TestStructure structure = new TestStructure();
+        RecordWriter<Text, BytesWritable> writer = new PailOutputFormat().getRecordWriter(local, conf, "part-00000", Reporter.NULL);
+        for(String r: records) {
+            byte[] bytes = structure.serialize(r);
+            writer.write(new Text(Utils.join(structure.getTarget(r), "/")), new BytesWritable(bytes));
+        }
+        writer.close(Reporter.NULL);
+    }
+
+    private Pail<String> getWorkPail(JobConf conf) throws IOException {
+        return new Pail<String>(local, FileOutputFormat.getTaskOutputPath(conf, "part-00000").getParent().toString());
+    }
+
+    public void testSpillingWriter() throws Exception {
+        String path = getTmpPath(local, "pail");
+        JobConf conf = makeConf(path);
+        conf.set(PailOutputFormat.WRITER_MODE, PailOutputFormat.WRITER_MODE_SPILL);
+        conf.setInt(SpillingPailRecordWriter.SPILL_BYTES, 6);
+        conf.setInt(SpillingPailRecordWriter.MERGE_FACTOR, 2);
+        String[] records = new String[] {"a1", "b1", "za1", "a2", "c1", "zb1", "za2", "a3", "b2", "za3", "a4"};
+        writeRecords(conf, records);
+
+        Pail<String> pail = getWorkPail(conf);
+        assertPailContents(pail, records);
+        //one sequential run per attribute
+        assertEquals(5, pail.getUserFileNames().size());
+
+        List<String> a = new ArrayList<String>();
+        for(String name: pail.getUserFileNames()) {
+            if(name.startsWith("a/")) {
+                Pail<String>.TypedRecordInputStream is = pail.openRead(name);
+                String r;
+                while((r = is.readObject())!=null) a.add(r);
+                is.close();
+            }
+        }
+        List<String> expected = new ArrayList<String>();
+        expected.add("a1");
+        expected.add("a2");
+        expected.add("a3");
+        expected.add("a4");
+        assertEquals(expected, a);
+    }
+
+    public void testSpillingWriterInMemory() throws Exception {
+        String path = getTmpPath(local, "pail");
+        JobConf conf = makeConf(path);
+        conf.set(PailOutputFormat.WRITER_MODE, PailOutputFormat.WRITER_MODE_SPILL);
+        String[] records = new String[] {"a1", "b1", "za1", "a2", "zb1"};
+        writeRecords(conf, records);
+        Pail<String> pail = getWorkPail(conf);
+        assertPailContents(pail, records);
+        assertEquals(4, pail.getUserFileNames().size());
+    }
+
+    public void testAsyncWriter() throws Exception {
+        String path = getTmpPath(local, "pail");
+        JobConf conf = makeConf(path);
+        conf.setInt(PailOutputFormat.ASYNC_THREADS, 2);
+        conf.setInt(PailOutputFormat.ASYNC_QUEUE_SIZE, 1);
+        conf.setInt(PailOutputFormat.ASYNC_BATCH_BYTES, 4);
+        List<String> records = new ArrayList<String>();
+        for(int i=0; i<200; i++) {
+            records.add("abc".charAt(i % 3) + "" + i);
+        }
+        writeRecords(conf, records.toArray(new String[records.size()]));
+
+        Pail<String> pail = getWorkPail(conf);
+        assertPailContents(pail, records.toArray(new String[records.size()]));
+        List<String> a = new ArrayList<String>();
+        Pail<String>.TypedRecordInputStream is = pail.openRead(pail.getUserFileNames().get(0));
+        String r;
+        while((r = is.readObject())!=null) a.add(r);
+        is.close();
+        //batches of a file are written in order
+        for(int i=0; i<a.size(); i++) {
+            assertEquals(a.get(0).charAt(0) + "" + (i * 3 + Integer.parseInt(a.get(0).substring(1))), a.get(i));
+        }
+    }
+
+    public void testManifestCommitter() throws Exception {
+        String path = getTmpPath(local, "pail");
+        JobConf conf = makeConf(path);
+        PailOutputCommitter.setEnabled(conf, true);
+        PailOutputCommitter committer = (PailOutputCommitter) conf.getOutputCommitter();
+        TaskAttemptID failed = TaskAttemptID.forName("attempt_200707121733_0003_m_000005_0");
+        TaskAttemptID retried = TaskAttemptID.forName("attempt_200707121733_0003_m_000005_1");
+        TaskAttemptID other = TaskAttemptID.forName("attempt_200707121733_0003_m_000006_0");
+        committer.setupJob(new JobContextImpl(conf, failed.getJobID()));
+
+        JobConf failedConf = new JobConf(conf);
+        failedConf.set("mapreduce.task.attempt.id", failed.toString());
+        writeRecords(failedConf, "a1", "b1", "c1");
+        committer.abortTask(new TaskAttemptContextImpl(failedConf, failed));
+
+        JobConf retriedConf = new JobConf(conf);
+        retriedConf.set("mapreduce.task.attempt.id", retried.toString());
+        writeRecords(retriedConf, "a1", "b1");
+        assertTrue(committer.needsTaskCommit(new TaskAttemptContextImpl(retriedConf, retried)));
+        committer.commitTask(new TaskAttemptContextImpl(retriedConf, retried));
+
+        JobConf otherConf = new JobConf(conf);
+        otherConf.set("mapreduce.task.attempt.id", other.toString());
+        writeRecords(otherConf, "a2");
+        committer.commitTask(new TaskAttemptContextImpl(otherConf, other));
+
+        //nothing is visible until the job commits
+        Pail<String> pail = new Pail<String>(local, path);
+        assertPailContents(pail);
+        assertEquals(6, pail.getAllStoredFileStatuses().size());
+
+        committer.commitJob(new JobContextImpl(conf, failed.getJobID()));
+
+        assertPailContents(pail, "a1", "b1", "a2");
+        assertEquals(2, PailOutputCommitter.readManifest(local,
+                PailOutputCommitter.getJobManifest(new Path(path), failed.getJobID())).size());
+        //the files of the failed attempt were swept, the others were never moved
+        assertEquals(3, pail.getAllStoredFileStatuses().size());
+        for(String name: pail.getUserFileNames()) {
+            assertTrue(name, new Path(name).getName().startsWith("pc-200707121733-0003-m-00000"));
+        }
+        assertFalse(local.exists(new Path(path, "_temporary")));
+        assertFalse(local.exists(new Path(path, PailOutputCommitter.MANIFEST_DIR + "/200707121733-0003")));
+    }
+
+    public void testManifestCommitterCleanup() throws Exception {
+        String path = getTmpPath(local, "pail");
+        JobConf conf = makeConf(path);
+        PailOutputCommitter.setEnabled(conf, true);
+        PailOutputCommitter committer = (PailOutputCommitter) conf.getOutputCommitter();
+
+        //a job that died while running
+        TaskAttemptID dead = TaskAttemptID.forName("attempt_200707121733_0001_m_000001_0");
+        committer.setupJob(new JobContextImpl(conf, dead.getJobID()));
+        JobConf deadConf = new JobConf(conf);
+        deadConf.set("mapreduce.task.attempt.id", dead.toString());
+        writeRecords(deadConf, "a1");
+        committer.commitTask(new TaskAttemptContextImpl(deadConf, dead));
+
+        //a job that died during commitJob, after renaming the job manifest but before its sweep
+        TaskAttemptID committing = TaskAttemptID.forName("attempt_200707121733_0002_m_000001_0");
+        TaskAttemptID lost = TaskAttemptID.forName("attempt_200707121733_0002_m_000001_1");
+        committer.setupJob(new JobContextImpl(conf, committing.getJobID()));
+        JobConf committingConf = new JobConf(conf);
+        committingConf.set("mapreduce.task.attempt.id", committing.toString());
+        writeRecords(committingConf, "b1", "c1");
+        committer.commitTask(new TaskAttemptContextImpl(committingConf, committing));
+        JobConf lostConf = new JobConf(conf);
+        lostConf.set("mapreduce.task.attempt.id", lost.toString());
+        writeRecords(lostConf, "d1");
+        OutputStream os = local.create(PailOutputCommitter.getJobManifest(new Path(path), committing.getJobID()));
+        os.write("200707121733-0002-m-000001-0\n".getBytes("UTF-8"));
+        os.close();
+
+        //the manifest alone commits the job
+        Pail<String> pail = new Pail<String>(local, path);
+        assertPailContents(pail, "b1", "c1");
+        assertEquals(4, pail.getAllStoredFileStatuses().size());
+
+        PailOutputCommitter.cleanup(local, new Path(path), 60000);
+        assertPailContents(pail, "b1", "c1");
+        assertEquals(3, pail.getAllStoredFileStatuses().size());
+        assertFalse(local.exists(new Path(path, PailOutputCommitter.MANIFEST_DIR + "/200707121733-0002")));
+        assertTrue(local.exists(new Path(path, PailOutputCommitter.MANIFEST_DIR + "/200707121733-0001")));
+
+        PailOutputCommitter.cleanup(local, new Path(path), -1);
+        assertPailContents(pail, "b1", "c1");
+        assertEquals(2, pail.getAllStoredFileStatuses().size());
+        //only the manifest of the committed job is left
+        assertEquals(1, local.listStatus(new Path(path, PailOutputCommitter.MANIFEST_DIR)).length);
+    }
+}
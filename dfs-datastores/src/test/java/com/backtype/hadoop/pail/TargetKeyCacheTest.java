@@ -0,0 +1,75 @@
+package com.backtype.hadoop.pail;
+
+import com.backtype.support.Utils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import org.apache.hadoop.io.Text;
+
+public class TargetKeyCacheTest extends TestCase {
+    public void testKeys() {
+        TargetKeyCache cache = new TargetKeyCache(10);
+        assertEquals(new Text("a/b"), cache.get(Arrays.asList("a", "b"), ""));
+        assertEquals(new Text("a/bx"), cache.get(Arrays.asList("a", "b"), "x"));
+        assertEquals(new Text("x"), cache.get(Collections.<String>emptyList(), "x"));
+        assertEquals(new Text("anull"), cache.get(Arrays.asList("a"), null));
+        assertEquals(4, cache.getMisses());
+    }
+
+    public void testManyCategoriesPerTarget() {
+        TargetKeyCache cache = new TargetKeyCache(10);
+        List<String> target = new ArrayList<String>();
+        for(int i=0; i<100; i++) {
+            //the caller is free to reuse its list
+            target.clear();
+            target.add("t" + (i % 2));
+            Text key = cache.get(target, "c" + (i % 3));
+            assertEquals(new Text("t" + (i % 2) + "c" + (i % 3)), key);
+        }
+        assertEquals(6, cache.getMisses());
+        assertEquals(6, cache.size());
+    }
+
+    public void testEviction() {
+        TargetKeyCache cache = new TargetKeyCache(2);
+        List<String> a = Arrays.asList("a");
+        List<String> b = Arrays.asList("b");
+        List<String> c = Arrays.asList("c");
+        Text keyA = cache.get(a, "");
+        cache.get(b, "");
+        assertSame(keyA, cache.get(a, ""));
+        cache.get(c, "");
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getMisses());
+        //b was the least recently used
+        assertSame(keyA, cache.get(a, ""));
+        assertEquals(3, cache.getMisses());
+        assertEquals(new Text("b"), cache.get(b, ""));
+        assertEquals(4, cache.getMisses());
+    }
+
+    public void testHitsShareTheKey() {
+        List<List<String>> targets = new ArrayList<List<String>>();
+        for(int i=0; i<50; i++) {
+            targets.add(Arrays.asList("2016", "" + (i % 12), "" + i));
+        }
+        String[] categories = new String[] {"", "-a", "-b"};
+        TargetKeyCache cache = new TargetKeyCache(10000);
+        Text[] first = new Text[150];
+        for(int i=0; i<10000; i++) {
+            List<String> target = targets.get(i % targets.size());
+            String category = categories[i % categories.length];
+            Text key = cache.get(target, category);
+            if(i < first.length) {
+                assertEquals(new Text(Utils.join(target, "/") + category), key);
+                first[i] = key;
+            } else {
+                //no key is built again once cached
+                assertSame(first[i % first.length], key);
+            }
+        }
+        assertEquals(150, cache.getMisses());
+    }
+}
@@ -0,0 +1,102 @@
+package com.backtype.support;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+public class BoundedExecutorTest extends TestCase {
+
+    public void testLimit() throws IOException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        BoundedExecutor executor = new BoundedExecutor("test", 3);
+        for(int i=0; i<30; i++) {
+            executor.submit(new BoundedExecutor.Operation() {
+                public void run() throws IOException {
+                    int now = running.incrementAndGet();
+                    synchronized(maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                    done.incrementAndGet();
+                }
+            });
+        }
+        executor.await();
+        assertEquals(30, done.get());
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    public void testFailures() throws IOException {
+        BoundedExecutor executor = new BoundedExecutor("test", 2);
+        for(int i=0; i<5; i++) {
+            final int n = i;
+            executor.submit(new BoundedExecutor.Operation() {
+                public void run() throws IOException {
+                    throw new IllegalArgumentException("failed " + n);
+                }
+            });
+        }
+        try {
+            executor.await();
+            fail("should rethrow the failure");
+        } catch(IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("failed"));
+        }
+    }
+
+    public void testSubmitterFailureWins() throws IOException {
+        BoundedExecutor executor = new BoundedExecutor("test", 2);
+        try {
+            executor.run(new BoundedExecutor.Submitter() {
+                public void submitAll(BoundedExecutor executor) throws IOException {
+                    executor.submit(new BoundedExecutor.Operation() {
+                        public void run() throws IOException {
+                            throw new IOException("operation failed");
+                        }
+                    });
+                    throw new IllegalStateException("submitter failed");
+                }
+            });
+            fail("should rethrow the failure of the submitter");
+        } catch(IllegalStateException e) {
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("operation failed", e.getSuppressed()[0].getMessage());
+        }
+    }
+
+    public void testMkdirsOnce() throws IOException {
+        final AtomicInteger calls = new AtomicInteger();
+        final Path dir = new Path(TestUtils.getTmpPath(FileSystem.getLocal(new Configuration()), "dirs"), "a/b");
+        final FileSystem fs = new RawLocalFileSystem() {
+            @Override
+            public boolean mkdirs(Path f) throws IOException {
+                //creating a dir also creates its parents
+                if(f.equals(dir)) calls.incrementAndGet();
+                return super.mkdirs(f);
+            }
+        };
+        fs.initialize(FileSystem.getDefaultUri(new Configuration()), new Configuration());
+        final BoundedExecutor executor = new BoundedExecutor("test", 4);
+        for(int i=0; i<20; i++) {
+            executor.submit(new BoundedExecutor.Operation() {
+                public void run() throws IOException {
+                    executor.mkdirs(fs, dir);
+                }
+            });
+        }
+        executor.await();
+        assertEquals(1, calls.get());
+        assertTrue(fs.exists(dir));
+    }
+}
@@ -0,0 +1,169 @@
+package com.backtype.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SubsetSumTest extends TestCase {
+    private static final Logger LOG = LoggerFactory.getLogger(SubsetSumTest.class);
+
+    private static class Item implements SubsetSum.Value {
+        long value;
+
+        public Item(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The previous implementation: repeated greedy passes over the remaining values. Kept to compare against.
+     */
+    private static class LegacySubsetSum {
+        private static <T extends SubsetSum.Value> long greedy(List<T> input, long targetSize, List<T> ret, List<T> left) {
+            long sum = 0;
+            for (T p : input) {
+                if (sum + p.getValue() <= targetSize) {
+                    sum += p.getValue();
+                    ret.add(p);
+                } else {
+                    left.add(p);
+                }
+            }
+            return sum;
+        }
+
+        private static <T extends SubsetSum.Value> List<T> removeBestSubset(List<T> input, long targetSize) {
+            List<T> ret1 = new ArrayList<T>();
+            List<T> left1 = new ArrayList<T>();
+            List<T> ret2 = new ArrayList<T>();
+            List<T> left2 = new ArrayList<T>();
+            long size1 = greedy(input, targetSize, ret1, left1);
+            Collections.reverse(input);
+            long size2 = greedy(input, targetSize, ret2, left2);
+            input.clear();
+            if (size1 > size2) {
+                input.addAll(left1);
+                return ret1;
+            } else {
+                input.addAll(left2);
+                return ret2;
+            }
+        }
+
+        public static <T extends SubsetSum.Value> List<List<T>> split(List<T> input, long targetSize) {
+            Collections.sort(input, new Comparator<SubsetSum.Value>() {
+                public int compare(SubsetSum.Value o1, SubsetSum.Value o2) {
+                    return new Long(o1.getValue()).compareTo(new Long(o2.getValue()));
+                }
+            });
+            List<T> smaller = new ArrayList<T>();
+            List<List<T>> ret = new ArrayList<List<T>>();
+            for(T v: input) {
+                if(v.getValue() >= targetSize) {
+                    List<T> elem = new ArrayList<T>();
+                    elem.add(v);
+                    ret.add(elem);
+                } else {
+                    smaller.add(v);
+                }
+            }
+            while(smaller.size()>0) {
+                ret.add(removeBestSubset(smaller, targetSize));
+            }
+            return ret;
+        }
+    }
+
+    private List<Item> randomItems(Random r, int n, long max) {
+        List<Item> ret = new ArrayList<Item>();
+        for(int i=0; i<n; i++) {
+            ret.add(new Item((long) (r.nextDouble() * max)));
+        }
+        return ret;
+    }
+
+    private void assertValidSplit(List<Item> input, List<List<Item>> split, long target) {
+        IdentityHashMap<Item, Boolean> seen = new IdentityHashMap<Item, Boolean>();
+        for(List<Item> set: split) {
+            assertFalse(set.isEmpty());
+            long sum = 0;
+            for(Item i: set) {
+                assertNull(seen.put(i, true));
+                sum += i.value;
+            }
+            if(set.size() > 1) {
+                assertTrue(sum <= target);
+            }
+            for(Item i: set) {
+                if(i.value >= target) assertEquals(1, set.size());
+            }
+        }
+        assertEquals(input.size(), seen.size());
+    }
+
+    public void testSplit() {
+        List<Item> items = new ArrayList<Item>();
+        for(long v: new long[] {5, 3, 12, 7, 10, 2, 1, 1}) {
+            items.add(new Item(v));
+        }
+        List<List<Item>> split = SubsetSum.split(items, 10);
+        assertValidSplit(items, split, 10);
+        // 12 and 10 on their own, then 7+3, 5+2+1+1
+        assertEquals(4, split.size());
+        assertEquals(12, split.get(0).get(0).value);
+        assertEquals(10, split.get(1).get(0).value);
+
+        assertTrue(SubsetSum.split(new ArrayList<Item>(), 10).isEmpty());
+    }
+
+    public void testRandomSplits() {
+        Random r = new Random(0);
+        for(int t=0; t<20; t++) {
+            long target = 100 + r.nextInt(1000);
+            List<Item> items = randomItems(r, r.nextInt(500), target * 2);
+            List<List<Item>> split = SubsetSum.split(items, target);
+            assertValidSplit(items, split, target);
+            List<List<Item>> legacy = LegacySubsetSum.split(new ArrayList<Item>(items), target);
+            // first fit decreasing is never far from the previous packing
+            assertTrue(split.size() <= legacy.size() + legacy.size() / 10 + 1);
+        }
+    }
+
+    /**
+     * Only runs with -Dpail.benchmarks=true.
+     */
+    public void testBenchmark() {
+        if(!Boolean.getBoolean("pail.benchmarks")) return;
+        Random r = new Random(0);
+        long target = 128L * 1024 * 1024;
+        List<Item> items = randomItems(r, 20000, target / 20);
+
+        long start = System.nanoTime();
+        List<List<Item>> legacy = LegacySubsetSum.split(new ArrayList<Item>(items), target);
+        long legacyMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        List<List<Item>> split = SubsetSum.split(items, target);
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertValidSplit(items, split, target);
+        LOG.info("20000 files: legacy " + legacyMillis + "ms, " + legacy.size() + " sets. " +
+                "first fit decreasing " + millis + "ms, " + split.size() + " sets");
+
+        items = randomItems(r, 1000000, target / 20);
+        start = System.nanoTime();
+        split = SubsetSum.split(items, target);
+        millis = (System.nanoTime() - start) / 1000000;
+        assertValidSplit(items, split, target);
+        LOG.info("1000000 files: first fit decreasing " + millis + "ms, " + split.size() + " sets");
+    }
+}
@@ -0,0 +1,53 @@
+package com.backtype.support;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+    public void testBurstIsFree() throws IOException {
+        TokenBucket bucket = new TokenBucket(1000000);
+        bucket.acquire(500000);
+        bucket.acquire(500000);
+        // what the bucket slept, not the wall clock, which a loaded machine can stretch
+        assertEquals(0, bucket.getWaitedMillis());
+    }
+
+    public void testRate() throws IOException {
+        TokenBucket bucket = new TokenBucket(100000, 10000);
+        long start = System.currentTimeMillis();
+        bucket.acquire(10000);
+        // 50000 more at 100000 a second
+        for(int i=0; i<50; i++) {
+            bucket.acquire(1000);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed, elapsed >= 450);
+        assertTrue(bucket.getWaitedMillis() >= 400);
+    }
+
+    public void testSharedByThreads() throws Exception {
+        final TokenBucket bucket = new TokenBucket(100000, 1000);
+        Thread[] threads = new Thread[4];
+        long start = System.currentTimeMillis();
+        for(int t=0; t<threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for(int i=0; i<10; i++) {
+                            bucket.acquire(1000);
+                        }
+                    } catch(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread t: threads) {
+            t.join();
+        }
+        // 40000 between them, less the initial 1000
+        assertTrue(System.currentTimeMillis() - start >= 350);
+    }
+}